@@ -1,11 +1,29 @@
+import archive.ReplayManager;
+import archive.ReportArchive;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.gmail.Gmail;
+import com.google.api.services.sheets.v4.Sheets;
+import dataprocessing.DerivedSections;
+import dataprocessing.ReportContext;
+import dataprocessing.ReportDelta;
 import dataprocessing.ReportProcessor;
 import gmail.GmailManager;
+import misc.CredentialManager;
 import misc.Report;
+import misc.ReportPage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import query.QueryEngine;
+import server.ReportServer;
 import sheets.SheetsManager;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class ReportsPipeline {
@@ -13,18 +31,235 @@ public class ReportsPipeline {
     /* Identifier for this project when sending requests to Google APIs */
     private static final String APPLICATION_NAME = "Automated IB Report Pipeline";
 
+    /* Argument used by the `cdsArchive` Gradle task to record the classes loaded by a run */
+    private static final String CDS_TRAINING_ARG = "--cds-training";
+    /* Command to rebuild sheets from the report archive: `replay <from> <to>`, dates in Report.DATE_FORMAT */
+    private static final String REPLAY_COMMAND = "replay";
+    /* Command to query a section of the latest archived report: `query "<query>"`, see query.Query */
+    private static final String QUERY_COMMAND = "query";
+    /* Command to serve the latest archived reports over local HTTP: `serve [port]` */
+    private static final String SERVE_COMMAND = "serve";
+    /* Command to print the changes in the latest archived report since the account's previous one: `changes` */
+    private static final String CHANGES_COMMAND = "changes";
+
     public static void main(String[] args) throws GeneralSecurityException {
         final Logger logger = LoggerFactory.getLogger(ReportsPipeline.class);
+
+        if (args.length > 0 && args[0].equals(CDS_TRAINING_ARG)) {
+            logger.info("Beginning class-data-sharing training run");
+            trainClassList();
+            logger.info("Completed class-data-sharing training run");
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals(REPLAY_COMMAND)) {
+            if (args.length != 3) {
+                logger.error("Usage: {} <from> <to>, with dates formatted as {}", REPLAY_COMMAND, Report.DATE_FORMAT);
+                throw new IllegalArgumentException("Replay requires a start and end date");
+            }
+            DateTimeFormatter formatter = DateTimeFormatter.ofPattern(Report.DATE_FORMAT);
+            ReplayManager.replay(APPLICATION_NAME, Paths.get(ReportArchive.DEFAULT_DIRECTORY),
+                    LocalDate.parse(args[1], formatter), LocalDate.parse(args[2], formatter));
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals(QUERY_COMMAND)) {
+            if (args.length != 2) {
+                logger.error("Usage: {} \"SELECT ... FROM <section> ...\"", QUERY_COMMAND);
+                throw new IllegalArgumentException("Query requires the query text as one argument");
+            }
+            System.out.print(runQuery(args[1], logger).toCSV());
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals(SERVE_COMMAND)) {
+            int port = args.length > 1 ? Integer.parseInt(args[1])
+                    : Integer.getInteger("reports.serverPort", ReportServer.DEFAULT_PORT);
+            ReportServer.serve(Paths.get(ReportArchive.PROCESSED_DIRECTORY), port);
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals(CHANGES_COMMAND)) {
+            System.out.print(compareLatest(logger).toCSV());
+            return;
+        }
+
         logger.info("Beginning execution");
 
         // Generate report object from financial CSV reports sent to email
         Report rawReport = GmailManager.getLatestReport(APPLICATION_NAME);
+        // Keep a local copy of the raw report so it can be replayed without Gmail
+        archiveReport(rawReport, logger);
         // Apply processing and calculations
         Report processedReport = ReportProcessor.processData(rawReport);
+        // Keep the processed report for the report server, which does not run the handlers itself
+        archiveProcessedReport(processedReport, logger);
         // Upload report CSV to Google Sheets
         boolean success = SheetsManager.uploadReport(APPLICATION_NAME, processedReport);
 
         logger.info("Completed execution");
     }
 
+    /**
+     * Saves the raw report to the local report archive. The archive is only a convenience copy, so failing to write
+     * it is logged rather than stopping the pipeline.
+     *
+     * @param report The report as retrieved from Gmail, before processing.
+     * @param logger The logger to report failures to.
+     */
+    private static void archiveReport(Report report, Logger logger) {
+        try (ReportArchive archive = ReportArchive.open(Paths.get(ReportArchive.DEFAULT_DIRECTORY))) {
+            ReportArchive.Entry entry = archive.put(report);
+            logChanges(archive, entry, report, logger);
+        } catch (IOException e) {
+            logger.warn("Unable to archive report dated {} locally", report.getEntireDate());
+            logger.warn(e.toString());
+        }
+    }
+
+    /**
+     * Saves the processed report to the local archive of processed reports, which the report server serves. Failing
+     * to write it is logged rather than stopping the pipeline.
+     *
+     * @param report The report, after processing.
+     * @param logger The logger to report failures to.
+     */
+    private static void archiveProcessedReport(Report report, Logger logger) {
+        try (ReportArchive archive = ReportArchive.open(Paths.get(ReportArchive.PROCESSED_DIRECTORY))) {
+            archive.put(report);
+        } catch (IOException e) {
+            logger.warn("Unable to archive processed report dated {} locally", report.getEntireDate());
+            logger.warn(e.toString());
+        }
+    }
+
+    /**
+     * Logs how many rows of each section changed since the account's previous archived report.
+     *
+     * @param archive The report archive.
+     * @param entry The archive entry of the report.
+     * @param report The report, before processing.
+     * @param logger The logger to report the changes to.
+     * @throws IOException If the previous report cannot be read.
+     */
+    private static void logChanges(ReportArchive archive, ReportArchive.Entry entry, Report report, Logger logger)
+            throws IOException {
+        ReportArchive.Entry previous = findPrevious(archive, entry);
+        if (previous == null) {
+            return;
+        }
+        ReportDelta.Changeset changes = ReportDelta.compare(archive.load(previous), report);
+        logger.info("{} sections changed since the report dated {}", changes.getSections().size(),
+                changes.getPreviousDate());
+        for (ReportDelta.SectionDelta section : changes.getSections()) {
+            logger.info("{}: {} inserted, {} updated, {} deleted{}", section.getSection(),
+                    section.getCount(ReportDelta.Kind.INSERTED), section.getCount(ReportDelta.Kind.UPDATED),
+                    section.getCount(ReportDelta.Kind.DELETED), section.isSchemaChanged() ? " (columns changed)" : "");
+        }
+    }
+
+    /**
+     * Compares the latest archived report with the previous archived report of the same account.
+     *
+     * @param logger The logger to report failures to.
+     * @return The changes, or an empty changeset if the account has no earlier report.
+     */
+    private static ReportDelta.Changeset compareLatest(Logger logger) {
+        try (ReportArchive archive = ReportArchive.open(Paths.get(ReportArchive.DEFAULT_DIRECTORY))) {
+            List<ReportArchive.Entry> entries = archive.find(LocalDate.MIN, LocalDate.now());
+            if (entries.isEmpty()) {
+                logger.error("No archived report to compare in {}", ReportArchive.DEFAULT_DIRECTORY);
+                throw new RuntimeException("Report archive is empty");
+            }
+            ReportArchive.Entry latest = entries.get(entries.size() - 1);
+            ReportArchive.Entry previous = findPrevious(archive, latest);
+            Report report = archive.load(latest);
+            return ReportDelta.compare(previous == null ? report : archive.load(previous), report);
+        } catch (IOException e) {
+            logger.error("Unable to load archived reports to compare");
+            logger.error(e.toString());
+            throw new RuntimeException("Unable to load archived reports to compare");
+        }
+    }
+
+    /**
+     * @return The latest archive entry of the same account dated before the given entry, or null if there is none.
+     */
+    private static ReportArchive.Entry findPrevious(ReportArchive archive, ReportArchive.Entry entry) {
+        List<ReportArchive.Entry> earlier = archive.find(LocalDate.MIN, entry.getDate().minusDays(1));
+        for (int i = earlier.size() - 1; i >= 0; i--) {
+            if (earlier.get(i).getAccount().equals(entry.getAccount())) {
+                return earlier.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Runs a query over the latest archived report. The report's derived sections are added so that they can be
+     * queried too, but its pages are not processed, so a query never changes the saved analytics state.
+     *
+     * @param query The query text.
+     * @param logger The logger to report failures to.
+     * @return The query result.
+     */
+    private static QueryEngine.Result runQuery(String query, Logger logger) {
+        Report report;
+        try (ReportArchive archive = ReportArchive.open(Paths.get(ReportArchive.DEFAULT_DIRECTORY))) {
+            List<ReportArchive.Entry> entries = archive.find(LocalDate.MIN, LocalDate.now());
+            if (entries.isEmpty()) {
+                logger.error("No archived report to query in {}", ReportArchive.DEFAULT_DIRECTORY);
+                throw new RuntimeException("Report archive is empty");
+            }
+            report = archive.load(entries.get(entries.size() - 1));
+        } catch (IOException e) {
+            logger.error("Unable to load the latest archived report");
+            logger.error(e.toString());
+            throw new RuntimeException("Unable to load the latest archived report");
+        }
+
+        List<ReportPage> pages = new ArrayList<>(report.getPages());
+        pages.addAll(DerivedSections.createPages(new ReportContext(report)));
+        report.setPages(pages);
+        return QueryEngine.execute(report, query);
+    }
+
+    /**
+     * Loads the classes used by a normal run without touching the network or the user's credentials, so that they
+     * can be recorded into an application class-data-sharing archive. API clients are built without a credential,
+     * and a small sample report is passed through the report processor with its state kept in a temporary directory.
+     */
+    private static void trainClassList() {
+        final Logger logger = LoggerFactory.getLogger(ReportsPipeline.class);
+
+        new Gmail.Builder(CredentialManager.getHttpTransport(), CredentialManager.getJsonFactory(), null)
+                .setApplicationName(APPLICATION_NAME)
+                .build();
+        new Drive.Builder(CredentialManager.getHttpTransport(), CredentialManager.getJsonFactory(), null)
+                .setApplicationName(APPLICATION_NAME)
+                .build();
+        new Sheets.Builder(CredentialManager.getHttpTransport(), CredentialManager.getJsonFactory(), null)
+                .setApplicationName(APPLICATION_NAME)
+                .build();
+
+        String sampleCSV = "Introduction,Header,Name,Account\n"
+                + "Introduction,Data,Training,U0000000\n"
+                + "Historical Performance,Header,Date,Return\n"
+                + "Historical Performance,Data,01/01/2000,0.00\n";
+        // Stateful handlers save to a temporary directory, so the run leaves no state behind
+        try {
+            ReportProcessor.isolateState("cds-training-");
+        } catch (IOException e) {
+            logger.error("Unable to create a temporary state directory for the training run!");
+            logger.error(e.toString());
+            throw new RuntimeException("Training run failed");
+        }
+        try {
+            ReportProcessor.processData(new Report("training.csv", Report.ReportType.UNKNOWN, "01/01/2000",
+                    ReportProcessor.getPages(sampleCSV)));
+        } finally {
+            ReportProcessor.restoreState();
+        }
+    }
+
 }
@@ -0,0 +1,173 @@
+package archive;
+
+import dataprocessing.ReportProcessor;
+import misc.Report;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sheets.SheetsManager;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A class of static methods that rebuild the report spreadsheets from the local report archive, e.g. after a
+ * handler in `dataprocessing.reportpage` has changed.
+ */
+public class ReplayManager {
+
+    // Logger for this class
+    private static final Logger logger = LoggerFactory.getLogger(ReplayManager.class);
+
+    /* Progress is logged each time this many more reports have been processed */
+    private static final int PROGRESS_INTERVAL = 25;
+
+    /**
+     * Reprocesses the archived reports dated within a range and uploads them. Each month sheet only shows its
+     * latest month-to-date report, so only those reports are uploaded.
+     * <p>
+     * Handlers keep state from one report to the next (see `ReportProcessor.STATE_DIRECTORY`), so the replay runs
+     * them against a temporary state directory, leaving the state of live runs untouched. Each account's reports are
+     * processed in date order, starting from its first archived report so that the state is built up as it was when
+     * the reports first arrived; accounts are processed in parallel on a work-stealing pool. The processed reports
+     * are uploaded with one batch update per year spreadsheet.
+     *
+     * @param applicationName The identifier with which to make Drive/Sheets requests.
+     * @param archiveDirectory The directory of the report archive.
+     * @param from The first report date to replay.
+     * @param to The last report date to replay.
+     * @return The number of month sheets rebuilt.
+     */
+    public static int replay(String applicationName, Path archiveDirectory, LocalDate from, LocalDate to) {
+        try (ReportArchive archive = ReportArchive.open(archiveDirectory)) {
+
+            List<ReportArchive.Entry> uploads = getLatestPerMonth(archive.find(from, to));
+            logger.info("Replaying {} archived reports from {} to {}", uploads.size(), from, to);
+            if (uploads.isEmpty()) {
+                return 0;
+            }
+            List<ReportArchive.Entry> history = archive.find(LocalDate.MIN, to);
+
+            long start = System.nanoTime();
+            List<Report> processed;
+            ReportProcessor.isolateState("replay-state-");
+            try {
+                processed = processAll(archive, history, uploads);
+            } finally {
+                ReportProcessor.restoreState();
+            }
+            double processSeconds = (System.nanoTime() - start) / 1e9;
+
+            int sheets = SheetsManager.uploadReports(applicationName, processed);
+            double totalSeconds = (System.nanoTime() - start) / 1e9;
+            logger.info("Replay complete: {} sheets rebuilt in {} s (processing {} s)", sheets,
+                    String.format("%.2f", totalSeconds), String.format("%.2f", processSeconds));
+            return sheets;
+
+        } catch (IOException e) {
+            logger.error("Error occurred while reading the report archive!");
+            logger.error(e.toString());
+            throw new RuntimeException("Request to replay archived reports failed");
+        }
+    }
+
+    /**
+     * Keeps the last entry of each month of each account. Entries are ordered by date, so later entries replace
+     * earlier ones.
+     *
+     * @param entries Archive entries in date order.
+     * @return The latest entry of each account's months, in date order.
+     */
+    private static List<ReportArchive.Entry> getLatestPerMonth(List<ReportArchive.Entry> entries) {
+        // Account and first day of the month to the latest entry, moved to the end when replaced
+        Map<String, ReportArchive.Entry> months = new LinkedHashMap<>();
+        for (ReportArchive.Entry entry : entries) {
+            String key = entry.getAccount() + '\t' + entry.getDate().withDayOfMonth(1);
+            months.remove(key);
+            months.put(key, entry);
+        }
+        return new ArrayList<>(months.values());
+    }
+
+    /**
+     * Loads and processes archived reports, each account's in date order and accounts in parallel, logging progress
+     * and throughput.
+     *
+     * @param archive The archive to read from.
+     * @param history The reports to process, in date order.
+     * @param uploads The reports among them to keep once processed.
+     * @return The processed reports to keep, in the same order as `uploads`.
+     */
+    private static List<Report> processAll(ReportArchive archive, List<ReportArchive.Entry> history,
+                                           List<ReportArchive.Entry> uploads) {
+        Map<String, List<ReportArchive.Entry>> accounts = new LinkedHashMap<>();
+        for (ReportArchive.Entry entry : history) {
+            accounts.computeIfAbsent(entry.getAccount(), account -> new ArrayList<>()).add(entry);
+        }
+        Set<ReportArchive.Entry> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+        kept.addAll(uploads);
+        Map<ReportArchive.Entry, Report> processed = Collections.synchronizedMap(new IdentityHashMap<>());
+
+        AtomicInteger done = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        long start = System.nanoTime();
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            pool.submit(() -> accounts.values().parallelStream().forEach(entries -> {
+                for (ReportArchive.Entry entry : entries) {
+                    Report report = ReportProcessor.processData(load(archive, entry));
+                    if (kept.contains(entry)) {
+                        processed.put(entry, report);
+                    }
+
+                    long totalBytes = bytes.addAndGet(entry.getRawLength());
+                    int count = done.incrementAndGet();
+                    if (count % PROGRESS_INTERVAL == 0 || count == history.size()) {
+                        double seconds = Math.max((System.nanoTime() - start) / 1e9, 1e-9);
+                        logger.info("Processed {}/{} reports ({} reports/s, {} MB/s)", count, history.size(),
+                                String.format("%.1f", count / seconds),
+                                String.format("%.1f", totalBytes / seconds / (1024 * 1024)));
+                    }
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Replay was interrupted");
+        } catch (ExecutionException e) {
+            logger.error("Error occurred while processing archived reports!");
+            logger.error(e.getCause().toString());
+            throw new RuntimeException("Processing archived reports failed");
+        } finally {
+            pool.shutdown();
+        }
+
+        List<Report> reports = new ArrayList<>();
+        for (ReportArchive.Entry entry : uploads) {
+            reports.add(processed.get(entry));
+        }
+        return reports;
+    }
+
+    private static Report load(ReportArchive archive, ReportArchive.Entry entry) {
+        try {
+            return archive.load(entry);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read archived report dated " + entry.getDate(), e);
+        }
+    }
+
+}
@@ -0,0 +1,463 @@
+package archive;
+
+import dataprocessing.ReportProcessor;
+import misc.Report;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * Local append-only archive of raw report attachments, so reports can be replayed without Gmail. The pipeline also
+ * keeps processed reports in an archive of their own, which the report server serves without processing them again.
+ * <p>
+ * Report CSVs are deflate-compressed and appended to numbered segment files, which are read back through
+ * memory-mapped buffers. Blobs are content-addressed by the SHA-256 of the raw CSV, so an identical attachment is
+ * only stored once. A separate append-only index maps (report date, account) to a blob; it is loaded into a sorted
+ * array on open, giving O(log n) lookups by date range. Index records are only written after their blob has been
+ * flushed, and a torn record at the end of the index is ignored, so a crash never leaves a dangling entry.
+ */
+public class ReportArchive implements Closeable {
+
+    // Logger for this class
+    private static final Logger logger = LoggerFactory.getLogger(ReportArchive.class);
+
+    /* Default location of the archive, relative to the working directory */
+    public static final String DEFAULT_DIRECTORY = "reports-archive";
+    /* Location of the archive of processed reports, which the report server serves */
+    public static final String PROCESSED_DIRECTORY = "reports-processed";
+
+    /* File layout */
+    private static final String INDEX_FILE = "index.dat";
+    private static final String SEGMENT_FORMAT = "segment-%05d.dat";
+    /* A new segment is started once the current one exceeds this size */
+    private static final long SEGMENT_SIZE_LIMIT = 64L * 1024 * 1024;
+    private static final int HASH_LENGTH = 32;
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern(Report.DATE_FORMAT);
+
+    /**
+     * An archived report: its key, and the location of its compressed CSV.
+     */
+    public static class Entry {
+
+        private final LocalDate date;
+        private final String account;
+        private final String name;
+        private final byte[] hash;
+        private final int segment;
+        private final long offset;
+        private final int compressedLength;
+        private final int rawLength;
+
+        private Entry(LocalDate date, String account, String name, byte[] hash,
+                      int segment, long offset, int compressedLength, int rawLength) {
+            this.date = date;
+            this.account = account;
+            this.name = name;
+            this.hash = hash;
+            this.segment = segment;
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.rawLength = rawLength;
+        }
+
+        public LocalDate getDate() {
+            return this.date;
+        }
+
+        public String getAccount() {
+            return this.account;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public int getRawLength() {
+            return this.rawLength;
+        }
+
+    }
+
+    /* Orders entries by date, then account */
+    private static final Comparator<Entry> KEY_ORDER = Comparator.comparing(Entry::getDate)
+            .thenComparing(Entry::getAccount);
+
+    private final Path directory;
+    private final FileChannel index;
+    /* Entries sorted by key, with at most one entry per (date, account) */
+    private Entry[] entries;
+    /* Content address (hex SHA-256) to the entry holding that blob */
+    private final Map<String, Entry> blobs = new HashMap<>();
+    /* Read-only mappings of segments, remapped when a segment has grown since it was mapped */
+    private final Map<Integer, MappedByteBuffer> mappedSegments = new HashMap<>();
+    private FileChannel currentSegment;
+    private int currentSegmentNumber;
+
+    private ReportArchive(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        this.index = FileChannel.open(directory.resolve(INDEX_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        loadIndex();
+        openCurrentSegment();
+    }
+
+    /**
+     * Opens the archive in the given directory, creating it if it does not exist.
+     *
+     * @param directory The directory holding the index and segment files.
+     * @return The opened archive.
+     * @throws IOException If the archive files cannot be opened.
+     */
+    public static ReportArchive open(Path directory) throws IOException {
+        ReportArchive archive = new ReportArchive(directory);
+        logger.debug("Opened report archive '{}' with {} entries", directory, archive.entries.length);
+        return archive;
+    }
+
+    /**
+     * Archives the raw CSV of a report under its date and account. If an identical CSV is already stored, only a
+     * new index record is written. A report with the same date and account as an existing entry supersedes it.
+     *
+     * @param report The report to archive: before any processing is applied, except in the processed archive.
+     * @return The archive entry for the report.
+     * @throws IOException If the report cannot be written.
+     */
+    public synchronized Entry put(Report report) throws IOException {
+        // Hash and compress the CSV straight from the report pages, rather than building it in memory first
+        MessageDigest digest = newDigest();
+        ByteArrayOutputStream compressedOut = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        long rawLength;
+        try {
+            try (OutputStream out = new DigestOutputStream(
+                    new DeflaterOutputStream(compressedOut, deflater, 8192), digest)) {
+                report.writeCSV(out);
+            }
+            rawLength = report.getLength();
+        } finally {
+            deflater.end();
+        }
+        if (rawLength > Integer.MAX_VALUE) {
+            throw new IOException("Report is too large to archive");
+        }
+        byte[] hash = digest.digest();
+        LocalDate date = LocalDate.parse(report.getEntireDate(), DATE_FORMATTER);
+        String account = report.getAccount();
+
+        Entry entry;
+        Entry existing = this.blobs.get(toHex(hash));
+        if (existing != null) {
+            logger.debug("Report content already archived, reusing blob");
+            entry = new Entry(date, account, report.getName(), hash, existing.segment, existing.offset,
+                    existing.compressedLength, existing.rawLength);
+        } else {
+            byte[] compressed = compressedOut.toByteArray();
+            if (this.currentSegment.size() >= SEGMENT_SIZE_LIMIT) {
+                this.currentSegment.close();
+                this.currentSegmentNumber++;
+                openCurrentSegment();
+            }
+            long offset = this.currentSegment.size();
+            ByteBuffer blob = ByteBuffer.wrap(compressed);
+            while (blob.hasRemaining()) {
+                this.currentSegment.write(blob, offset + blob.position());
+            }
+            // Blob must be durable before the index refers to it
+            this.currentSegment.force(false);
+            entry = new Entry(date, account, report.getName(), hash, this.currentSegmentNumber, offset,
+                    compressed.length, (int) rawLength);
+        }
+
+        appendIndexRecord(entry);
+        addEntry(entry);
+        logger.info("Archived report dated {} for account '{}' ({} bytes)", report.getEntireDate(), account,
+                rawLength);
+        return entry;
+    }
+
+    /**
+     * Finds the archived reports dated within an inclusive range, ordered by date then account.
+     *
+     * @param from The first date to include.
+     * @param to The last date to include.
+     * @return The matching entries.
+     */
+    public synchronized List<Entry> find(LocalDate from, LocalDate to) {
+        int start = lowerBound(from);
+        int end = lowerBound(to.plusDays(1));
+        return Collections.unmodifiableList(Arrays.asList(Arrays.copyOfRange(this.entries, start, end)));
+    }
+
+    /**
+     * Reads the raw CSV of an archived report.
+     *
+     * @param entry The entry to read.
+     * @return The CSV exactly as it was archived.
+     * @throws IOException If the segment cannot be read or the blob is corrupt.
+     */
+    public String read(Entry entry) throws IOException {
+        StringBuilder csv = new StringBuilder(entry.rawLength);
+        try (Reader reader = openReader(entry)) {
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) >= 0) {
+                csv.append(buffer, 0, count);
+            }
+        }
+        return csv.toString();
+    }
+
+    /**
+     * Rebuilds the raw report held by an archive entry. The CSV is decompressed straight into its report pages.
+     *
+     * @param entry The entry to load.
+     * @return A report equivalent to the one originally retrieved from Gmail.
+     * @throws IOException If the report cannot be read.
+     */
+    public Report load(Entry entry) throws IOException {
+        try (Reader reader = openReader(entry)) {
+            return new Report(entry.getName(), Report.ReportType.UNKNOWN, entry.getDate().format(DATE_FORMATTER),
+                    ReportProcessor.getPages(reader));
+        }
+    }
+
+    /**
+     * Opens a stream of the decompressed CSV of an archived report. The content is checked against its address
+     * once it has been read to the end.
+     *
+     * @param entry The entry to read.
+     * @return Reader of the CSV text.
+     * @throws IOException If the segment cannot be read.
+     */
+    private Reader openReader(Entry entry) throws IOException {
+        byte[] compressed = new byte[entry.compressedLength];
+        blobView(entry).get(compressed);
+
+        MessageDigest digest = newDigest();
+        InputStream verified = new FilterInputStream(new DigestInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(compressed)), digest)) {
+            private long length;
+            private boolean verified;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) length++; else verify();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int read = super.read(buffer, offset, count);
+                if (read >= 0) length += read; else verify();
+                return read;
+            }
+
+            private void verify() throws IOException {
+                if (verified) return;
+                verified = true;
+                if (length != entry.rawLength || !Arrays.equals(digest.digest(), entry.hash)) {
+                    logger.error("Archived blob for {} is corrupt!", entry.getDate());
+                    throw new IOException("Archived report failed integrity check");
+                }
+            }
+        };
+        return new InputStreamReader(verified, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.index.close();
+        this.currentSegment.close();
+        this.mappedSegments.clear();
+    }
+
+    /**
+     * Reads every complete record from the index file, discarding a torn record at the end.
+     */
+    private void loadIndex() throws IOException {
+        List<Entry> loaded = new ArrayList<>();
+        long size = this.index.size();
+        ByteBuffer buffer = size == 0 ? ByteBuffer.allocate(0) : this.index.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        long validLength = 0;
+        try {
+            while (buffer.remaining() >= Integer.BYTES) {
+                int recordLength = buffer.getInt();
+                if (recordLength <= 0 || recordLength > buffer.remaining()) break;
+                ByteBuffer record = buffer.slice();
+                record.limit(recordLength);
+                buffer.position(buffer.position() + recordLength);
+                loaded.add(readRecord(record));
+                validLength = buffer.position();
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Stopped reading archive index at a damaged record: {}", e.toString());
+        }
+        if (validLength < size) {
+            logger.warn("Discarding {} bytes of incomplete archive index", size - validLength);
+            this.index.truncate(validLength);
+        }
+
+        loaded.sort(KEY_ORDER);
+        List<Entry> unique = new ArrayList<>();
+        for (Entry entry : loaded) {
+            // Records for the same key are superseded by the most recent one (stable sort keeps file order)
+            if (!unique.isEmpty() && KEY_ORDER.compare(unique.get(unique.size() - 1), entry) == 0) {
+                unique.set(unique.size() - 1, entry);
+            } else {
+                unique.add(entry);
+            }
+            this.blobs.put(toHex(entry.hash), entry);
+        }
+        this.entries = unique.toArray(new Entry[0]);
+    }
+
+    private static Entry readRecord(ByteBuffer record) {
+        LocalDate date = LocalDate.ofEpochDay(record.getInt());
+        String account = readString(record);
+        String name = readString(record);
+        byte[] hash = new byte[HASH_LENGTH];
+        record.get(hash);
+        return new Entry(date, account, name, hash, record.getInt(), record.getLong(), record.getInt(),
+                record.getInt());
+    }
+
+    private void appendIndexRecord(Entry entry) throws IOException {
+        byte[] account = entry.account.getBytes(StandardCharsets.UTF_8);
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        int recordLength = Integer.BYTES * 3 + account.length + name.length + HASH_LENGTH
+                + Integer.BYTES + Long.BYTES + Integer.BYTES * 2;
+
+        ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + recordLength);
+        record.putInt(recordLength)
+                .putInt((int) entry.date.toEpochDay())
+                .putInt(account.length).put(account)
+                .putInt(name.length).put(name)
+                .put(entry.hash)
+                .putInt(entry.segment)
+                .putLong(entry.offset)
+                .putInt(entry.compressedLength)
+                .putInt(entry.rawLength);
+        record.flip();
+
+        long position = this.index.size();
+        while (record.hasRemaining()) {
+            this.index.write(record, position + record.position());
+        }
+        this.index.force(false);
+    }
+
+    private static String readString(ByteBuffer record) {
+        byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds an entry to the sorted array, replacing any entry with the same key.
+     */
+    private void addEntry(Entry entry) {
+        int position = Arrays.binarySearch(this.entries, entry, KEY_ORDER);
+        if (position >= 0) {
+            this.entries[position] = entry;
+        } else {
+            int insertion = -position - 1;
+            Entry[] grown = new Entry[this.entries.length + 1];
+            System.arraycopy(this.entries, 0, grown, 0, insertion);
+            grown[insertion] = entry;
+            System.arraycopy(this.entries, insertion, grown, insertion + 1, this.entries.length - insertion);
+            this.entries = grown;
+        }
+        this.blobs.putIfAbsent(toHex(entry.hash), entry);
+    }
+
+    /**
+     * @return The index of the first entry dated on or after the given date.
+     */
+    private int lowerBound(LocalDate date) {
+        int low = 0;
+        int high = this.entries.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (this.entries[middle].getDate().isBefore(date)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Opens the highest numbered segment for appending.
+     */
+    private void openCurrentSegment() throws IOException {
+        while (Files.exists(segmentPath(this.currentSegmentNumber + 1))) {
+            this.currentSegmentNumber++;
+        }
+        this.currentSegment = FileChannel.open(segmentPath(this.currentSegmentNumber),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path segmentPath(int segment) {
+        return this.directory.resolve(String.format(SEGMENT_FORMAT, segment));
+    }
+
+    /**
+     * Gets a read-only view of a blob from its memory-mapped segment.
+     */
+    private synchronized ByteBuffer blobView(Entry entry) throws IOException {
+        long end = entry.offset + entry.compressedLength;
+        MappedByteBuffer mapped = this.mappedSegments.get(entry.segment);
+        if (mapped == null || mapped.capacity() < end) {
+            try (FileChannel channel = FileChannel.open(segmentPath(entry.segment), StandardOpenOption.READ)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            this.mappedSegments.put(entry.segment, mapped);
+        }
+        if (mapped.capacity() < end) {
+            throw new IOException("Archive segment is shorter than its index entry");
+        }
+        ByteBuffer view = mapped.duplicate();
+        view.position((int) entry.offset).limit((int) end);
+        return view.slice();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+}
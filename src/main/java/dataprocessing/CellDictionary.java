@@ -0,0 +1,288 @@
+package dataprocessing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+
+/**
+ * Process-wide dictionary of the identifiers repeated across sections and reports (symbols, accounts, currencies,
+ * asset classes, ...), each encoded once as a dense int code. Tables keep one shared string per identifier rather
+ * than a copy per cell, and compare identifiers by code in joins and group-bys.
+ * <p>
+ * Codes are stable for the life of the process. Lookups are lock-free reads of an open-addressing table, and can be
+ * made straight from a range of a character buffer, so encoding a known identifier allocates nothing; adding an
+ * identifier takes a lock. Only identifier columns should be encoded, as entries are never removed.
+ */
+public class CellDictionary {
+
+    // Logger for this class
+    private static final Logger logger = LoggerFactory.getLogger(CellDictionary.class);
+
+    /* Initial number of hash slots; the table doubles when half of them are used */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * The hash slots and the value of each code. Grown by replacing it, so readers always see a consistent table.
+     */
+    private static class Table {
+
+        /* Code + 1 by hash slot, or 0 where the slot is empty */
+        private final int[] slots;
+        private final String[] values;
+
+        private Table(int capacity) {
+            this.slots = new int[capacity];
+            this.values = new String[capacity / 2];
+        }
+
+    }
+
+    /**
+     * Dense index of keys made of one or two dictionary codes, e.g. the symbol, or account and symbol, of a row.
+     * Keys are numbered in the order they are first added.
+     */
+    public static class CodeIndex {
+
+        private static final long EMPTY = -1;
+
+        private long[] keys = new long[64];
+        private int[] indexes = new int[64];
+        private int size;
+
+        public CodeIndex() {
+            Arrays.fill(this.keys, EMPTY);
+        }
+
+        /**
+         * @param first The code of the first cell of the key.
+         * @param second The code of the second cell of the key, or 0 for keys of one cell.
+         * @return The key, or -1 if either code is not a valid code.
+         */
+        public static long key(int first, int second) {
+            return first < 0 || second < 0 ? EMPTY : (long) first << 32 | second;
+        }
+
+        /**
+         * @param key The key.
+         * @return The index of the key, added if it is new.
+         */
+        public int add(long key) {
+            int slot = slot(key);
+            if (this.keys[slot] == EMPTY) {
+                if ((this.size + 1) * 2 > this.keys.length) {
+                    resize();
+                    slot = slot(key);
+                }
+                this.keys[slot] = key;
+                this.indexes[slot] = this.size++;
+            }
+            return this.indexes[slot];
+        }
+
+        /**
+         * @param key The key.
+         * @return The index of the key, or -1 if it has not been added.
+         */
+        public int find(long key) {
+            if (key == EMPTY) return -1;
+            int slot = slot(key);
+            return this.keys[slot] == EMPTY ? -1 : this.indexes[slot];
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        private int slot(long key) {
+            int mask = this.keys.length - 1;
+            int slot = spread(Long.hashCode(key * 0x9E3779B97F4A7C15L)) & mask;
+            while (this.keys[slot] != EMPTY && this.keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void resize() {
+            long[] oldKeys = this.keys;
+            int[] oldIndexes = this.indexes;
+            this.keys = new long[oldKeys.length * 2];
+            this.indexes = new int[oldKeys.length * 2];
+            Arrays.fill(this.keys, EMPTY);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int slot = slot(oldKeys[i]);
+                    this.keys[slot] = oldKeys[i];
+                    this.indexes[slot] = oldIndexes[i];
+                }
+            }
+        }
+
+    }
+
+    private static volatile Table table = new Table(INITIAL_CAPACITY);
+    /* Number of codes, guarded by the class lock */
+    private static int size;
+
+    /**
+     * Gets the code of a value, adding it if it is new.
+     *
+     * @param value The value.
+     * @return The code.
+     */
+    public static int encode(String value) {
+        int code = lookup(table, value, 0, value.length(), value.hashCode());
+        return code >= 0 ? code : add(value, 0, value.length(), value.hashCode());
+    }
+
+    /**
+     * Gets the code of a value held in part of a character buffer, adding it if it is new. A value which is already
+     * encoded is looked up without copying it out of the buffer.
+     *
+     * @param text The characters holding the value.
+     * @param start The index of the value's first character.
+     * @param end The index after the value's last character.
+     * @return The code.
+     */
+    public static int encode(CharSequence text, int start, int end) {
+        int hash = hash(text, start, end);
+        int code = lookup(table, text, start, end, hash);
+        return code >= 0 ? code : add(text, start, end, hash);
+    }
+
+    /**
+     * Gets the code of a value without adding it.
+     *
+     * @param value The value.
+     * @return The code, or -1 if the value has not been encoded.
+     */
+    public static int find(String value) {
+        int code = lookup(table, value, 0, value.length(), value.hashCode());
+        if (code < 0) {
+            synchronized (CellDictionary.class) {
+                code = lookup(table, value, 0, value.length(), value.hashCode());
+            }
+        }
+        return code;
+    }
+
+    /**
+     * @param code A code given by this dictionary.
+     * @return The value of the code.
+     */
+    public static String decode(int code) {
+        String[] values = table.values;
+        String value = code < values.length ? values[code] : null;
+        if (value == null) {
+            synchronized (CellDictionary.class) {
+                value = table.values[code];
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @param value The value.
+     * @return The dictionary's instance of the value, added if it is new.
+     */
+    public static String intern(String value) {
+        return decode(encode(value));
+    }
+
+    /**
+     * @return The number of values encoded.
+     */
+    public static synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Finds a value in a table, without locking. A slot whose value is not yet visible to this thread is treated as
+     * a miss, which is then looked up again under the lock.
+     */
+    private static int lookup(Table current, CharSequence text, int start, int end, int hash) {
+        int mask = current.slots.length - 1;
+        int slot = spread(hash) & mask;
+        int entry;
+        while ((entry = current.slots[slot]) != 0) {
+            String value = current.values[entry - 1];
+            if (value == null) {
+                return -1;
+            }
+            if (value.hashCode() == hash && matches(value, text, start, end)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static synchronized int add(CharSequence text, int start, int end, int hash) {
+        Table current = table;
+        int code = lookup(current, text, start, end, hash);
+        if (code >= 0) {
+            return code;
+        }
+        if (size == current.values.length) {
+            current = grow(current);
+        }
+        String value = text instanceof String && start == 0 && end == text.length()
+                ? (String) text : text.subSequence(start, end).toString();
+        int slot = freeSlot(current, hash);
+        // The value is stored before its slot, so a reader which finds the slot finds the value or a miss
+        current.values[size] = value;
+        current.slots[slot] = size + 1;
+        return size++;
+    }
+
+    private static Table grow(Table current) {
+        Table grown = new Table(current.slots.length * 2);
+        for (int code = 0; code < size; code++) {
+            String value = current.values[code];
+            grown.values[code] = value;
+            grown.slots[freeSlot(grown, value.hashCode())] = code + 1;
+        }
+        table = grown;
+        logger.debug("Cell dictionary grown to {} slots for {} values", grown.slots.length, size);
+        return grown;
+    }
+
+    private static int freeSlot(Table current, int hash) {
+        int mask = current.slots.length - 1;
+        int slot = spread(hash) & mask;
+        while (current.slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * The hash of a range of characters, equal to the `hashCode` of the same characters as a string.
+     */
+    private static int hash(CharSequence text, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        return hash;
+    }
+
+    private static boolean matches(String value, CharSequence text, int start, int end) {
+        if (value.length() != end - start) {
+            return false;
+        }
+        if (text instanceof String) {
+            return value == text || ((String) text).regionMatches(start, value, 0, value.length());
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) != text.charAt(start + i)) return false;
+        }
+        return true;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+}
@@ -0,0 +1,148 @@
+package dataprocessing;
+
+import misc.ReportPage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A class of static methods that create derived sections (report pages) once every page of a report has been
+ * processed, by joining pages which describe the same symbols. These replace lookups across sheets.
+ */
+public class DerivedSections {
+
+    // Logger for this class
+    private static final Logger logger = LoggerFactory.getLogger(DerivedSections.class);
+
+    /* Name of the section joining each open position with its performance, income and ESG data */
+    public static final String POSITION_ANALYTICS = "Position Analytics";
+
+    /* Page whose rows the joined section has one row for */
+    private static final String POSITIONS_PAGE = "Open Position Summary";
+    /* Joined columns: page, text its column name contains, column of the derived section, and how rows combine */
+    private static final String[][] JOINED_COLUMNS = {
+            {"Performance By Symbol", "Return", "Return (%)", "first"},
+            {"Performance By Symbol", "Unrealized", "Unrealized P/L", "sum"},
+            {"Dividends", "Amount", "Dividends", "sum"},
+            {"Projected Income", "Income", "Projected Income", "sum"},
+            {"Projected Income", "Yield", "Projected Yield (%)", "first"},
+            {"ESG", "Score", "ESG Score", "first"},
+    };
+
+    /**
+     * Creates the derived sections of a report.
+     *
+     * @param context The report being processed.
+     * @return The derived pages, to add after the report's own pages.
+     */
+    public static List<ReportPage> createPages(ReportContext context) {
+        List<ReportPage> pages = new ArrayList<>();
+        String positionAnalytics = joinPositions(context);
+        if (positionAnalytics != null) {
+            pages.add(ReportPage.fromData(POSITION_ANALYTICS, positionAnalytics));
+        }
+        return pages;
+    }
+
+    /**
+     * Joins each open position with the other pages on its symbol, and on its account where both pages show one.
+     *
+     * @param context The report being processed.
+     * @return The section data, or null if the report has no open positions.
+     */
+    private static String joinPositions(ReportContext context) {
+        SectionTable positions = context.getTable(POSITIONS_PAGE);
+        if (positions == null || positions.getColumn("Symbol") < 0 || positions.getRows().isEmpty()) {
+            return null;
+        }
+        int symbolColumn = positions.getColumn("Symbol");
+        int accountColumn = positions.getColumn("Account");
+        int valueColumn = positions.getColumn("Value");
+
+        // Joins on symbol, and on account and symbol, are built when first needed
+        SectionJoin bySymbol = null;
+        SectionJoin byAccount = null;
+        int rows = positions.getRows().size();
+        List<String> labels = new ArrayList<>();
+        List<String[]> columns = new ArrayList<>();
+        double[] dividends = null;
+        double[] projectedIncome = null;
+
+        for (String[] joined : JOINED_COLUMNS) {
+            SectionTable table = context.getTable(joined[0]);
+            int keyColumn = table == null ? -1 : table.getColumn("Symbol");
+            int column = table == null ? -1 : table.findColumn(joined[1]);
+            if (keyColumn < 0 || column < 0) continue;
+
+            SectionJoin join;
+            int[] keyColumns;
+            int tableAccount = table.getColumn("Account");
+            if (accountColumn >= 0 && tableAccount >= 0) {
+                if (byAccount == null) byAccount = SectionJoin.on(positions, accountColumn, symbolColumn);
+                join = byAccount;
+                keyColumns = new int[]{tableAccount, keyColumn};
+            } else {
+                if (bySymbol == null) bySymbol = SectionJoin.on(positions, symbolColumn);
+                join = bySymbol;
+                keyColumns = new int[]{keyColumn};
+            }
+
+            String[] cells = new String[rows];
+            if (joined[3].equals("sum")) {
+                double[] sums = join.sum(table, keyColumns, column);
+                for (int i = 0; i < rows; i++) {
+                    cells[i] = format(sums[i]);
+                }
+                if (joined[2].equals("Dividends")) dividends = sums;
+                if (joined[2].equals("Projected Income")) projectedIncome = sums;
+            } else {
+                cells = join.first(table, keyColumns, column);
+            }
+            labels.add(joined[2]);
+            columns.add(cells);
+        }
+        logger.debug("Joined {} columns onto {} open positions", labels.size(), rows);
+
+        StringBuilder section = new StringBuilder("Header,Symbol");
+        if (accountColumn >= 0) section.append(",Account");
+        section.append(",Value");
+        for (String label : labels) {
+            section.append(',').append(label);
+        }
+        if (dividends != null) section.append(",Dividend Yield On Value (%)");
+        if (projectedIncome != null) section.append(",Projected Yield On Value (%)");
+        section.append('\n');
+
+        for (int i = 0; i < rows; i++) {
+            String[] position = positions.getRows().get(i);
+            double value = SectionTable.parseNumber(SectionTable.getCell(position, valueColumn));
+            section.append("Data,").append(SectionTable.quote(SectionTable.getCell(position, symbolColumn).trim()));
+            if (accountColumn >= 0) {
+                section.append(',').append(SectionTable.quote(SectionTable.getCell(position, accountColumn).trim()));
+            }
+            appendValue(section.append(','), value);
+            for (String[] cells : columns) {
+                section.append(',').append(cells[i] == null ? "--" : SectionTable.quote(cells[i].trim()));
+            }
+            if (dividends != null) appendValue(section.append(','), dividends[i] / value * 100);
+            if (projectedIncome != null) appendValue(section.append(','), projectedIncome[i] / value * 100);
+            section.append('\n');
+        }
+        return section.toString();
+    }
+
+    private static String format(double value) {
+        return appendValue(new StringBuilder(), value).toString();
+    }
+
+    private static StringBuilder appendValue(StringBuilder section, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return section.append("--");
+        }
+        return NumberCodec.appendFixed(section, value, 2);
+    }
+
+}
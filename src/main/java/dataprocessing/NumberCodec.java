@@ -0,0 +1,264 @@
+package dataprocessing;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+
+/**
+ * Parses and formats the numbers in report cells without allocating per cell.
+ * <p>
+ * Cells are parsed straight from their characters, with the PortfolioAnalyst formats handled in the same pass:
+ * thousands separators, percentages and negatives in parentheses. A cell of at most 15 or so significant digits is
+ * converted by a single correctly rounded division of two exact doubles, so it gives the same value as
+ * `Double.parseDouble`; anything else (exponents, very long cells, malformed text) falls back to it.
+ * <p>
+ * Numbers are appended to a buffer the caller reuses rather than built as strings. Fixed-point output is identical to
+ * `String.format(Locale.ENGLISH, "%.nf")`, rounding half up on the shortest decimal which round-trips to the value,
+ * and shortest output gives the fewest digits which parse back to exactly the same double.
+ */
+public class NumberCodec {
+
+    /* Doubles are exact integers below 2^53, and powers of ten are exact doubles up to 10^22 */
+    private static final double EXACT_LIMIT = 9007199254740992.0;
+    private static final int MAX_EXACT_POWER = 22;
+    /* Fractional digits tried when looking for the shortest round-trip decimal */
+    private static final int MAX_SHORTEST_DECIMALS = 17;
+    /* Largest number of decimals supported by fixed-point output */
+    public static final int MAX_DECIMALS = 18;
+
+    private static final double[] DOUBLE_POWERS = new double[MAX_EXACT_POWER + 1];
+    private static final long[] LONG_POWERS = new long[MAX_DECIMALS + 1];
+
+    static {
+        DOUBLE_POWERS[0] = 1;
+        for (int i = 1; i < DOUBLE_POWERS.length; i++) {
+            DOUBLE_POWERS[i] = DOUBLE_POWERS[i - 1] * 10;
+        }
+        LONG_POWERS[0] = 1;
+        for (int i = 1; i < LONG_POWERS.length; i++) {
+            LONG_POWERS[i] = LONG_POWERS[i - 1] * 10;
+        }
+    }
+
+    /**
+     * Parses a numeric cell as shown in PortfolioAnalyst reports, e.g. '1,234.50', '-0.52%' or '(12.00)'.
+     *
+     * @param text The cell text.
+     * @return The value, or NaN if the cell is empty or not a number (e.g. '--').
+     */
+    public static double parse(CharSequence text) {
+        return parse(text, 0, text.length());
+    }
+
+    /**
+     * Parses a numeric cell from part of a character buffer, e.g. a cell of a row without splitting the row.
+     *
+     * @param text The characters holding the cell.
+     * @param start The index of the cell's first character.
+     * @param end The index after the cell's last character.
+     * @return The value, or NaN if the cell is empty or not a number (e.g. '--').
+     */
+    public static double parse(CharSequence text, int start, int end) {
+        int from = start;
+        int to = end;
+        while (from < to && text.charAt(from) <= ' ') from++;
+        while (to > from && text.charAt(to - 1) <= ' ') to--;
+        boolean negative = to - from >= 2 && text.charAt(from) == '(' && text.charAt(to - 1) == ')';
+        if (negative) {
+            from++;
+            to--;
+            while (from < to && text.charAt(from) <= ' ') from++;
+            while (to > from && text.charAt(to - 1) <= ' ') to--;
+        }
+
+        long mantissa = 0;
+        int decimals = 0;
+        boolean signed = false;
+        boolean minus = false;
+        boolean point = false;
+        boolean digits = false;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (mantissa > (Long.MAX_VALUE - 9) / 10) {
+                    return parseSlowly(text, start, end);
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (point) decimals++;
+                digits = true;
+            } else if (c == '.' && !point) {
+                point = true;
+            } else if ((c == '-' || c == '+') && !signed && !digits && !point) {
+                signed = true;
+                minus = c == '-';
+            } else if (c != ',' && c != '%') {
+                // Exponents, special values and malformed cells
+                return parseSlowly(text, start, end);
+            }
+        }
+        if (!digits) {
+            return Double.NaN;
+        }
+        if (mantissa > EXACT_LIMIT || decimals > MAX_EXACT_POWER) {
+            return parseSlowly(text, start, end);
+        }
+
+        double value = decimals == 0 ? mantissa : mantissa / DOUBLE_POWERS[decimals];
+        if (minus) value = -value;
+        return negative ? -value : value;
+    }
+
+    /**
+     * Appends a number with a fixed number of decimals, exactly as `String.format(Locale.ENGLISH, "%.nf")` would.
+     *
+     * @param out The buffer to append to.
+     * @param value The number.
+     * @param decimals The number of decimals, up to {@link #MAX_DECIMALS}.
+     * @return The buffer.
+     */
+    public static StringBuilder appendFixed(StringBuilder out, double value, int decimals) {
+        if (decimals < 0 || decimals > MAX_DECIMALS) {
+            throw new IllegalArgumentException("Unsupported number of decimals: " + decimals);
+        }
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return out.append(value);
+        }
+        double magnitude = Math.abs(value);
+        int scale = shortestScale(magnitude);
+        if (scale < 0) {
+            return appendSlowly(out, value, decimals);
+        }
+
+        long digits = Math.round(magnitude * DOUBLE_POWERS[scale]);
+        if (scale > decimals) {
+            // Rounds half up on the decimal digits, as the formatter does
+            long divisor = LONG_POWERS[scale - decimals];
+            long remainder = digits % divisor;
+            digits = digits / divisor + (remainder >= divisor - remainder ? 1 : 0);
+        } else {
+            long multiplier = LONG_POWERS[decimals - scale];
+            if (digits > Long.MAX_VALUE / multiplier) {
+                return appendSlowly(out, value, decimals);
+            }
+            digits *= multiplier;
+        }
+        if (Double.doubleToRawLongBits(value) < 0) out.append('-');
+        return appendDigits(out, digits, decimals);
+    }
+
+    /**
+     * Appends a number with the fewest decimals which parse back to exactly the same value, and no exponent.
+     *
+     * @param out The buffer to append to.
+     * @param value The number.
+     * @return The buffer.
+     */
+    public static StringBuilder appendShortest(StringBuilder out, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return out.append(value);
+        }
+        double magnitude = Math.abs(value);
+        int scale = shortestScale(magnitude);
+        if (scale < 0) {
+            return out.append(BigDecimal.valueOf(value).stripTrailingZeros().toPlainString());
+        }
+        if (Double.doubleToRawLongBits(value) < 0) out.append('-');
+        return appendDigits(out, Math.round(magnitude * DOUBLE_POWERS[scale]), scale);
+    }
+
+    /**
+     * Appends a number with the fewest decimals which parse back to exactly the same value, rounded half up to at
+     * most a number of decimals, e.g. to hide the representation error of sums. Zero is never signed.
+     *
+     * @param out The buffer to append to.
+     * @param value The number.
+     * @param maxDecimals The most decimals to append, up to {@link #MAX_DECIMALS}.
+     * @return The buffer.
+     */
+    public static StringBuilder appendShortest(StringBuilder out, double value, int maxDecimals) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return out.append(value);
+        }
+        int scale = shortestScale(Math.abs(value));
+        if (scale >= 0 && scale <= maxDecimals) {
+            return appendShortest(out, value == 0 ? 0.0 : value);
+        }
+
+        int start = out.length();
+        appendFixed(out, value, maxDecimals);
+        if (maxDecimals > 0) {
+            int end = out.length();
+            while (out.charAt(end - 1) == '0') end--;
+            if (out.charAt(end - 1) == '.') end--;
+            out.setLength(end);
+        }
+        if (out.length() == start + 2 && out.charAt(start) == '-' && out.charAt(start + 1) == '0') {
+            out.deleteCharAt(start);
+        }
+        return out;
+    }
+
+    /**
+     * Finds the fewest decimals of a decimal which parses back to a value, or -1 if it is too large or has too many
+     * digits to be found exactly with doubles.
+     */
+    private static int shortestScale(double magnitude) {
+        for (int scale = 0; scale <= MAX_SHORTEST_DECIMALS; scale++) {
+            double scaled = magnitude * DOUBLE_POWERS[scale];
+            if (scaled >= EXACT_LIMIT) {
+                return -1;
+            }
+            if (Math.round(scaled) / DOUBLE_POWERS[scale] == magnitude) {
+                return scale;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Appends an unsigned integer of digits as a decimal with the given number of decimals.
+     */
+    private static StringBuilder appendDigits(StringBuilder out, long digits, int decimals) {
+        if (decimals == 0) {
+            return out.append(digits);
+        }
+        long unit = LONG_POWERS[decimals];
+        out.append(digits / unit).append('.');
+        long fraction = digits % unit;
+        for (long place = unit / 10; place > 0; place /= 10) {
+            out.append((char) ('0' + fraction / place % 10));
+        }
+        return out;
+    }
+
+    /**
+     * Parses a cell which is not a plain decimal, allocating as needed.
+     */
+    private static double parseSlowly(CharSequence cell, int start, int end) {
+        String text = cell.subSequence(start, end).toString().trim();
+        boolean negative = text.startsWith("(") && text.endsWith(")");
+        if (negative) {
+            text = text.substring(1, text.length() - 1);
+        }
+        text = text.replace(",", "").replace("%", "").trim();
+        if (text.isEmpty()) {
+            return Double.NaN;
+        }
+        try {
+            double value = Double.parseDouble(text);
+            return negative ? -value : value;
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Formats a number too large or too small for exact long arithmetic, as the formatter does.
+     */
+    private static StringBuilder appendSlowly(StringBuilder out, double value, int decimals) {
+        if (Double.doubleToRawLongBits(value) < 0) out.append('-');
+        return out.append(new BigDecimal(Double.toString(Math.abs(value))).setScale(decimals, RoundingMode.HALF_UP)
+                .toPlainString());
+    }
+
+}
@@ -0,0 +1,194 @@
+package dataprocessing;
+
+import dataprocessing.reportpage.Unchanged;
+import misc.Report;
+import misc.ReportPage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * The processing plan for one report layout: its report type, and the handler of each of its sections, resolved
+ * once. A layout is identified by a fingerprint of its section names and first (header) rows, in report order, which
+ * is hashed from the page bytes without decoding them. Plans are cached by fingerprint, so reports with a known
+ * layout skip the handler lookups, and sections whose handlers pass their data through unchanged are not decoded.
+ * A report whose sections all have handlers is of the DEFAULT layout the handlers were written for; a report with
+ * any other section is CUSTOM. Compiling a plan also checks each section's header for schema drift against the last
+ * header recorded for the same sections, unless handler state is isolated (replays and training runs).
+ */
+public class ProcessingPlan {
+
+    // Logger for this class
+    private static final Logger logger = LoggerFactory.getLogger(ProcessingPlan.class);
+
+    /* Sections describing the report rather than holding data, which do not decide its type */
+    private static final String INTRODUCTION_PAGE = "Introduction";
+    /* The cache is cleared if it grows past this many layouts */
+    private static final int MAX_LAYOUTS = 256;
+    /* FNV-1a 64-bit hash parameters */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final Map<Long, ProcessingPlan> plans = new ConcurrentHashMap<>();
+
+    private final long fingerprint;
+    private final Report.ReportType type;
+    private final String[] sections;
+    /* Handler of each section, in report order, or null if the section passes through unchanged */
+    private final ReportPageProcessor[] handlers;
+
+    private ProcessingPlan(long fingerprint, Report.ReportType type, String[] sections,
+                           ReportPageProcessor[] handlers) {
+        this.fingerprint = fingerprint;
+        this.type = type;
+        this.sections = sections;
+        this.handlers = handlers;
+    }
+
+    /**
+     * Gets the plan for a report's layout, compiling it if the layout has not been seen before.
+     *
+     * @param report The report, before processing.
+     * @return The plan for the report's layout.
+     */
+    public static ProcessingPlan forReport(Report report) {
+        long fingerprint = fingerprint(report);
+        ProcessingPlan plan = plans.get(fingerprint);
+        if (plan != null && plan.matches(report)) {
+            return plan;
+        }
+
+        plan = compile(fingerprint, report);
+        if (plans.size() >= MAX_LAYOUTS) {
+            plans.clear();
+        }
+        plans.put(fingerprint, plan);
+        logger.info("Compiled processing plan for new {} layout {}", plan.type, plan.getLayoutId());
+        return plan;
+    }
+
+    public Report.ReportType getType() {
+        return this.type;
+    }
+
+    /**
+     * @return The layout's fingerprint, as hexadecimal.
+     */
+    public String getLayoutId() {
+        return String.format("%016x", this.fingerprint);
+    }
+
+    /**
+     * Gets the handler of a section.
+     *
+     * @param index The index of the section in the report.
+     * @return The handler, or null if the section is passed through unchanged.
+     */
+    public ReportPageProcessor getHandler(int index) {
+        return this.handlers[index];
+    }
+
+    /**
+     * Resolves the handler of each section. Handlers are never run here: a section passes through only if its
+     * handler is marked as pass-through, so the plan holds for every report of the layout whatever its data.
+     */
+    private static ProcessingPlan compile(long fingerprint, Report report) {
+        int count = report.getPages().size();
+        String[] sections = new String[count];
+        ReportPageProcessor[] handlers = new ReportPageProcessor[count];
+        boolean allHandled = true;
+        int passThrough = 0;
+        Map<String, String[]> headers = new LinkedHashMap<>();
+
+        for (int i = 0; i < count; i++) {
+            ReportPage page = report.getPages().get(i);
+            sections[i] = page.getName();
+            if (page.getName().equals("")) continue;
+            String[] header = firstHeader(page);
+            if (header != null) headers.put(page.getName(), header);
+
+            ReportPageProcessor handler = ProcessingFactory.getHandler(page.getName());
+            if (handler instanceof Unchanged) {
+                allHandled &= page.getName().equals(INTRODUCTION_PAGE);
+            }
+            if (handler.isPassThrough()) {
+                passThrough++;
+                continue;
+            }
+            handlers[i] = handler;
+        }
+        if (!ReportProcessor.isStateIsolated()) {
+            SectionSchema.checkDrift(String.format("%016x", sectionsFingerprint(sections)), headers);
+        }
+        logger.debug("Plan has {} sections, {} passed through", count, passThrough);
+        return new ProcessingPlan(fingerprint, allHandled ? Report.ReportType.DEFAULT : Report.ReportType.CUSTOM,
+                sections, handlers);
+    }
+
+    /**
+     * @return The cells of a page's first row if it is a header row, without the page name and row type, or null.
+     */
+    private static String[] firstHeader(ReportPage page) {
+        ByteBuffer csv = page.getCSV();
+        int start = csv.position();
+        int end = start;
+        while (end < csv.limit() && csv.get(end) != '\n') end++;
+        byte[] row = new byte[end - start];
+        csv.get(row);
+        String[] cells = SectionTable.splitRow(new String(row, StandardCharsets.UTF_8));
+        if (cells.length < 2 || !cells[1].equals(SectionTable.HEADER_ROW)) {
+            return null;
+        }
+        return Arrays.copyOfRange(cells, 2, cells.length);
+    }
+
+    /**
+     * Guards against fingerprint collisions by comparing section names.
+     */
+    private boolean matches(Report report) {
+        if (report.getPages().size() != this.sections.length) return false;
+        for (int i = 0; i < this.sections.length; i++) {
+            if (!report.getPages().get(i).getName().equals(this.sections[i])) return false;
+        }
+        return true;
+    }
+
+    /**
+     * FNV-1a hash of the section names alone. Unlike the layout fingerprint, it does not change when a header drifts,
+     * so it tells apart the layouts whose headers are compared for drift.
+     */
+    private static long sectionsFingerprint(String[] sections) {
+        long hash = FNV_OFFSET;
+        for (String section : sections) {
+            for (byte b : section.getBytes(StandardCharsets.UTF_8)) {
+                hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+            }
+            hash = (hash ^ '\n') * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * FNV-1a hash of the first row of each page, which starts with the page name.
+     */
+    private static long fingerprint(Report report) {
+        long hash = FNV_OFFSET;
+        for (ReportPage page : report.getPages()) {
+            ByteBuffer csv = page.getCSV();
+            while (csv.hasRemaining()) {
+                byte b = csv.get();
+                hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+                if (b == '\n') break;
+            }
+        }
+        return hash;
+    }
+
+}
@@ -0,0 +1,66 @@
+package dataprocessing;
+
+import misc.Report;
+import misc.ReportPage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * The report currently being processed, as seen by report page handlers. Gives handlers read access to the
+ * original (unprocessed) data of every page, so calculations can combine several pages. Page data and tables are
+ * decoded once per report, however many handlers ask for them. Pages spilled to disk are not held on the heap:
+ * their data is decoded for each request, and their tables are views which decode rows as they are read.
+ */
+public class ReportContext {
+
+    private final Report report;
+    private final Map<String, String> pageData = new HashMap<>();
+    private final Map<String, SectionTable> tables = new HashMap<>();
+
+    public ReportContext(Report report) {
+        this.report = report;
+    }
+
+    public Report getReport() {
+        return this.report;
+    }
+
+    /**
+     * Gets the original data of a page.
+     *
+     * @param name The name of the page.
+     * @return The page data without the page name, or null if the report has no such page.
+     */
+    public String getPageData(String name) {
+        if (!this.pageData.containsKey(name)) {
+            ReportPage page = this.report.getPage(name);
+            if (page != null && !page.isOnHeap()) {
+                return page.getData();
+            }
+            this.pageData.put(name, page == null ? null : page.getData());
+        }
+        return this.pageData.get(name);
+    }
+
+    /**
+     * Gets the original data of a page as a table.
+     *
+     * @param name The name of the page.
+     * @return The page table, or null if the report has no such page.
+     */
+    public SectionTable getTable(String name) {
+        if (!this.tables.containsKey(name)) {
+            ReportPage page = this.report.getPage(name);
+            if (page != null && !page.isOnHeap()) {
+                this.tables.put(name, SectionTable.view(page));
+            } else {
+                String data = getPageData(name);
+                this.tables.put(name, data == null ? null : SectionTable.parse(data));
+            }
+        }
+        return this.tables.get(name);
+    }
+
+}
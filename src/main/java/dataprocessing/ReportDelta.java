@@ -0,0 +1,356 @@
+package dataprocessing;
+
+import misc.Report;
+import misc.ReportPage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+
+/**
+ * Compares a report with the previous report of the same account, section by section, and gives the rows which were
+ * inserted, updated or deleted. Rows are matched on the section's natural key: the key columns of its schema, such
+ * as account, date and symbol, less the as-of date of snapshot sections. Each previous row is reduced to a 64-bit fingerprint of its cells in a hash table
+ * keyed by natural key, and each current row is looked up in it once, so a section is compared in linear time.
+ */
+public class ReportDelta {
+
+    // Logger for this class
+    private static final Logger logger = LoggerFactory.getLogger(ReportDelta.class);
+
+    /* Separates the cells of a composite key, and a repeated key from its occurrence number */
+    private static final char KEY_SEPARATOR = '\u001F';
+    /* FNV-1a 64-bit hash parameters */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * How a row changed.
+     */
+    public enum Kind {
+        INSERTED, UPDATED, DELETED
+    }
+
+    /**
+     * A changed row: its natural key, and its cells before and after (null when inserted or deleted respectively).
+     */
+    public static class Change {
+
+        private final Kind kind;
+        private final String key;
+        private final String[] before;
+        private final String[] after;
+
+        private Change(Kind kind, String key, String[] before, String[] after) {
+            this.kind = kind;
+            this.key = key;
+            this.before = before;
+            this.after = after;
+        }
+
+        public Kind getKind() {
+            return this.kind;
+        }
+
+        /**
+         * @return The key cells, joined with ' / '.
+         */
+        public String getKey() {
+            return this.key.replace(String.valueOf(KEY_SEPARATOR), " / ");
+        }
+
+        public String[] getBefore() {
+            return this.before;
+        }
+
+        public String[] getAfter() {
+            return this.after;
+        }
+
+    }
+
+    /**
+     * The changes to one section.
+     */
+    public static class SectionDelta {
+
+        private final String section;
+        private final String[] header;
+        private final boolean schemaChanged;
+        private final List<Change> changes;
+        private final int[] counts = new int[Kind.values().length];
+
+        private SectionDelta(String section, String[] header, boolean schemaChanged, List<Change> changes) {
+            this.section = section;
+            this.header = header;
+            this.schemaChanged = schemaChanged;
+            this.changes = changes;
+            for (Change change : changes) {
+                this.counts[change.kind.ordinal()]++;
+            }
+        }
+
+        public String getSection() {
+            return this.section;
+        }
+
+        /**
+         * @return The columns of the current section, or of the previous one if the section was removed.
+         */
+        public String[] getHeader() {
+            return this.header.clone();
+        }
+
+        /**
+         * @return Whether the section's columns changed, in which case every row is deleted and inserted again.
+         */
+        public boolean isSchemaChanged() {
+            return this.schemaChanged;
+        }
+
+        public List<Change> getChanges() {
+            return Collections.unmodifiableList(this.changes);
+        }
+
+        public int getCount(Kind kind) {
+            return this.counts[kind.ordinal()];
+        }
+
+    }
+
+    /**
+     * The changes between two reports, for the sections which changed.
+     */
+    public static class Changeset {
+
+        private final String previousDate;
+        private final String currentDate;
+        private final List<SectionDelta> sections;
+
+        private Changeset(String previousDate, String currentDate, List<SectionDelta> sections) {
+            this.previousDate = previousDate;
+            this.currentDate = currentDate;
+            this.sections = sections;
+        }
+
+        public String getPreviousDate() {
+            return this.previousDate;
+        }
+
+        public String getCurrentDate() {
+            return this.currentDate;
+        }
+
+        public List<SectionDelta> getSections() {
+            return Collections.unmodifiableList(this.sections);
+        }
+
+        public boolean isEmpty() {
+            return this.sections.isEmpty();
+        }
+
+        /**
+         * @return The changes as CSV: for each section, a header row of 'Section,Change,Key' and its columns, then
+         * one row per changed row with its current cells, or its previous cells if it was deleted.
+         */
+        public String toCSV() {
+            StringBuilder csv = new StringBuilder();
+            for (SectionDelta delta : this.sections) {
+                csv.append("Section,Change,Key");
+                for (String column : delta.header) {
+                    csv.append(',').append(SectionTable.quote(column.trim()));
+                }
+                csv.append('\n');
+                for (Change change : delta.changes) {
+                    csv.append(SectionTable.quote(delta.section))
+                            .append(',').append(change.kind)
+                            .append(',').append(SectionTable.quote(change.getKey()));
+                    for (String cell : change.after != null ? change.after : change.before) {
+                        csv.append(',').append(SectionTable.quote(cell.trim()));
+                    }
+                    csv.append('\n');
+                }
+            }
+            return csv.toString();
+        }
+
+    }
+
+    /**
+     * Compares two reports of the same account, section by section.
+     *
+     * @param previous The earlier report.
+     * @param current The later report.
+     * @return The changes, with sections in the order of the current report followed by removed sections.
+     */
+    public static Changeset compare(Report previous, Report current) {
+        long start = System.nanoTime();
+        Map<String, ReportPage> previousPages = new LinkedHashMap<>();
+        for (ReportPage page : previous.getPages()) {
+            previousPages.putIfAbsent(page.getName(), page);
+        }
+
+        List<SectionDelta> sections = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (ReportPage page : current.getPages()) {
+            if (!seen.add(page.getName())) continue;
+            ReportPage previousPage = previousPages.get(page.getName());
+            SectionDelta delta = compareSection(page.getName(),
+                    previousPage == null ? null : SectionTable.parse(previousPage.getData()),
+                    SectionTable.parse(page.getData()));
+            if (!delta.changes.isEmpty()) sections.add(delta);
+        }
+        for (Map.Entry<String, ReportPage> removed : previousPages.entrySet()) {
+            if (seen.contains(removed.getKey())) continue;
+            SectionDelta delta = compareSection(removed.getKey(), SectionTable.parse(removed.getValue().getData()),
+                    null);
+            if (!delta.changes.isEmpty()) sections.add(delta);
+        }
+
+        logger.debug("Compared reports dated {} and {}: {} sections changed in {} ms", previous.getEntireDate(),
+                current.getEntireDate(), sections.size(), (System.nanoTime() - start) / 1_000_000);
+        return new Changeset(previous.getEntireDate(), current.getEntireDate(), sections);
+    }
+
+    /**
+     * Compares two versions of a section.
+     *
+     * @param section The section name.
+     * @param previous The earlier section, or null if it was added.
+     * @param current The later section, or null if it was removed.
+     * @return The changes to the section, with updated and inserted rows in current order, then deleted rows in
+     * previous order.
+     */
+    public static SectionDelta compareSection(String section, SectionTable previous, SectionTable current) {
+        String[] header = current != null ? current.getHeader() : previous.getHeader();
+        List<Change> changes = new ArrayList<>();
+        boolean schemaChanged = previous != null && current != null
+                && !Arrays.equals(trim(previous.getHeader()), trim(current.getHeader()));
+        if (previous == null || current == null || schemaChanged) {
+            if (current != null) {
+                String[] keys = keys(current, current.getSchema().getKeyColumns());
+                for (int i = 0; i < keys.length; i++) {
+                    changes.add(new Change(Kind.INSERTED, keys[i], null, current.getRows().get(i)));
+                }
+            }
+            if (previous != null) {
+                String[] keys = keys(previous, previous.getSchema().getKeyColumns());
+                for (int i = 0; i < keys.length; i++) {
+                    changes.add(new Change(Kind.DELETED, keys[i], previous.getRows().get(i), null));
+                }
+            }
+            return new SectionDelta(section, header, schemaChanged, changes);
+        }
+
+        // The as-of date of a snapshot section is neither matched on nor compared
+        int asOf = getAsOfColumn(previous, current);
+        int[] keyColumns = Arrays.stream(current.getSchema().getKeyColumns()).filter(column -> column != asOf)
+                .toArray();
+        String[] previousKeys = keys(previous, keyColumns);
+        List<String[]> previousRows = previous.getRows();
+        long[] fingerprints = new long[previousRows.size()];
+        Map<String, Integer> previousIndex = new HashMap<>(previousRows.size() * 2);
+        for (int i = 0; i < fingerprints.length; i++) {
+            fingerprints[i] = fingerprint(previousRows.get(i), asOf);
+            previousIndex.put(previousKeys[i], i);
+        }
+
+        boolean[] matched = new boolean[fingerprints.length];
+        String[] currentKeys = keys(current, keyColumns);
+        List<String[]> currentRows = current.getRows();
+        for (int i = 0; i < currentKeys.length; i++) {
+            Integer match = previousIndex.get(currentKeys[i]);
+            if (match == null) {
+                changes.add(new Change(Kind.INSERTED, currentKeys[i], null, currentRows.get(i)));
+                continue;
+            }
+            matched[match] = true;
+            if (fingerprints[match] != fingerprint(currentRows.get(i), asOf)) {
+                changes.add(new Change(Kind.UPDATED, currentKeys[i], previousRows.get(match), currentRows.get(i)));
+            }
+        }
+        for (int i = 0; i < matched.length; i++) {
+            if (!matched[i]) changes.add(new Change(Kind.DELETED, previousKeys[i], previousRows.get(i), null));
+        }
+        return new SectionDelta(section, header, false, changes);
+    }
+
+    /**
+     * Finds the as-of date column of a snapshot section: a date key column which holds a single date in each version
+     * of the section. Snapshot sections, such as Open Position Summary, repeat the report's date in every row, so
+     * matching rows on it would show each changed row as deleted and inserted rather than updated, and comparing it
+     * would show every row as updated. A date which is the only key column is not treated as an as-of date.
+     *
+     * @return The column index, or -1 if the section has no as-of date column.
+     */
+    private static int getAsOfColumn(SectionTable previous, SectionTable current) {
+        int[] keyColumns = current.getSchema().getKeyColumns();
+        int date = current.getColumn("Date");
+        if (keyColumns.length < 2 || date < 0 || Arrays.stream(keyColumns).noneMatch(column -> column == date)) {
+            return -1;
+        }
+        return isConstant(previous, date) && isConstant(current, date) ? date : -1;
+    }
+
+    private static boolean isConstant(SectionTable table, int column) {
+        String value = null;
+        for (String[] row : table.getRows()) {
+            String cell = SectionTable.getCell(row, column).trim();
+            if (value == null) {
+                value = cell;
+            } else if (!value.equals(cell)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the key of each row. A key repeated within the section is numbered by its occurrence, so repeated
+     * rows are matched in order.
+     */
+    private static String[] keys(SectionTable table, int[] keyColumns) {
+        List<String[]> rows = table.getRows();
+        String[] keys = new String[rows.size()];
+        Map<String, Integer> occurrences = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            StringBuilder key = new StringBuilder();
+            for (int c = 0; c < keyColumns.length; c++) {
+                if (c > 0) key.append(KEY_SEPARATOR);
+                key.append(SectionTable.getCell(rows.get(i), keyColumns[c]).trim());
+            }
+            String base = key.toString();
+            int occurrence = occurrences.merge(base, 1, Integer::sum);
+            keys[i] = occurrence == 1 ? base : base + KEY_SEPARATOR + "#" + occurrence;
+        }
+        return keys;
+    }
+
+    /**
+     * FNV-1a hash of a row's trimmed cells, with a separator after each cell.
+     *
+     * @param ignored A column left out of the hash, or -1.
+     */
+    private static long fingerprint(String[] row, int ignored) {
+        long hash = FNV_OFFSET;
+        for (int c = 0; c < row.length; c++) {
+            if (c == ignored) continue;
+            String trimmed = row[c].trim();
+            for (int i = 0; i < trimmed.length(); i++) {
+                hash = (hash ^ trimmed.charAt(i)) * FNV_PRIME;
+            }
+            hash = (hash ^ KEY_SEPARATOR) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static String[] trim(String[] cells) {
+        String[] trimmed = new String[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            trimmed[i] = cells[i].trim();
+        }
+        return trimmed;
+    }
+
+}
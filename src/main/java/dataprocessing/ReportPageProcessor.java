@@ -11,4 +11,26 @@ public interface ReportPageProcessor {
      */
     String processDataSection(String dataCSV);
 
+    /**
+     * Processes a report page with access to the rest of the report. Handlers which need data from other pages
+     * override this method; by default, only the page's own data is processed.
+     *
+     * @param dataCSV A subset of CSV data to be processed.
+     * @param context The report being processed, giving access to its other pages.
+     * @return A copy of the data after being processed.
+     */
+    default String processDataSection(String dataCSV, ReportContext context) {
+        return processDataSection(dataCSV);
+    }
+
+    /**
+     * Marks handlers which always return their data unchanged, whatever it holds, so their sections can be copied
+     * through without being decoded or processed.
+     *
+     * @return True if the handler never changes its section.
+     */
+    default boolean isPassThrough() {
+        return false;
+    }
+
 }
@@ -1,9 +1,21 @@
 package dataprocessing;
 
 import misc.Report;
+import misc.ReportPage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
 import java.util.*;
 
 
@@ -15,85 +27,270 @@ public class ReportProcessor {
     // Logger for this class
     private static final Logger logger = LoggerFactory.getLogger(ReportProcessor.class);
 
+    /* Directory where handlers keep state between runs, relative to the working directory */
+    public static final String STATE_DIRECTORY = "analytics-state";
+
+    /* Directory handlers keep their state in: STATE_DIRECTORY, or a temporary directory while state is isolated */
+    private static volatile Path stateDirectory = Paths.get(STATE_DIRECTORY);
+    private static volatile boolean stateIsolated;
+
+    /**
+     * @return The directory handlers keep their state in.
+     */
+    public static Path getStateDirectory() {
+        return stateDirectory;
+    }
+
+    /**
+     * @return True if handler state is kept in a temporary directory, so the reports processed are not live ones.
+     */
+    public static boolean isStateIsolated() {
+        return stateIsolated;
+    }
+
+    /**
+     * Keeps handler state in a new, empty temporary directory until `restoreState` is called, so that runs which are
+     * not processing new reports (replays, training) neither read nor change the state saved by live runs.
+     *
+     * @param prefix The prefix of the temporary directory's name.
+     * @return The temporary directory.
+     * @throws IOException If the directory cannot be created.
+     */
+    public static synchronized Path isolateState(String prefix) throws IOException {
+        Path directory = Files.createTempDirectory(prefix);
+        stateDirectory = directory;
+        stateIsolated = true;
+        logger.info("Keeping handler state in temporary directory {}", directory);
+        return directory;
+    }
+
     /**
-     * Processes the report by applying calculations to each section (report page).
+     * Goes back to keeping handler state in STATE_DIRECTORY, and deletes the temporary state directory.
+     */
+    public static synchronized void restoreState() {
+        Path directory = stateDirectory;
+        stateDirectory = Paths.get(STATE_DIRECTORY);
+        if (!stateIsolated) {
+            return;
+        }
+        stateIsolated = false;
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            logger.warn("Unable to delete temporary state directory {}", directory);
+            logger.warn(e.toString());
+        }
+        if (Files.exists(directory)) {
+            logger.warn("Temporary state directory {} could not be fully deleted", directory);
+        }
+    }
+
+    /**
+     * Processes the report by applying calculations to each section (report page), then adds the sections derived
+     * from joining several pages. Processed pages which would take the report's page data on the heap over the
+     * memory budget are spilled to disk (see `SpillFile`).
      *
      * @param report The report with a CSV to process.
      * @return The report with processing/calculations applied.
      */
     public static Report processData(Report report) {
-        StringBuilder newCSV = new StringBuilder();
+        List<ReportPage> newPages = new ArrayList<>();
+        // Bytes of page data on the heap: the original pages, which are kept until processing ends, and new pages
+        long onHeap = 0;
+        for (ReportPage page : report.getPages()) {
+            if (page.isOnHeap()) onHeap += page.getLength();
+        }
 
         String name = report.getName();
-        Report.ReportType type = report.getType();
-        String dataCSV = report.getCSV();
-
-        Map<String, String> pageMap = getPages(dataCSV);
-        for (Map.Entry<String, String> reportPage : pageMap.entrySet()) {
-            // Get name and data of the current report page
-            String category = reportPage.getKey();
-            String data = reportPage.getValue();
+        // Classify the report's layout, and get its handlers
+        ProcessingPlan plan = ProcessingPlan.forReport(report);
+        report.setType(plan.getType());
+        // Gives handlers access to the original data of every page
+        ReportContext context = new ReportContext(report);
 
+        List<ReportPage> pages = report.getPages();
+        for (int i = 0; i < pages.size(); i++) {
+            // Get name of the current report page
+            ReportPage reportPage = pages.get(i);
+            String category = reportPage.getName();
             if (category.equals("")) continue;
 
+            // Sections without calculations are linked in without being decoded
+            ReportPageProcessor handler = plan.getHandler(i);
+            if (handler == null) {
+                newPages.add(reportPage);
+                continue;
+            }
+
             // Process the data for the current report page
             logger.info("Processing section: '{}'", category);
-            String processedData = (ProcessingFactory.getHandler(category))
-                    .processDataSection(data);
+            String data = reportPage.getData();
+            String processedData = handler.processDataSection(data, context);
+
+            // Keep the original page if the handler returned its data unchanged, so its bytes are not copied
+            if (processedData == data) {
+                newPages.add(reportPage);
+                continue;
+            }
+            ReportPage processedPage = withinBudget(ReportPage.fromData(category, processedData), onHeap);
+            if (processedPage.isOnHeap()) onHeap += processedPage.getLength();
+            newPages.add(processedPage);
+        }
 
-            // Append processed report page to new CSV string
-            newCSV.append(reconstructFormat(category, processedData));
+        // Add the sections derived by joining the report's original pages
+        List<ReportPage> derivedPages = DerivedSections.createPages(context);
+        if (!derivedPages.isEmpty()) {
+            logger.info("Adding {} derived sections", derivedPages.size());
+            for (ReportPage derivedPage : derivedPages) {
+                ReportPage page = withinBudget(derivedPage, onHeap);
+                if (page.isOnHeap()) onHeap += page.getLength();
+                newPages.add(page);
+            }
         }
 
-        report.setCSV(newCSV.toString());
-        logger.info("Finished processing report: '{}'", name);
+        report.setPages(newPages);
+        logger.info("Finished processing {} report: '{}'", report.getType(), name);
         return report;
     }
 
+    /**
+     * Spills a new page to disk if keeping it on the heap would exceed the memory budget.
+     *
+     * @param page The new page, on the heap.
+     * @param onHeap The bytes of the report's page data already on the heap.
+     * @return The page, or an equal page backed by a spill file.
+     */
+    private static ReportPage withinBudget(ReportPage page, long onHeap) {
+        if (onHeap + page.getLength() <= SpillFile.getBudget()) {
+            return page;
+        }
+        try {
+            return SpillFile.spill(page);
+        } catch (IOException e) {
+            // The page is kept on the heap, which may still fit
+            logger.warn("Unable to spill page '{}' to disk, keeping it in memory", page.getName());
+            logger.warn(e.toString());
+            return page;
+        }
+    }
+
     /**
      * Reads and returns the report pages (sections) from a report CSV.
      *
      * @param reportCSV The CSV to read report pages from.
-     * @return A HashMap of report page name to report page data.
-     * Data is a string of the form: cells delimited by ',' and rows delimited by '\n'.
+     * @return The report pages, in the order each page first appears in the CSV.
+     */
+    public static List<ReportPage> getPages(String reportCSV) {
+        try {
+            return getPages(new StringReader(reportCSV));
+        } catch (IOException e) {
+            // StringReader does not throw
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads the report pages (sections) from a stream of report CSV, routing each row to its page as it is read.
+     * Rows are stored once, as UTF-8 bytes in their page, so the full CSV is never held in memory at once. When the
+     * pages read so far exceed the memory budget, the largest pages on the heap are spilled to disk, and their later
+     * rows are appended to their spill files.
+     *
+     * @param reportCSV The CSV to read report pages from. It is read to the end, but not closed.
+     * @return The report pages, in the order each page first appears in the CSV.
+     * @throws IOException If the CSV cannot be read.
      */
-    public static Map<String, String> getPages(String reportCSV) {
+    public static List<ReportPage> getPages(Reader reportCSV) throws IOException {
         // LinkedHashMap used to maintain order of report pages
-        Map<String, String> pages = new LinkedHashMap<>();
+        Map<String, PageBuffer> pages = new LinkedHashMap<>();
 
         logger.debug("Parsing report pages from CSV");
-        List<String> rows = new ArrayList<>(Arrays.asList(reportCSV.split("\n")));
-        for (String row : rows) {
-            List<String> cells = new ArrayList<>(Arrays.asList(row.split(",")));
+        BufferedReader reader = new BufferedReader(reportCSV);
+        long onHeap = 0;
+        String row;
+        try {
+            while ((row = reader.readLine()) != null) {
+                if (row.isEmpty()) continue;
 
-            // Get report page type and its data
-            String category = cells.remove(0);
-            String data = String.join(",", cells).concat("\n");
+                // Get report page type, and append the row to its page
+                int delimiter = row.indexOf(',');
+                String category = delimiter < 0 ? row : row.substring(0, delimiter);
+                PageBuffer page = pages.computeIfAbsent(category, PageBuffer::new);
+                onHeap += page.writeRow(delimiter < 0 ? row + ',' : row);
+                while (onHeap > SpillFile.getBudget()) {
+                    PageBuffer largest = pages.values().stream().max(Comparator.comparingInt(PageBuffer::size))
+                            .orElseThrow();
+                    if (largest.size() == 0) break;
+                    onHeap -= largest.spill();
+                }
+            }
 
-            // Update HashMap entry
-            String existing = pages.get(category);
-            pages.put(category, existing == null ? data : existing + data);
+            List<ReportPage> reportPages = new ArrayList<>(pages.size());
+            for (PageBuffer page : pages.values()) {
+                reportPages.add(page.toPage());
+            }
+            return reportPages;
+        } finally {
+            for (PageBuffer page : pages.values()) {
+                page.close();
+            }
         }
-
-        return pages;
     }
 
     /**
-     * Inserts the report page name at the start of each row (delimited by '\n').
-     *
-     * @param reportPageName The name of the report page.
-     * @param data The string CSV of data of the form: cells delimited by ',', and rows delimited by '\n'.
-     * @return A new string with each row's first cell being the report page name.
+     * Collects the UTF-8 rows of a page while a report is being read, and hands its buffer to the page unchanged.
+     * Once spilled, the rows are appended to a spill file instead.
      */
-    private static String reconstructFormat(String reportPageName, String data) {
-        StringBuilder newData = new StringBuilder();
+    private static class PageBuffer extends ByteArrayOutputStream {
+
+        private static final byte[] NEWLINE = {'\n'};
+
+        private final String name;
+        private SpillFile spill;
+
+        private PageBuffer(String name) {
+            super(1024);
+            this.name = name;
+        }
+
+        /**
+         * @return The number of bytes added to the heap.
+         */
+        private int writeRow(String row) throws IOException {
+            byte[] bytes = row.getBytes(StandardCharsets.UTF_8);
+            if (this.spill != null) {
+                this.spill.write(bytes, 0, bytes.length);
+                this.spill.write(NEWLINE, 0, 1);
+                return 0;
+            }
+            write(bytes, 0, bytes.length);
+            write('\n');
+            return bytes.length + 1;
+        }
+
+        /**
+         * Moves the rows collected so far to a spill file, and frees the buffer.
+         *
+         * @return The number of bytes removed from the heap.
+         */
+        private int spill() throws IOException {
+            int spilled = this.count;
+            this.spill = SpillFile.create();
+            this.spill.write(this.buf, 0, this.count);
+            this.buf = new byte[0];
+            this.count = 0;
+            logger.debug("Spilling page '{}' to disk after {} bytes", this.name, spilled);
+            return spilled;
+        }
+
+        private ReportPage toPage() throws IOException {
+            return this.spill != null ? this.spill.toPage(this.name) : ReportPage.wrap(this.name, this.buf, this.count);
+        }
 
-        List<String> rows = new ArrayList<>(Arrays.asList(data.split("\n")));
-        for (String row : rows) {
-            newData.append(reportPageName).append(',').append(row).append('\n');
+        @Override
+        public void close() throws IOException {
+            if (this.spill != null) this.spill.close();
         }
 
-        return newData.toString();
     }
 
 }
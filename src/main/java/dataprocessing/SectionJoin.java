@@ -0,0 +1,220 @@
+package dataprocessing;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Hash join of report pages onto the rows of a base page, on one or more key columns (e.g. symbol, or account and
+ * symbol). The base page's keys are dictionary-encoded once into dense int codes, in an open-addressing table of
+ * strings. Joined pages are then probed row by row, aggregated by code into primitive arrays, and mapped back to the
+ * base rows, so each join is linear in the rows of both pages. Keys of one or two identifier columns (e.g. symbol,
+ * or account and symbol) are made of the cells' process-wide `CellDictionary` codes instead, so no key strings are
+ * built or hashed.
+ */
+public class SectionJoin {
+
+    /* Separates the cells of a composite key */
+    private static final char KEY_SEPARATOR = '\u001F';
+
+    /* Keys as strings, or as dictionary codes (exactly one is set) */
+    private final KeyDictionary dictionary;
+    private final CellDictionary.CodeIndex index;
+    /* Code of the key of each base row */
+    private final int[] baseCodes;
+
+    private SectionJoin(int[] baseCodes, boolean encoded) {
+        this.baseCodes = baseCodes;
+        this.dictionary = encoded ? null : new KeyDictionary();
+        this.index = encoded ? new CellDictionary.CodeIndex() : null;
+    }
+
+    /**
+     * Encodes the keys of a base page.
+     *
+     * @param base The base page.
+     * @param keyColumns The key columns of the base page.
+     * @return The join, with one output row per base data row.
+     */
+    public static SectionJoin on(SectionTable base, int... keyColumns) {
+        int[][] keyCodes = keyCodes(base, keyColumns);
+        SectionJoin join = new SectionJoin(new int[base.getRows().size()], keyCodes != null);
+        int row = 0;
+        for (String[] cells : base.getRows()) {
+            join.baseCodes[row] = keyCodes != null ? join.index.add(key(keyCodes, row))
+                    : join.dictionary.encode(key(cells, keyColumns));
+            row++;
+        }
+        return join;
+    }
+
+    /**
+     * Sums a column of a joined page for each base row.
+     *
+     * @param table The joined page.
+     * @param keyColumns The key columns of the joined page, in the same order as the base page's.
+     * @param valueColumn The column to sum.
+     * @return The sum for each base row, or NaN where no row of the joined page matched.
+     */
+    public double[] sum(SectionTable table, int[] keyColumns, int valueColumn) {
+        double[] totals = new double[getKeyCount()];
+        Arrays.fill(totals, Double.NaN);
+        int[][] keyCodes = this.index != null ? probeCodes(table, keyColumns) : null;
+        int row = 0;
+        for (String[] cells : table.getRows()) {
+            int code = find(cells, keyColumns, keyCodes, row++);
+            double value = SectionTable.parseNumber(SectionTable.getCell(cells, valueColumn));
+            if (code < 0 || Double.isNaN(value)) continue;
+            totals[code] = Double.isNaN(totals[code]) ? value : totals[code] + value;
+        }
+        double[] joined = new double[this.baseCodes.length];
+        for (int i = 0; i < joined.length; i++) {
+            joined[i] = totals[this.baseCodes[i]];
+        }
+        return joined;
+    }
+
+    /**
+     * Takes a column of a joined page from its first matching row, for each base row.
+     *
+     * @param table The joined page.
+     * @param keyColumns The key columns of the joined page, in the same order as the base page's.
+     * @param column The column to take.
+     * @return The cell for each base row, or null where no row of the joined page matched.
+     */
+    public String[] first(SectionTable table, int[] keyColumns, int column) {
+        String[] cells = new String[getKeyCount()];
+        int[][] keyCodes = this.index != null ? probeCodes(table, keyColumns) : null;
+        int position = 0;
+        for (String[] row : table.getRows()) {
+            int code = find(row, keyColumns, keyCodes, position++);
+            if (code >= 0 && cells[code] == null) {
+                cells[code] = SectionTable.getCell(row, column);
+            }
+        }
+        String[] joined = new String[this.baseCodes.length];
+        for (int i = 0; i < joined.length; i++) {
+            joined[i] = cells[this.baseCodes[i]];
+        }
+        return joined;
+    }
+
+    /**
+     * @return The number of distinct keys in the base page.
+     */
+    public int getKeyCount() {
+        return this.index != null ? this.index.size() : this.dictionary.size();
+    }
+
+    private int find(String[] cells, int[] keyColumns, int[][] keyCodes, int row) {
+        return keyCodes != null ? this.index.find(key(keyCodes, row)) : this.dictionary.find(key(cells, keyColumns));
+    }
+
+    /**
+     * Gets the dictionary codes of a base page's key columns.
+     *
+     * @return The codes of each key column, or null if the key has more than two columns or any of them is not an
+     * identifier column.
+     */
+    private static int[][] keyCodes(SectionTable table, int[] keyColumns) {
+        if (keyColumns.length == 0 || keyColumns.length > 2) return null;
+        int[][] codes = new int[keyColumns.length][];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = table.getCodes(keyColumns[i]);
+            if (codes[i] == null) return null;
+        }
+        return codes;
+    }
+
+    /**
+     * Gets the dictionary codes of a joined page's key columns. Cells of columns which are not identifier columns
+     * are looked up in the dictionary, and a cell which is not in it matches no base row.
+     */
+    private static int[][] probeCodes(SectionTable table, int[] keyColumns) {
+        int[][] codes = new int[keyColumns.length][];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = table.getCodes(keyColumns[i]);
+            if (codes[i] != null) continue;
+            List<String[]> rows = table.getRows();
+            codes[i] = new int[rows.size()];
+            for (int row = 0; row < codes[i].length; row++) {
+                codes[i][row] = CellDictionary.find(SectionTable.getCell(rows.get(row), keyColumns[i]).trim());
+            }
+        }
+        return codes;
+    }
+
+    private static long key(int[][] keyCodes, int row) {
+        return CellDictionary.CodeIndex.key(keyCodes[0][row], keyCodes.length > 1 ? keyCodes[1][row] : 0);
+    }
+
+    private static String key(String[] cells, int[] keyColumns) {
+        if (keyColumns.length == 1) {
+            return SectionTable.getCell(cells, keyColumns[0]).trim();
+        }
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < keyColumns.length; i++) {
+            if (i > 0) key.append(KEY_SEPARATOR);
+            key.append(SectionTable.getCell(cells, keyColumns[i]).trim());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Open-addressing table of strings to dense codes, with linear probing.
+     */
+    private static class KeyDictionary {
+
+        private String[] keys = new String[64];
+        private int[] codes = new int[64];
+        private int size;
+
+        private int slot(String key) {
+            int mask = this.keys.length - 1;
+            int hash = key.hashCode();
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (this.keys[slot] != null && !this.keys[slot].equals(key)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private int encode(String key) {
+            int slot = slot(key);
+            if (this.keys[slot] == null) {
+                if ((this.size + 1) * 2 > this.keys.length) {
+                    resize();
+                    slot = slot(key);
+                }
+                this.keys[slot] = key;
+                this.codes[slot] = this.size++;
+            }
+            return this.codes[slot];
+        }
+
+        private int find(String key) {
+            int slot = slot(key);
+            return this.keys[slot] == null ? -1 : this.codes[slot];
+        }
+
+        private int size() {
+            return this.size;
+        }
+
+        private void resize() {
+            String[] oldKeys = this.keys;
+            int[] oldCodes = this.codes;
+            this.keys = new String[oldKeys.length * 2];
+            this.codes = new int[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int slot = slot(oldKeys[i]);
+                    this.keys[slot] = oldKeys[i];
+                    this.codes[slot] = oldCodes[i];
+                }
+            }
+        }
+
+    }
+
+}
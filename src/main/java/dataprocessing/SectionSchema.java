@@ -0,0 +1,287 @@
+package dataprocessing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+
+/**
+ * The schema of a section: its columns, the type of each column, and the columns which identify a row. Schemas are
+ * cached by a hash of the header row, so each distinct header is indexed once however many reports and handlers
+ * parse it, and column lookups by name are hash lookups rather than scans of the header.
+ * The header of each section is also recorded between runs, per report layout, and a section whose columns differ
+ * from the last recorded ones for its layout is logged as schema drift, so a change to the PortfolioAnalyst format is
+ * reported rather than silently read from the wrong columns.
+ */
+public class SectionSchema {
+
+    // Logger for this class
+    private static final Logger logger = LoggerFactory.getLogger(SectionSchema.class);
+
+    /**
+     * The type of a column's values, inferred from the first rows seen with its header.
+     */
+    public enum Type {
+        UNKNOWN,
+        TEXT,
+        NUMBER,
+        DATE,
+    }
+
+    /* Columns which identify a row, in key order, where a section has them */
+    private static final List<String> KEY_COLUMNS = List.of("Account", "Date", "Symbol", "Benchmark",
+            "Asset Class", "Sector", "Currency", "Description");
+    /* Columns of identifiers repeated across rows and reports, which are dictionary-encoded (see `CellDictionary`) */
+    private static final Set<String> DICTIONARY_COLUMNS = Set.of("account", "symbol", "currency", "asset class",
+            "asset category", "financial instrument", "instrument", "region", "sector", "benchmark", "underlying");
+    /* Data rows sampled to infer column types */
+    private static final int TYPE_SAMPLE_ROWS = 100;
+    /* File of the last header seen for each section of each layout, under the state directory */
+    private static final String KNOWN_HEADERS_FILE = "schemas.txt";
+    /* Cells which mean "no value" rather than text */
+    private static final Set<String> EMPTY_CELLS = Set.of("", "--", "-", "N/A");
+    /* FNV-1a 64-bit hash parameters */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final Map<Long, SectionSchema> schemas = new ConcurrentHashMap<>();
+    /* Layout id and section name, separated by a tab, to the last recorded header row, loaded when first needed */
+    private static Map<String, String> knownHeaders;
+
+    private final String[] columns;
+    /* Lower-case column name to the index of its first occurrence */
+    private final Map<String, Integer> index;
+    /* Text searched for by `findColumn` to the column found, or -1 */
+    private final Map<String, Integer> searches = new ConcurrentHashMap<>();
+    private final int[] keyColumns;
+    private final int[] dictionaryColumns;
+    private volatile Type[] types;
+
+    private SectionSchema(String[] columns) {
+        this.columns = columns;
+        this.index = new HashMap<>(columns.length * 2);
+        for (int i = 0; i < columns.length; i++) {
+            this.index.putIfAbsent(columns[i].toLowerCase(Locale.ENGLISH), i);
+        }
+
+        List<Integer> keys = new ArrayList<>();
+        for (String name : KEY_COLUMNS) {
+            Integer column = this.index.get(name.toLowerCase(Locale.ENGLISH));
+            if (column != null) keys.add(column);
+        }
+        if (keys.isEmpty() && columns.length > 0) keys.add(0);
+        this.keyColumns = keys.stream().mapToInt(Integer::intValue).toArray();
+        this.dictionaryColumns = IntStream.range(0, columns.length)
+                .filter(i -> DICTIONARY_COLUMNS.contains(columns[i].toLowerCase(Locale.ENGLISH)))
+                .toArray();
+    }
+
+    /**
+     * Gets the schema of a header row, indexing it if it has not been seen before.
+     *
+     * @param header The cells of the header row, without the row type.
+     * @return The schema.
+     */
+    public static SectionSchema forHeader(String[] header) {
+        String[] columns = new String[header.length];
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < header.length; i++) {
+            columns[i] = header[i].trim();
+            for (int c = 0; c < columns[i].length(); c++) {
+                hash = (hash ^ columns[i].charAt(c)) * FNV_PRIME;
+            }
+            hash = (hash ^ ',') * FNV_PRIME;
+        }
+        SectionSchema schema = schemas.get(hash);
+        if (schema == null || !Arrays.equals(schema.columns, columns)) {
+            schema = new SectionSchema(columns);
+            schemas.put(hash, schema);
+        }
+        return schema;
+    }
+
+    /**
+     * @return The column names, trimmed.
+     */
+    public String[] getColumns() {
+        return this.columns.clone();
+    }
+
+    /**
+     * Finds a column by its exact name, ignoring case.
+     *
+     * @param name The column name.
+     * @return The column index, or -1 if there is no such column.
+     */
+    public int getColumn(String name) {
+        Integer column = this.index.get(name.trim().toLowerCase(Locale.ENGLISH));
+        return column == null ? -1 : column;
+    }
+
+    /**
+     * Finds the first column whose name contains the given text, ignoring case. Each text is only searched for once.
+     *
+     * @param text The text to search column names for.
+     * @return The column index, or -1 if there is no such column.
+     */
+    public int findColumn(String text) {
+        return this.searches.computeIfAbsent(text, key -> {
+            String lowerText = key.toLowerCase(Locale.ENGLISH);
+            for (int i = 0; i < this.columns.length; i++) {
+                if (this.columns[i].toLowerCase(Locale.ENGLISH).contains(lowerText)) {
+                    return i;
+                }
+            }
+            return -1;
+        });
+    }
+
+    /**
+     * @return The columns identifying a row: those of account, date, symbol, etc. the section has, or else its
+     * first column.
+     */
+    public int[] getKeyColumns() {
+        return this.keyColumns.clone();
+    }
+
+    /**
+     * @return The columns of identifiers, such as symbol, account and currency, whose cells are dictionary-encoded.
+     */
+    public int[] getDictionaryColumns() {
+        return this.dictionaryColumns.clone();
+    }
+
+    /**
+     * @param column The column index.
+     * @return The type of the column's values, or UNKNOWN if no rows have been seen or the column had no values.
+     */
+    public Type getType(int column) {
+        Type[] inferred = this.types;
+        return inferred == null || column < 0 || column >= inferred.length ? Type.UNKNOWN : inferred[column];
+    }
+
+    /**
+     * Infers the column types from the first rows parsed with this header. Later calls do nothing.
+     *
+     * @param rows The data rows of a section with this header.
+     */
+    void inferTypes(List<String[]> rows) {
+        if (this.types != null || rows.isEmpty()) {
+            return;
+        }
+        Type[] inferred = new Type[this.columns.length];
+        int sample = Math.min(rows.size(), TYPE_SAMPLE_ROWS);
+        for (int c = 0; c < inferred.length; c++) {
+            boolean allDates = true;
+            boolean allNumbers = true;
+            boolean any = false;
+            for (int r = 0; r < sample; r++) {
+                String cell = SectionTable.getCell(rows.get(r), c).trim();
+                if (EMPTY_CELLS.contains(cell)) continue;
+                any = true;
+                allDates &= SectionTable.parseDate(cell) != null;
+                allNumbers &= !Double.isNaN(SectionTable.parseNumber(cell));
+                if (!allDates && !allNumbers) break;
+            }
+            inferred[c] = !any ? Type.UNKNOWN : allDates ? Type.DATE : allNumbers ? Type.NUMBER : Type.TEXT;
+        }
+        this.types = inferred;
+    }
+
+    /**
+     * Compares the headers of a report's sections with the last ones recorded for the same sections of the same
+     * layout, logs any drift, and records them. Keeping headers per layout means reports of different layouts (e.g.
+     * DEFAULT and CUSTOM reports) are not compared with each other.
+     *
+     * @param layout The id of the report's layout, which must not change when its headers do.
+     * @param headers Section name to the cells of its header row, without the row type.
+     */
+    public static synchronized void checkDrift(String layout, Map<String, String[]> headers) {
+        if (knownHeaders == null) {
+            knownHeaders = loadKnownHeaders();
+        }
+        boolean changed = false;
+        for (Map.Entry<String, String[]> header : headers.entrySet()) {
+            String section = header.getKey();
+            String[] columns = forHeader(header.getValue()).columns;
+            StringBuilder row = new StringBuilder();
+            for (String column : columns) {
+                if (row.length() > 0) row.append(',');
+                row.append(SectionTable.quote(column));
+            }
+            String key = layout + '\t' + section;
+            String known = knownHeaders.get(key);
+            if (row.toString().equals(known)) continue;
+
+            if (known != null) {
+                List<String> before = Arrays.asList(SectionTable.splitRow(known));
+                List<String> after = Arrays.asList(columns);
+                List<String> added = new ArrayList<>(after);
+                added.removeAll(before);
+                List<String> removed = new ArrayList<>(before);
+                removed.removeAll(after);
+                if (added.isEmpty() && removed.isEmpty()) {
+                    logger.warn("Schema drift in section '{}': columns reordered from [{}] to [{}]", section, known,
+                            row);
+                } else {
+                    logger.warn("Schema drift in section '{}': columns added {}, removed {}", section, added,
+                            removed);
+                }
+            }
+            knownHeaders.put(key, row.toString());
+            changed = true;
+        }
+        if (changed) saveKnownHeaders();
+    }
+
+    private static Map<String, String> loadKnownHeaders() {
+        Map<String, String> headers = new TreeMap<>();
+        Path file = ReportProcessor.getStateDirectory().resolve(KNOWN_HEADERS_FILE);
+        if (!Files.exists(file)) {
+            return headers;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // Lines are the layout id, section name and header, separated by tabs
+                int sectionEnd = line.indexOf('\t', line.indexOf('\t') + 1);
+                if (sectionEnd > 0) {
+                    headers.put(line.substring(0, sectionEnd), line.substring(sectionEnd + 1));
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to load known section headers, drift will not be detected this run");
+            logger.warn(e.toString());
+        }
+        return headers;
+    }
+
+    private static void saveKnownHeaders() {
+        Path file = ReportProcessor.getStateDirectory().resolve(KNOWN_HEADERS_FILE);
+        try {
+            Files.createDirectories(file.getParent());
+            Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, String> header : knownHeaders.entrySet()) {
+                    writer.write(header.getKey() + '\t' + header.getValue());
+                    writer.newLine();
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Unable to save known section headers");
+            logger.warn(e.toString());
+        }
+    }
+
+}
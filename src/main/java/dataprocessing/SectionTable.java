@@ -0,0 +1,511 @@
+package dataprocessing;
+
+import misc.ReportPage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.RandomAccess;
+
+
+/**
+ * Read-only table view of a report page. PortfolioAnalyst pages start each row with its type ('Header', 'Data',
+ * 'Total', ...), followed by the cells of that row. The first 'Header' row names the columns, and 'Data' rows hold
+ * the values; column indexes below do not count the row type cell. Columns are looked up through the header's
+ * cached `SectionSchema`. Cells of identifier columns (symbol, account, currency, ...) are shared instances from the
+ * `CellDictionary`, and their int codes, for comparing them, are computed when first requested.
+ */
+public class SectionTable {
+
+    /* Row types used by PortfolioAnalyst pages */
+    public static final String HEADER_ROW = "Header";
+    public static final String DATA_ROW = "Data";
+
+    /* Date formats found in PortfolioAnalyst pages, chosen by the shape of a cell (see `getDateFormat`) */
+    private static final DateTimeFormatter BASIC_DATE = DateTimeFormatter.BASIC_ISO_DATE;
+    private static final DateTimeFormatter US_DATE = DateTimeFormatter.ofPattern("MM/dd/yyyy", Locale.ENGLISH);
+    private static final DateTimeFormatter ISO_DATE = DateTimeFormatter.ISO_LOCAL_DATE;
+
+    private final String[] header;
+    private final List<String[]> rows;
+    private final SectionSchema schema;
+    /* Types are only inferred from tables of every column */
+    private final boolean projected;
+    /* Whether each column is an identifier column, whose cells are dictionary-encoded */
+    private final boolean[] dictionary;
+    /* Dictionary code of each row's trimmed cell, by column, once requested; guarded by this table */
+    private final int[][] codes;
+    private final boolean[] encoded;
+    private boolean typesInferred;
+
+    private SectionTable(String[] header, List<String[]> rows, boolean projected) {
+        this.header = header;
+        this.rows = rows;
+        this.schema = SectionSchema.forHeader(header);
+        this.projected = projected;
+        this.dictionary = dictionaryColumns(this.schema, header.length);
+        this.codes = new int[header.length][];
+        this.encoded = new boolean[header.length];
+    }
+
+    private static boolean[] dictionaryColumns(SectionSchema schema, int width) {
+        boolean[] dictionary = new boolean[width];
+        for (int column : schema.getDictionaryColumns()) {
+            dictionary[column] = true;
+        }
+        return dictionary;
+    }
+
+    /**
+     * Replaces the cells of identifier columns in a row with the dictionary's instances.
+     */
+    private static String[] intern(String[] row, boolean[] dictionary) {
+        int width = Math.min(row.length, dictionary.length);
+        for (int column = 0; column < width; column++) {
+            if (dictionary[column] && row[column] != null) {
+                row[column] = CellDictionary.intern(row[column]);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Gets the codes of an identifier column's cells.
+     *
+     * @return The code of each row's trimmed cell, or null if no row has the column (e.g. it was not projected).
+     */
+    private static int[] encode(List<String[]> rows, int column) {
+        int[] codes = new int[rows.size()];
+        int emptyCode = -1;
+        boolean any = false;
+        for (int i = 0; i < codes.length; i++) {
+            String[] row = rows.get(i);
+            if (column >= row.length || row[column] == null) {
+                if (emptyCode < 0) emptyCode = CellDictionary.encode("");
+                codes[i] = emptyCode;
+                continue;
+            }
+            codes[i] = CellDictionary.encode(row[column].trim());
+            any = true;
+        }
+        return any ? codes : null;
+    }
+
+    /**
+     * Parses the data of a report page into a table.
+     *
+     * @param dataCSV Page data, of the form: cells delimited by ',' and rows delimited by '\n'.
+     * @return The table of the page's header and data rows.
+     */
+    public static SectionTable parse(String dataCSV) {
+        String[] header = new String[0];
+        boolean foundHeader = false;
+        boolean[] dictionary = new boolean[0];
+        List<String[]> rows = new ArrayList<>();
+
+        int start = 0;
+        while (start < dataCSV.length()) {
+            int end = dataCSV.indexOf('\n', start);
+            if (end < 0) end = dataCSV.length();
+            String[] cells = splitRow(dataCSV.substring(start, end));
+            start = end + 1;
+
+            String[] values = new String[cells.length - 1];
+            System.arraycopy(cells, 1, values, 0, values.length);
+            if (cells[0].equals(HEADER_ROW) && !foundHeader) {
+                header = values;
+                dictionary = dictionaryColumns(SectionSchema.forHeader(header), header.length);
+                foundHeader = true;
+            } else if (cells[0].equals(DATA_ROW)) {
+                rows.add(intern(values, dictionary));
+            }
+        }
+        return new SectionTable(header, Collections.unmodifiableList(rows), false);
+    }
+
+    /**
+     * Parses the data of a report page into a table of only the columns a handler uses. The header row is split
+     * in full, but in data rows only the cells of the projected columns are copied into strings; other cells are
+     * skipped by scanning for their delimiters, and the scan stops after the last projected column. Cells of other
+     * columns read as empty. The page data itself is not changed, so a handler which appends to it passes every
+     * column through as it was.
+     *
+     * @param dataCSV Page data, of the form: cells delimited by ',' and rows delimited by '\n'.
+     * @param columns The columns used. Each is projected both by its exact name and as the first column whose name
+     *                contains it, matching `getColumn` and `findColumn`.
+     * @return The table of the page's header and data rows.
+     */
+    public static SectionTable parse(String dataCSV, String... columns) {
+        String[] header = null;
+        boolean[] projected = null;
+        boolean[] dictionary = null;
+        int width = 0;
+        List<String[]> rows = new ArrayList<>();
+
+        int start = 0;
+        while (start < dataCSV.length()) {
+            int end = dataCSV.indexOf('\n', start);
+            if (end < 0) end = dataCSV.length();
+
+            if (header == null && isRowType(dataCSV, start, end, HEADER_ROW)) {
+                String[] cells = splitRow(dataCSV.substring(start, end));
+                header = Arrays.copyOfRange(cells, 1, cells.length);
+                SectionSchema schema = SectionSchema.forHeader(header);
+                projected = new boolean[header.length];
+                dictionary = dictionaryColumns(schema, header.length);
+                for (String column : columns) {
+                    for (int index : new int[]{schema.getColumn(column), schema.findColumn(column)}) {
+                        if (index < 0) continue;
+                        projected[index] = true;
+                        width = Math.max(width, index + 1);
+                    }
+                }
+            } else if (isRowType(dataCSV, start, end, DATA_ROW)) {
+                if (header == null) {
+                    // Data before any header cannot be projected
+                    String[] cells = splitRow(dataCSV.substring(start, end));
+                    rows.add(Arrays.copyOfRange(cells, 1, cells.length));
+                } else {
+                    rows.add(projectRow(dataCSV, start + DATA_ROW.length() + 1, end, projected, dictionary, width));
+                }
+            }
+            start = end + 1;
+        }
+        return new SectionTable(header == null ? new String[0] : header, Collections.unmodifiableList(rows), true);
+    }
+
+    /**
+     * Gives a table view of a page held outside the heap, e.g. spilled to disk (see `SpillFile`). Only the header
+     * and the position of each data row are kept; rows are decoded from the page each time they are read, so a
+     * section larger than the memory budget can be read whole without holding it on the heap. Column types and
+     * codes are only computed, from the page, when first requested.
+     *
+     * @param page The page.
+     * @return The table of the page's header and data rows.
+     */
+    public static SectionTable view(ReportPage page) {
+        ByteBuffer csv = page.getCSV();
+        int prefix = page.getName().getBytes(StandardCharsets.UTF_8).length + 1;
+        String[] header = null;
+        int[] starts = new int[1024];
+        int[] ends = new int[1024];
+        int count = 0;
+
+        int length = csv.limit();
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && csv.get(end) != '\n') end++;
+            int rowStart = Math.min(start + prefix, end);
+            if (header == null && isRowType(csv, rowStart, end, HEADER_ROW)) {
+                String[] cells = splitRow(decode(csv, rowStart, end));
+                header = Arrays.copyOfRange(cells, 1, cells.length);
+            } else if (isRowType(csv, rowStart, end, DATA_ROW)) {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+                starts[count] = rowStart;
+                ends[count] = end;
+                count++;
+            }
+            start = end + 1;
+        }
+        String[] cells = header == null ? new String[0] : header;
+        boolean[] dictionary = dictionaryColumns(SectionSchema.forHeader(cells), cells.length);
+        return new SectionTable(cells, new PageRows(csv, starts, ends, count, dictionary), false);
+    }
+
+    /**
+     * Data rows of a page held outside the heap, decoded when read. Cells of identifier columns are the dictionary's
+     * instances, as in tables parsed on the heap.
+     */
+    private static class PageRows extends AbstractList<String[]> implements RandomAccess {
+
+        private final ByteBuffer csv;
+        private final int[] starts;
+        private final int[] ends;
+        private final int size;
+        private final boolean[] dictionary;
+
+        private PageRows(ByteBuffer csv, int[] starts, int[] ends, int size, boolean[] dictionary) {
+            this.csv = csv;
+            this.starts = starts;
+            this.ends = ends;
+            this.size = size;
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public String[] get(int index) {
+            if (index < 0 || index >= this.size) {
+                throw new IndexOutOfBoundsException("Row " + index + " of " + this.size);
+            }
+            String[] cells = splitRow(decode(this.csv, this.starts[index], this.ends[index]));
+            return intern(Arrays.copyOfRange(cells, 1, cells.length), this.dictionary);
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+    }
+
+    private static boolean isRowType(ByteBuffer csv, int start, int end, String type) {
+        int length = type.length();
+        if (end - start < length) return false;
+        for (int i = 0; i < length; i++) {
+            if (csv.get(start + i) != type.charAt(i)) return false;
+        }
+        return start + length == end || csv.get(start + length) == ',';
+    }
+
+    private static String decode(ByteBuffer csv, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        ByteBuffer row = csv.duplicate();
+        row.position(start);
+        row.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isRowType(String data, int start, int end, String type) {
+        int length = type.length();
+        return data.startsWith(type, start) && (start + length == end || data.charAt(start + length) == ',');
+    }
+
+    /**
+     * Copies the projected cells of a row, from the cell after its row type. Identifiers already in the dictionary
+     * are not copied.
+     */
+    private static String[] projectRow(String data, int start, int end, boolean[] projected, boolean[] dictionary,
+                                       int width) {
+        String[] cells = new String[width];
+        int position = start;
+        for (int column = 0; column < width && position <= end; column++) {
+            int cellEnd = position;
+            boolean quoted = false;
+            boolean hasQuote = false;
+            while (cellEnd < end) {
+                char c = data.charAt(cellEnd);
+                if (c == '"') {
+                    quoted = !quoted;
+                    hasQuote = true;
+                } else if (c == ',' && !quoted) {
+                    break;
+                }
+                cellEnd++;
+            }
+            if (projected[column] && dictionary[column] && !hasQuote) {
+                cells[column] = CellDictionary.decode(CellDictionary.encode(data, position, cellEnd));
+            } else if (projected[column]) {
+                String cell = data.substring(position, cellEnd);
+                cells[column] = hasQuote ? splitRow(cell)[0] : cell;
+            }
+            position = cellEnd + 1;
+        }
+        return cells;
+    }
+
+    /**
+     * @return The column names from the page's first header row.
+     */
+    public String[] getHeader() {
+        return this.header.clone();
+    }
+
+    /**
+     * @return The cells of each data row.
+     */
+    public List<String[]> getRows() {
+        return this.rows;
+    }
+
+    /**
+     * @return The schema of the page's header, with its column types inferred from this table's rows if they have
+     * not been yet.
+     */
+    public synchronized SectionSchema getSchema() {
+        if (!this.typesInferred && !this.projected) {
+            this.schema.inferTypes(this.rows);
+            this.typesInferred = true;
+        }
+        return this.schema;
+    }
+
+    /**
+     * Gets the dictionary codes of an identifier column, for comparing its cells as ints. Equal trimmed cells have
+     * equal codes, in this and every other table.
+     *
+     * @param column The column index.
+     * @return The code of each data row's trimmed cell, not to be modified, or null if the column is not an
+     * identifier column (see `SectionSchema.getDictionaryColumns`) or has no cells.
+     */
+    public synchronized int[] getCodes(int column) {
+        if (column < 0 || column >= this.codes.length || !this.dictionary[column]) {
+            return null;
+        }
+        if (!this.encoded[column]) {
+            this.codes[column] = encode(this.rows, column);
+            this.encoded[column] = true;
+        }
+        return this.codes[column];
+    }
+
+    /**
+     * Finds a column by its exact name, ignoring case.
+     *
+     * @param name The column name.
+     * @return The column index, or -1 if there is no such column.
+     */
+    public int getColumn(String name) {
+        return this.schema.getColumn(name);
+    }
+
+    /**
+     * Finds the first column whose name contains the given text, ignoring case.
+     *
+     * @param text The text to search column names for.
+     * @return The column index, or -1 if there is no such column.
+     */
+    public int findColumn(String text) {
+        return this.schema.findColumn(text);
+    }
+
+    /**
+     * Gets a cell, treating cells missing from short rows, or not projected, as empty.
+     *
+     * @param row The data row.
+     * @param column The column index.
+     * @return The cell text.
+     */
+    public static String getCell(String[] row, int column) {
+        return column >= 0 && column < row.length && row[column] != null ? row[column] : "";
+    }
+
+    /**
+     * Splits a CSV row into cells, keeping commas inside double-quoted cells and removing the quotes.
+     *
+     * @param row The CSV row.
+     * @return The cells of the row.
+     */
+    public static String[] splitRow(String row) {
+        if (row.indexOf('"') < 0) {
+            return row.split(",", -1);
+        }
+
+        List<String> cells = new ArrayList<>();
+        StringBuilder cell = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < row.length(); i++) {
+            char c = row.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < row.length() && row.charAt(i + 1) == '"') {
+                    cell.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                cells.add(cell.toString());
+                cell.setLength(0);
+            } else {
+                cell.append(c);
+            }
+        }
+        cells.add(cell.toString());
+        return cells.toArray(new String[0]);
+    }
+
+    /**
+     * Quotes a cell for a CSV row if it contains a comma or double quote, as the reverse of `splitRow`.
+     *
+     * @param cell The cell text.
+     * @return The cell as it should appear in a row.
+     */
+    public static String quote(String cell) {
+        if (cell.indexOf(',') < 0 && cell.indexOf('"') < 0) {
+            return cell;
+        }
+        return '"' + cell.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Parses a numeric cell as shown in PortfolioAnalyst reports, e.g. '1,234.50', '-0.52%' or '(12.00)', without
+     * allocating (see `NumberCodec`).
+     *
+     * @param cell The cell text.
+     * @return The value, or NaN if the cell is empty or not a number (e.g. '--').
+     */
+    public static double parseNumber(String cell) {
+        return NumberCodec.parse(cell);
+    }
+
+    /**
+     * Parses a date cell in any of the formats used by PortfolioAnalyst reports. A time after the date, as in
+     * '2022-01-05, 10:31:02', is ignored. The format is chosen from the shape of the cell, so cells which are not
+     * dates (most cells, when inferring column types) are rejected without trying to parse them.
+     *
+     * @param cell The cell text.
+     * @return The date, or null if the cell is not a date.
+     */
+    public static LocalDate parseDate(String cell) {
+        String text = cell.trim();
+        int time = indexOfAny(text, ", ;");
+        if (time > 0) text = text.substring(0, time);
+        DateTimeFormatter format = getDateFormat(text);
+        if (format == null) {
+            return null;
+        }
+        try {
+            return LocalDate.parse(text, format);
+        } catch (DateTimeParseException e) {
+            // The right shape, but not a valid date, e.g. '2022-02-30'
+            return null;
+        }
+    }
+
+    /**
+     * @return The date format matching the shape of the text, or null if it has the shape of none of them.
+     */
+    private static DateTimeFormatter getDateFormat(String text) {
+        switch (text.length()) {
+            case 8:
+                return hasDigits(text, 0, 8) ? BASIC_DATE : null;
+            case 10:
+                if (text.charAt(2) == '/' && text.charAt(5) == '/') {
+                    return hasDigits(text, 0, 2) && hasDigits(text, 3, 5) && hasDigits(text, 6, 10) ? US_DATE : null;
+                }
+                if (text.charAt(4) == '-' && text.charAt(7) == '-') {
+                    return hasDigits(text, 0, 4) && hasDigits(text, 5, 7) && hasDigits(text, 8, 10) ? ISO_DATE : null;
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean hasDigits(String text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+
+    private static int indexOfAny(String text, String characters) {
+        for (int i = 0; i < text.length(); i++) {
+            if (characters.indexOf(text.charAt(i)) >= 0) return i;
+        }
+        return -1;
+    }
+
+}
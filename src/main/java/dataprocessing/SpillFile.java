@@ -0,0 +1,222 @@
+package dataprocessing;
+
+import misc.ReportPage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Temporary file a report page is spilled to when a report's pages would exceed the memory budget for page data.
+ * Rows are appended through a channel as they are produced, then the file is mapped read-only and handed to the
+ * page, so its bytes are read back from the page cache rather than the heap. The file is deleted once it is mapped,
+ * and the mapping stays readable until the page is garbage collected. Where a mapped file cannot be deleted (e.g. on
+ * Windows), its deletion is retried each time a spill file is created, and spill files left by earlier runs are
+ * deleted when the first one is.
+ * <p>
+ * The budget is set in MB with `-Dreports.memoryBudgetMB=256`, and defaults to a quarter of the maximum heap.
+ * Spill files are created in `-Dreports.spillDirectory`, by default the system temporary directory.
+ */
+public class SpillFile implements Closeable {
+
+    // Logger for this class
+    private static final Logger logger = LoggerFactory.getLogger(SpillFile.class);
+
+    /* Bytes of page data a report may hold on the heap, from `reports.memoryBudgetMB` */
+    private static final long BUDGET = Long.getLong("reports.memoryBudgetMB",
+            Runtime.getRuntime().maxMemory() / 4 / (1024 * 1024)) * 1024 * 1024;
+    /* Directory of spill files, from `reports.spillDirectory` */
+    private static final String DIRECTORY = System.getProperty("reports.spillDirectory",
+            System.getProperty("java.io.tmpdir"));
+    /* Names of spill files are the prefix, a unique part and the suffix */
+    private static final String PREFIX = "report-page-";
+    private static final String SUFFIX = ".spill";
+    /* Bytes buffered before each write to the channel */
+    private static final int WRITE_BUFFER = 64 * 1024;
+
+    /* Closed spill files which could not be deleted yet, as they were still mapped */
+    private static final Set<Path> undeleted = ConcurrentHashMap.newKeySet();
+    private static boolean swept;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER);
+    private long size;
+
+    private SpillFile(Path file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * @return The bytes of page data a report may hold on the heap before its pages are spilled to disk.
+     */
+    public static long getBudget() {
+        return BUDGET;
+    }
+
+    /**
+     * Creates an empty spill file.
+     *
+     * @return The spill file, open for appending.
+     * @throws IOException If the file cannot be created.
+     */
+    public static SpillFile create() throws IOException {
+        Path directory = Paths.get(DIRECTORY);
+        Files.createDirectories(directory);
+        cleanUp(directory);
+        Path file = Files.createTempFile(directory, PREFIX, SUFFIX);
+        try {
+            return new SpillFile(file, FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        } catch (IOException e) {
+            delete(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Deletes the spill files which could not be deleted when closed, and on the first call those left in the
+     * directory by earlier runs. Files which are still mapped are kept for a later call.
+     */
+    private static void cleanUp(Path directory) {
+        undeleted.removeIf(SpillFile::tryDelete);
+        synchronized (SpillFile.class) {
+            if (swept) return;
+            swept = true;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                delete(file);
+            }
+        } catch (IOException e) {
+            logger.warn("Could not list spill files in '{}': {}", directory, e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes a spill file, or keeps it to be deleted later if it cannot be deleted yet.
+     */
+    private static void delete(Path file) {
+        if (!tryDelete(file)) undeleted.add(file);
+    }
+
+    /**
+     * @return Whether the spill file is deleted.
+     */
+    private static boolean tryDelete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+            return true;
+        } catch (IOException e) {
+            logger.debug("Spill file '{}' not deleted yet: {}", file, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Moves a page to disk.
+     *
+     * @param page The page, on the heap.
+     * @return An equal page backed by a spill file.
+     * @throws IOException If the page cannot be written.
+     */
+    public static ReportPage spill(ReportPage page) throws IOException {
+        try (SpillFile file = create()) {
+            file.write(page.getCSV());
+            return file.toPage(page.getName());
+        }
+    }
+
+    /**
+     * Appends bytes to the file.
+     *
+     * @param bytes The array holding the bytes.
+     * @param offset The index of the first byte.
+     * @param length The number of bytes.
+     * @throws IOException If the file cannot be written, or would exceed the 2 GB a page can hold.
+     */
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        write(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Appends the remaining bytes of a buffer to the file.
+     *
+     * @param bytes The bytes to append.
+     * @throws IOException If the file cannot be written, or would exceed the 2 GB a page can hold.
+     */
+    public void write(ByteBuffer bytes) throws IOException {
+        if (this.size + bytes.remaining() > Integer.MAX_VALUE) {
+            throw new IOException("Spilled page exceeds " + Integer.MAX_VALUE + " bytes");
+        }
+        this.size += bytes.remaining();
+        while (bytes.hasRemaining()) {
+            if (!this.buffer.hasRemaining()) flush();
+            int length = Math.min(bytes.remaining(), this.buffer.remaining());
+            ByteBuffer part = bytes.duplicate();
+            part.limit(part.position() + length);
+            this.buffer.put(part);
+            bytes.position(bytes.position() + length);
+        }
+    }
+
+    /**
+     * @return The number of bytes written.
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Maps the written bytes as a page, and closes the file.
+     *
+     * @param name The name of the page.
+     * @return The page, backed by the file's mapping.
+     * @throws IOException If the file cannot be written or mapped.
+     */
+    public ReportPage toPage(String name) throws IOException {
+        try {
+            flush();
+            MappedByteBuffer mapping = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.size);
+            logger.debug("Spilled page '{}' to disk: {} bytes", name, this.size);
+            return ReportPage.map(name, mapping);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Closes the file and deletes it. A mapping of the file stays readable.
+     *
+     * @throws IOException If the file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            this.channel.close();
+        } finally {
+            delete(this.file);
+        }
+    }
+
+    private void flush() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+    }
+
+}
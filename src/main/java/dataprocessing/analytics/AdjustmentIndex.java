@@ -0,0 +1,179 @@
+package dataprocessing.analytics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Index of corporate action adjustment factors, keyed by symbol and effective date. A factor is the number of
+ * shares held after the action per share held before it, e.g. 4 for a 4-for-1 split and 0.1 for a 1-for-10 reverse
+ * split. Stored histories are never rewritten: a historical price or quantity is adjusted when it is read, by the
+ * ratio of two cumulative factor lookups. A new action therefore costs one index entry.
+ * Each symbol's factors are an immutable pair of sorted arrays, replaced as a whole when an action is added, so
+ * readers never need to lock.
+ */
+public class AdjustmentIndex {
+
+    // Logger for this class
+    private static final Logger logger = LoggerFactory.getLogger(AdjustmentIndex.class);
+
+    /**
+     * Actions of one symbol: effective epoch days in order, and the product of all factors up to each day.
+     */
+    private static class Adjustments {
+
+        private final long[] days;
+        private final double[] factors;
+        private final double[] cumulative;
+
+        private Adjustments(long[] days, double[] factors) {
+            this.days = days;
+            this.factors = factors;
+            this.cumulative = new double[factors.length];
+            double product = 1;
+            for (int i = 0; i < factors.length; i++) {
+                product *= factors[i];
+                this.cumulative[i] = product;
+            }
+        }
+
+        /* Product of the factors of actions effective on or before a day */
+        private double getCumulative(long day) {
+            int index = Arrays.binarySearch(this.days, day);
+            if (index < 0) index = -index - 2;
+            return index < 0 ? 1 : this.cumulative[index];
+        }
+
+    }
+
+    private final Map<String, Adjustments> symbols = new ConcurrentHashMap<>();
+
+    /**
+     * Adds an action. An action already in the index with the same symbol and date is replaced.
+     *
+     * @param symbol The symbol.
+     * @param effective The date from which the action applies.
+     * @param factor Shares held after the action per share held before it.
+     * @return Whether the index changed.
+     */
+    public synchronized boolean add(String symbol, LocalDate effective, double factor) {
+        if (Double.isNaN(factor) || factor <= 0) {
+            return false;
+        }
+        long day = effective.toEpochDay();
+        Adjustments current = this.symbols.get(symbol);
+        long[] days = current == null ? new long[0] : current.days;
+        double[] factors = current == null ? new double[0] : current.factors;
+
+        int index = Arrays.binarySearch(days, day);
+        if (index >= 0) {
+            if (factors[index] == factor) return false;
+            factors = factors.clone();
+            factors[index] = factor;
+        } else {
+            int position = -index - 1;
+            long[] newDays = new long[days.length + 1];
+            double[] newFactors = new double[factors.length + 1];
+            System.arraycopy(days, 0, newDays, 0, position);
+            System.arraycopy(factors, 0, newFactors, 0, position);
+            newDays[position] = day;
+            newFactors[position] = factor;
+            System.arraycopy(days, position, newDays, position + 1, days.length - position);
+            System.arraycopy(factors, position, newFactors, position + 1, factors.length - position);
+            days = newDays;
+            factors = newFactors;
+        }
+        this.symbols.put(symbol, new Adjustments(days, factors));
+        logger.debug("Added adjustment factor {} for '{}' from {}", factor, symbol, effective);
+        return true;
+    }
+
+    /**
+     * Gets the combined factor of the actions effective after one date, up to and including another.
+     * Multiply a quantity held at `from` by this (or divide a price) to express it in shares as of `to`.
+     *
+     * @param symbol The symbol.
+     * @param from The earlier date.
+     * @param to The later date.
+     * @return The combined factor, 1 if there were no actions.
+     */
+    public double getFactor(String symbol, LocalDate from, LocalDate to) {
+        Adjustments adjustments = this.symbols.get(symbol);
+        if (adjustments == null) {
+            return 1;
+        }
+        return adjustments.getCumulative(to.toEpochDay()) / adjustments.getCumulative(from.toEpochDay());
+    }
+
+    /**
+     * @return The number of symbols with actions.
+     */
+    public int size() {
+        return this.symbols.size();
+    }
+
+    /**
+     * Loads a saved index. A missing file gives an empty index.
+     *
+     * @param file The file the index was saved to.
+     * @return The loaded index.
+     * @throws IOException If the file exists but cannot be read.
+     */
+    public static AdjustmentIndex load(Path file) throws IOException {
+        AdjustmentIndex index = new AdjustmentIndex();
+        if (!Files.exists(file)) {
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int symbols = in.readInt();
+            for (int s = 0; s < symbols; s++) {
+                String symbol = in.readUTF();
+                int actions = in.readInt();
+                long[] days = new long[actions];
+                double[] factors = new double[actions];
+                for (int i = 0; i < actions; i++) {
+                    days[i] = in.readLong();
+                    factors[i] = in.readDouble();
+                }
+                index.symbols.put(symbol, new Adjustments(days, factors));
+            }
+            logger.debug("Loaded adjustment factors of {} symbols from '{}'", symbols, file);
+            return index;
+        }
+    }
+
+    /**
+     * Saves the index. The file is replaced atomically, so a crash leaves the previous index intact.
+     *
+     * @param file The file to save the index to.
+     * @throws IOException If the file cannot be written.
+     */
+    public synchronized void save(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(this.symbols.size());
+            for (Map.Entry<String, Adjustments> symbol : this.symbols.entrySet()) {
+                Adjustments adjustments = symbol.getValue();
+                out.writeUTF(symbol.getKey());
+                out.writeInt(adjustments.days.length);
+                for (int i = 0; i < adjustments.days.length; i++) {
+                    out.writeLong(adjustments.days[i]);
+                    out.writeDouble(adjustments.factors[i]);
+                }
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Saved adjustment factors of {} symbols to '{}'", this.symbols.size(), file);
+    }
+
+}
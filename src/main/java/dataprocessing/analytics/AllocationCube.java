@@ -0,0 +1,328 @@
+package dataprocessing.analytics;
+
+import java.util.*;
+
+
+/**
+ * In-memory cube of position values over a hierarchy of dimensions, e.g. asset class, instrument, region, sector
+ * and symbol. The value of every node at every level of the hierarchy is rolled up once when the cube is built, so
+ * totals, drill-downs and top-N queries only read precomputed values.
+ * Dimension values are encoded as small integer codes and a node's codes are packed into one long key, with the
+ * unused lower levels set to all ones. Rollups are aggregated in an open-addressing map of long keys to double
+ * values, then stored as one sorted key array per level. The children of a node are a contiguous run of the next
+ * level, found by binary search.
+ */
+public class AllocationCube {
+
+    /**
+     * A node of the hierarchy: the values of its dimensions down to its level, and its rolled-up value.
+     */
+    public static class Node {
+
+        private final String[] path;
+        private final double value;
+
+        private Node(String[] path, double value) {
+            this.path = path;
+            this.value = value;
+        }
+
+        public String[] getPath() {
+            return this.path.clone();
+        }
+
+        public int getLevel() {
+            return this.path.length;
+        }
+
+        public double getValue() {
+            return this.value;
+        }
+
+    }
+
+    private final String[] dimensions;
+    /* Per dimension: code -> value, and the bit width and shift of its codes in a key */
+    private final String[][] names;
+    private final List<Map<String, Integer>> codes;
+    private final int[] bits;
+    private final int[] shifts;
+    /* Per level (0 is the grand total): sorted keys and their rolled-up values */
+    private final long[][] levelKeys;
+    private final double[][] levelValues;
+
+    private AllocationCube(String[] dimensions, String[][] names, List<Map<String, Integer>> codes, int[] bits) {
+        this.dimensions = dimensions;
+        this.names = names;
+        this.codes = codes;
+        this.bits = bits;
+        this.shifts = new int[dimensions.length];
+        int shift = 0;
+        for (int d = dimensions.length - 1; d >= 0; d--) {
+            this.shifts[d] = shift;
+            shift += bits[d];
+        }
+        this.levelKeys = new long[dimensions.length + 1][];
+        this.levelValues = new double[dimensions.length + 1][];
+    }
+
+    /**
+     * Builds a cube from positions.
+     *
+     * @param dimensions Names of the dimensions, from the top of the hierarchy down.
+     * @param positions Value of each dimension for each position, as [position][dimension].
+     * @param values Value of each position.
+     * @return The cube.
+     * @throws IllegalArgumentException If the dimensions have too many distinct values to pack into a key.
+     */
+    public static AllocationCube build(String[] dimensions, String[][] positions, double[] values) {
+        int k = dimensions.length;
+
+        // Dictionary-encode each dimension
+        List<Map<String, Integer>> codes = new ArrayList<>(k);
+        int[][] encoded = new int[positions.length][k];
+        for (int d = 0; d < k; d++) {
+            Map<String, Integer> dictionary = new LinkedHashMap<>();
+            codes.add(dictionary);
+            for (int p = 0; p < positions.length; p++) {
+                encoded[p][d] = dictionary.computeIfAbsent(positions[p][d], key -> dictionary.size());
+            }
+        }
+
+        // Each dimension gets enough bits for its codes plus the all-ones code of "every value"
+        String[][] names = new String[k][];
+        int[] bits = new int[k];
+        int totalBits = 0;
+        for (int d = 0; d < k; d++) {
+            names[d] = codes.get(d).keySet().toArray(new String[0]);
+            bits[d] = 64 - Long.numberOfLeadingZeros(names[d].length);
+            totalBits += bits[d];
+        }
+        if (totalBits > 63) {
+            throw new IllegalArgumentException("Too many distinct values to build an allocation cube");
+        }
+
+        AllocationCube cube = new AllocationCube(dimensions, names, codes, bits);
+        LongDoubleMap[] rollups = new LongDoubleMap[k + 1];
+        for (int level = 0; level <= k; level++) {
+            rollups[level] = new LongDoubleMap(Math.max(16, positions.length * 2));
+        }
+        for (int p = 0; p < positions.length; p++) {
+            if (Double.isNaN(values[p])) continue;
+            long key = cube.allKey(0);
+            rollups[0].add(key, values[p]);
+            for (int d = 0; d < k; d++) {
+                // Replace this dimension's all-ones code with the position's code
+                key = (key & ~cube.mask(d)) | ((long) encoded[p][d] << cube.shifts[d]);
+                rollups[d + 1].add(key, values[p]);
+            }
+        }
+        for (int level = 0; level <= k; level++) {
+            cube.levelKeys[level] = rollups[level].sortedKeys();
+            cube.levelValues[level] = new double[cube.levelKeys[level].length];
+            for (int i = 0; i < cube.levelKeys[level].length; i++) {
+                cube.levelValues[level][i] = rollups[level].get(cube.levelKeys[level][i]);
+            }
+        }
+        return cube;
+    }
+
+    public String[] getDimensions() {
+        return this.dimensions.clone();
+    }
+
+    /**
+     * @return The total value of all positions.
+     */
+    public double getTotal() {
+        return this.levelValues[0].length == 0 ? 0 : this.levelValues[0][0];
+    }
+
+    /**
+     * Gets the children of a node, in the order their values were first seen.
+     *
+     * @param path Values of the top dimensions identifying the node; empty for the grand total.
+     * @return The children, or an empty list if the node does not exist or is at the bottom level.
+     */
+    public List<Node> drillDown(String... path) {
+        List<Node> children = new ArrayList<>();
+        int level = path.length;
+        if (level >= this.dimensions.length) {
+            return children;
+        }
+        long key = allKey(0);
+        for (int d = 0; d < level; d++) {
+            Integer code = this.codes.get(d).get(path[d]);
+            if (code == null) return children;
+            key = (key & ~mask(d)) | ((long) code << this.shifts[d]);
+        }
+
+        // Children share every bit above this node's lowest dimension, so they are contiguous in the next level
+        long[] keys = this.levelKeys[level + 1];
+        long lowBits = level == 0 ? -1L >>> 1 : (1L << (this.shifts[level - 1])) - 1;
+        long prefix = key & ~lowBits;
+        int start = lowerBound(keys, prefix);
+        for (int i = start; i < keys.length && (keys[i] & ~lowBits) == prefix; i++) {
+            children.add(toNode(keys[i], level + 1, this.levelValues[level + 1][i]));
+        }
+        return children;
+    }
+
+    /**
+     * Gets the nodes with the largest values at a level.
+     *
+     * @param level The level, from 1 (the top dimension) to the number of dimensions.
+     * @param n The number of nodes.
+     * @return Up to n nodes, largest first.
+     */
+    public List<Node> top(int level, int n) {
+        double[] values = this.levelValues[level];
+        // Min-heap of the indexes of the n largest values so far
+        PriorityQueue<Integer> largest = new PriorityQueue<>(Comparator.comparingDouble(i -> values[i]));
+        for (int i = 0; i < values.length; i++) {
+            if (largest.size() < n) {
+                largest.add(i);
+            } else if (n > 0 && values[i] > values[largest.peek()]) {
+                largest.poll();
+                largest.add(i);
+            }
+        }
+        List<Node> nodes = new ArrayList<>();
+        while (!largest.isEmpty()) {
+            int i = largest.poll();
+            nodes.add(toNode(this.levelKeys[level][i], level, values[i]));
+        }
+        Collections.reverse(nodes);
+        return nodes;
+    }
+
+    /**
+     * @return Every node below the grand total, depth first, as flat rollup rows.
+     */
+    public List<Node> getRollups() {
+        List<Node> nodes = new ArrayList<>();
+        addRollups(new String[0], nodes);
+        return nodes;
+    }
+
+    private void addRollups(String[] path, List<Node> nodes) {
+        for (Node child : drillDown(path)) {
+            nodes.add(child);
+            addRollups(child.path, nodes);
+        }
+    }
+
+    private Node toNode(long key, int level, double value) {
+        String[] path = new String[level];
+        for (int d = 0; d < level; d++) {
+            path[d] = this.names[d][(int) ((key & mask(d)) >>> this.shifts[d])];
+        }
+        return new Node(path, value);
+    }
+
+    private long mask(int dimension) {
+        return ((1L << this.bits[dimension]) - 1) << this.shifts[dimension];
+    }
+
+    /* Key with every dimension from `from` down set to all ones */
+    private long allKey(int from) {
+        long key = 0;
+        for (int d = from; d < this.dimensions.length; d++) {
+            key |= mask(d);
+        }
+        return key;
+    }
+
+    private static int lowerBound(long[] sorted, long key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Open-addressing map of non-negative long keys to summed double values, with linear probing.
+     */
+    private static class LongDoubleMap {
+
+        private static final long EMPTY = -1;
+
+        private long[] keys;
+        private double[] values;
+        private int size;
+
+        private LongDoubleMap(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(expected, 2) * 2 - 1);
+            this.keys = new long[capacity];
+            this.values = new double[capacity];
+            Arrays.fill(this.keys, EMPTY);
+        }
+
+        private int find(long key) {
+            int mask = this.keys.length - 1;
+            int slot = (int) (mix(key) & mask);
+            while (this.keys[slot] != EMPTY && this.keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void add(long key, double value) {
+            int slot = find(key);
+            if (this.keys[slot] == EMPTY) {
+                if ((this.size + 1) * 2 > this.keys.length) {
+                    resize();
+                    slot = find(key);
+                }
+                this.keys[slot] = key;
+                this.size++;
+            }
+            this.values[slot] += value;
+        }
+
+        private double get(long key) {
+            int slot = find(key);
+            return this.keys[slot] == EMPTY ? 0 : this.values[slot];
+        }
+
+        private void resize() {
+            long[] oldKeys = this.keys;
+            double[] oldValues = this.values;
+            this.keys = new long[oldKeys.length * 2];
+            this.values = new double[oldKeys.length * 2];
+            Arrays.fill(this.keys, EMPTY);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int slot = find(oldKeys[i]);
+                    this.keys[slot] = oldKeys[i];
+                    this.values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private long[] sortedKeys() {
+            long[] sorted = new long[this.size];
+            int count = 0;
+            for (long key : this.keys) {
+                if (key != EMPTY) sorted[count++] = key;
+            }
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        private static long mix(long key) {
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            return key ^ (key >>> 33);
+        }
+
+    }
+
+}
@@ -0,0 +1,298 @@
+package dataprocessing.analytics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.*;
+
+
+/**
+ * Brinson-Fachler performance attribution of a portfolio against a benchmark, by segment (e.g. sector or asset
+ * class), linked across the reports of a month. Segments are joined through a hash index into one slot per segment,
+ * and each figure is held as a primitive array indexed by slot.
+ * Reports show month-to-date returns, so each report is turned into a period since the previous report. The period's
+ * allocation, selection and interaction effects are then linked onto the running month totals with Frongello's
+ * method. That method only needs the totals so far, so a new report is added in O(segments), and the linked effects
+ * always add up to the month's excess return.
+ */
+public class AttributionEngine {
+
+    // Logger for this class
+    private static final Logger logger = LoggerFactory.getLogger(AttributionEngine.class);
+
+    /* Segment name -> slot of the arrays below */
+    private final Map<String, Integer> index = new HashMap<>();
+    private String[] keys = new String[16];
+    /* Month-to-date returns of each segment at the last report, to derive the period since then */
+    private double[] lastPortfolioReturn = new double[16];
+    private double[] lastBenchmarkReturn = new double[16];
+    /* Linked month-to-date effects of each segment */
+    private double[] allocation = new double[16];
+    private double[] selection = new double[16];
+    private double[] interaction = new double[16];
+
+    /* First day of the month being linked, and the last day added */
+    private long month = Long.MIN_VALUE;
+    private long lastDay = Long.MIN_VALUE;
+    private int periods;
+    /* Growth of 1 unit in the portfolio and benchmark since the start of the month */
+    private double portfolioGrowth = 1;
+    private double benchmarkGrowth = 1;
+
+    /**
+     * Adds a report's segment weights and month-to-date returns. Reports must be added in date order; reports not
+     * after the last one added are ignored. A report in a new month starts the linking again.
+     * A segment missing from one side is given zero weight on that side.
+     *
+     * @param date The date of the report.
+     * @param portfolioKeys Portfolio segments.
+     * @param portfolioWeights Average weight of each portfolio segment.
+     * @param portfolioReturns Month-to-date return of each portfolio segment, as a fraction.
+     * @param benchmarkKeys Benchmark segments.
+     * @param benchmarkWeights Average weight of each benchmark segment.
+     * @param benchmarkReturns Month-to-date return of each benchmark segment, as a fraction.
+     * @return Whether the report was added.
+     */
+    public boolean update(LocalDate date, String[] portfolioKeys, double[] portfolioWeights,
+                          double[] portfolioReturns, String[] benchmarkKeys, double[] benchmarkWeights,
+                          double[] benchmarkReturns) {
+        long day = date.toEpochDay();
+        if (day <= this.lastDay) {
+            return false;
+        }
+        long firstOfMonth = date.withDayOfMonth(1).toEpochDay();
+        if (firstOfMonth != this.month) {
+            reset(firstOfMonth);
+        }
+
+        // Hash join both sides onto the segment slots
+        int[] portfolioSlots = slots(portfolioKeys);
+        int[] benchmarkSlots = slots(benchmarkKeys);
+        int n = this.index.size();
+        double[] wp = new double[n];
+        double[] rp = new double[n];
+        double[] wb = new double[n];
+        double[] rb = new double[n];
+        Arrays.fill(rp, Double.NaN);
+        Arrays.fill(rb, Double.NaN);
+        double portfolioTotal = join(portfolioSlots, portfolioWeights, portfolioReturns,
+                this.lastPortfolioReturn, wp, rp);
+        double benchmarkTotal = join(benchmarkSlots, benchmarkWeights, benchmarkReturns,
+                this.lastBenchmarkReturn, wb, rb);
+
+        // Period returns of the whole portfolio and benchmark, with weights normalised to 1
+        double periodPortfolio = 0;
+        double periodBenchmark = 0;
+        for (int i = 0; i < n; i++) {
+            wp[i] = portfolioTotal > 0 ? wp[i] / portfolioTotal : 0;
+            wb[i] = benchmarkTotal > 0 ? wb[i] / benchmarkTotal : 0;
+            if (!Double.isNaN(rb[i])) periodBenchmark += wb[i] * rb[i];
+        }
+        for (int i = 0; i < n; i++) {
+            // Missing benchmark returns take the benchmark total, and missing portfolio returns the segment's
+            // benchmark return, so segments held on one side only add no spurious effect
+            if (Double.isNaN(rb[i])) rb[i] = periodBenchmark;
+            if (Double.isNaN(rp[i])) rp[i] = rb[i];
+            periodPortfolio += wp[i] * rp[i];
+        }
+
+        // Brinson-Fachler effects of the period, linked onto the month totals
+        for (int i = 0; i < n; i++) {
+            double activeWeight = wp[i] - wb[i];
+            double periodAllocation = activeWeight * (rb[i] - periodBenchmark);
+            double periodSelection = wb[i] * (rp[i] - rb[i]);
+            double periodInteraction = activeWeight * (rp[i] - rb[i]);
+            this.allocation[i] = periodAllocation * this.portfolioGrowth + (1 + periodBenchmark) * this.allocation[i];
+            this.selection[i] = periodSelection * this.portfolioGrowth + (1 + periodBenchmark) * this.selection[i];
+            this.interaction[i] = periodInteraction * this.portfolioGrowth + (1 + periodBenchmark) * this.interaction[i];
+        }
+        this.portfolioGrowth *= 1 + periodPortfolio;
+        this.benchmarkGrowth *= 1 + periodBenchmark;
+        this.lastDay = day;
+        this.periods++;
+        return true;
+    }
+
+    /**
+     * Finds or adds the slot of each key.
+     */
+    private int[] slots(String[] keys) {
+        int[] slots = new int[keys.length];
+        for (int k = 0; k < keys.length; k++) {
+            Integer slot = this.index.get(keys[k]);
+            if (slot == null) {
+                slot = this.index.size();
+                this.index.put(keys[k], slot);
+                ensureCapacity(slot + 1);
+                this.keys[slot] = keys[k];
+            }
+            slots[k] = slot;
+        }
+        return slots;
+    }
+
+    /**
+     * Scatters one side's weights and period returns into slot order, and records its month-to-date returns.
+     *
+     * @return The total weight of the side.
+     */
+    private static double join(int[] slots, double[] weights, double[] returns, double[] lastReturns,
+                               double[] slotWeights, double[] slotReturns) {
+        double total = 0;
+        for (int k = 0; k < slots.length; k++) {
+            int slot = slots[k];
+            double weight = Double.isNaN(weights[k]) ? 0 : weights[k];
+            slotWeights[slot] += weight;
+            total += weight;
+            if (!Double.isNaN(returns[k])) {
+                slotReturns[slot] = (1 + returns[k]) / (1 + lastReturns[slot]) - 1;
+                lastReturns[slot] = returns[k];
+            }
+        }
+        return total;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size <= this.keys.length) return;
+        int capacity = Math.max(size, this.keys.length * 2);
+        this.keys = Arrays.copyOf(this.keys, capacity);
+        this.lastPortfolioReturn = Arrays.copyOf(this.lastPortfolioReturn, capacity);
+        this.lastBenchmarkReturn = Arrays.copyOf(this.lastBenchmarkReturn, capacity);
+        this.allocation = Arrays.copyOf(this.allocation, capacity);
+        this.selection = Arrays.copyOf(this.selection, capacity);
+        this.interaction = Arrays.copyOf(this.interaction, capacity);
+    }
+
+    private void reset(long firstOfMonth) {
+        int size = this.index.size();
+        Arrays.fill(this.lastPortfolioReturn, 0, size, 0);
+        Arrays.fill(this.lastBenchmarkReturn, 0, size, 0);
+        Arrays.fill(this.allocation, 0, size, 0);
+        Arrays.fill(this.selection, 0, size, 0);
+        Arrays.fill(this.interaction, 0, size, 0);
+        this.month = firstOfMonth;
+        this.periods = 0;
+        this.portfolioGrowth = 1;
+        this.benchmarkGrowth = 1;
+    }
+
+    /**
+     * @return The segments, in the order they were first seen.
+     */
+    public String[] getKeys() {
+        return Arrays.copyOf(this.keys, this.index.size());
+    }
+
+    /**
+     * @return Linked month-to-date allocation effect of each segment, as a fraction.
+     */
+    public double[] getAllocation() {
+        return Arrays.copyOf(this.allocation, this.index.size());
+    }
+
+    /**
+     * @return Linked month-to-date selection effect of each segment, as a fraction.
+     */
+    public double[] getSelection() {
+        return Arrays.copyOf(this.selection, this.index.size());
+    }
+
+    /**
+     * @return Linked month-to-date interaction effect of each segment, as a fraction.
+     */
+    public double[] getInteraction() {
+        return Arrays.copyOf(this.interaction, this.index.size());
+    }
+
+    public double getPortfolioReturn() {
+        return this.portfolioGrowth - 1;
+    }
+
+    public double getBenchmarkReturn() {
+        return this.benchmarkGrowth - 1;
+    }
+
+    /**
+     * @return The number of reports linked in the current month.
+     */
+    public int getPeriods() {
+        return this.periods;
+    }
+
+    /**
+     * @return The last date added, or null if nothing has been added.
+     */
+    public LocalDate getLastDate() {
+        return this.lastDay == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(this.lastDay);
+    }
+
+    /**
+     * Loads a saved state. A missing file gives an empty state.
+     *
+     * @param file The file the state was saved to.
+     * @return The loaded state.
+     * @throws IOException If the file exists but cannot be read.
+     */
+    public static AttributionEngine load(Path file) throws IOException {
+        AttributionEngine engine = new AttributionEngine();
+        if (!Files.exists(file)) {
+            return engine;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            engine.month = in.readLong();
+            engine.lastDay = in.readLong();
+            engine.periods = in.readInt();
+            engine.portfolioGrowth = in.readDouble();
+            engine.benchmarkGrowth = in.readDouble();
+            int size = in.readInt();
+            engine.ensureCapacity(size);
+            for (int i = 0; i < size; i++) {
+                engine.keys[i] = in.readUTF();
+                engine.index.put(engine.keys[i], i);
+                engine.lastPortfolioReturn[i] = in.readDouble();
+                engine.lastBenchmarkReturn[i] = in.readDouble();
+                engine.allocation[i] = in.readDouble();
+                engine.selection[i] = in.readDouble();
+                engine.interaction[i] = in.readDouble();
+            }
+            logger.debug("Loaded attribution of {} segments from '{}'", size, file);
+            return engine;
+        }
+    }
+
+    /**
+     * Saves the state. The file is replaced atomically, so a crash leaves the previous state intact.
+     *
+     * @param file The file to save the state to.
+     * @throws IOException If the file cannot be written.
+     */
+    public void save(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeLong(this.month);
+            out.writeLong(this.lastDay);
+            out.writeInt(this.periods);
+            out.writeDouble(this.portfolioGrowth);
+            out.writeDouble(this.benchmarkGrowth);
+            int size = this.index.size();
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeUTF(this.keys[i]);
+                out.writeDouble(this.lastPortfolioReturn[i]);
+                out.writeDouble(this.lastBenchmarkReturn[i]);
+                out.writeDouble(this.allocation[i]);
+                out.writeDouble(this.selection[i]);
+                out.writeDouble(this.interaction[i]);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Saved attribution of {} segments to '{}'", this.index.size(), file);
+    }
+
+}
@@ -0,0 +1,224 @@
+package dataprocessing.analytics;
+
+import java.util.Arrays;
+
+
+/**
+ * Compares a portfolio's daily returns against any number of benchmarks at once. Series are first aligned by date,
+ * then every statistic for every benchmark is accumulated in a single pass over the days, into one primitive array
+ * per running sum indexed by benchmark.
+ */
+public class BenchmarkEngine {
+
+    /**
+     * Statistics of the portfolio against each benchmark, indexed by benchmark. Ratios are NaN where undefined.
+     */
+    public static class Result {
+
+        /* Number of aligned days */
+        private final int days;
+        /* Annualised standard deviation of active returns */
+        private final double[] trackingError;
+        /* Annualised mean active return over tracking error */
+        private final double[] informationRatio;
+        private final double[] beta;
+        /* Annualised Jensen's alpha */
+        private final double[] alpha;
+        /* Mean portfolio return over mean benchmark return on up (down) benchmark days, as a percentage */
+        private final double[] upCapture;
+        private final double[] downCapture;
+        private final double[] correlation;
+        /* Correlation over the last `rollingWindow` days */
+        private final double[] rollingCorrelation;
+
+        private Result(int days, int benchmarks) {
+            this.days = days;
+            this.trackingError = new double[benchmarks];
+            this.informationRatio = new double[benchmarks];
+            this.beta = new double[benchmarks];
+            this.alpha = new double[benchmarks];
+            this.upCapture = new double[benchmarks];
+            this.downCapture = new double[benchmarks];
+            this.correlation = new double[benchmarks];
+            this.rollingCorrelation = new double[benchmarks];
+        }
+
+        public int getDays() {
+            return this.days;
+        }
+
+        public double[] getTrackingError() {
+            return this.trackingError.clone();
+        }
+
+        public double[] getInformationRatio() {
+            return this.informationRatio.clone();
+        }
+
+        public double[] getBeta() {
+            return this.beta.clone();
+        }
+
+        public double[] getAlpha() {
+            return this.alpha.clone();
+        }
+
+        public double[] getUpCapture() {
+            return this.upCapture.clone();
+        }
+
+        public double[] getDownCapture() {
+            return this.downCapture.clone();
+        }
+
+        public double[] getCorrelation() {
+            return this.correlation.clone();
+        }
+
+        public double[] getRollingCorrelation() {
+            return this.rollingCorrelation.clone();
+        }
+
+    }
+
+    /**
+     * Aligns a portfolio series and benchmark series on the dates they all share.
+     *
+     * @param portfolioDays Epoch days of the portfolio returns, in ascending order.
+     * @param portfolio Portfolio returns.
+     * @param benchmarkDays Epoch days of the benchmark returns, in ascending order.
+     * @param benchmarks Returns of each benchmark, as [benchmark][day], with NaN where missing.
+     * @return Aligned series: row 0 is the portfolio, rows 1.. are the benchmarks.
+     */
+    public static double[][] align(long[] portfolioDays, double[] portfolio, long[] benchmarkDays,
+                                   double[][] benchmarks) {
+        int k = benchmarks.length;
+        double[][] aligned = new double[k + 1][Math.min(portfolioDays.length, benchmarkDays.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        // Merge join of the two sorted date arrays
+        while (i < portfolioDays.length && j < benchmarkDays.length) {
+            if (portfolioDays[i] < benchmarkDays[j]) {
+                i++;
+            } else if (portfolioDays[i] > benchmarkDays[j]) {
+                j++;
+            } else {
+                boolean complete = !Double.isNaN(portfolio[i]);
+                for (int b = 0; b < k && complete; b++) {
+                    complete = !Double.isNaN(benchmarks[b][j]);
+                }
+                if (complete) {
+                    aligned[0][count] = portfolio[i];
+                    for (int b = 0; b < k; b++) {
+                        aligned[b + 1][count] = benchmarks[b][j];
+                    }
+                    count++;
+                }
+                i++;
+                j++;
+            }
+        }
+        for (int row = 0; row <= k; row++) {
+            aligned[row] = Arrays.copyOf(aligned[row], count);
+        }
+        return aligned;
+    }
+
+    /**
+     * Computes the comparison statistics in one pass over aligned returns.
+     *
+     * @param portfolio Portfolio returns as fractions.
+     * @param benchmarks Benchmark returns as fractions, as [benchmark][day], aligned with the portfolio.
+     * @param dailyRiskFreeRate Daily risk-free rate used for alpha.
+     * @param rollingWindow Number of most recent days used for the rolling correlation.
+     * @return The statistics for each benchmark.
+     */
+    public static Result compare(double[] portfolio, double[][] benchmarks, double dailyRiskFreeRate,
+                                 int rollingWindow) {
+        int n = portfolio.length;
+        int k = benchmarks.length;
+        int rollingStart = Math.max(0, n - rollingWindow);
+
+        double sumP = 0;
+        double sumP2 = 0;
+        double rollingSumP = 0;
+        double rollingSumP2 = 0;
+        double[] sumB = new double[k];
+        double[] sumB2 = new double[k];
+        double[] sumPB = new double[k];
+        double[] sumA2 = new double[k];
+        double[] upP = new double[k];
+        double[] upB = new double[k];
+        double[] downP = new double[k];
+        double[] downB = new double[k];
+        double[] rollingSumB = new double[k];
+        double[] rollingSumB2 = new double[k];
+        double[] rollingSumPB = new double[k];
+
+        for (int d = 0; d < n; d++) {
+            double p = portfolio[d];
+            boolean rolling = d >= rollingStart;
+            sumP += p;
+            sumP2 += p * p;
+            if (rolling) {
+                rollingSumP += p;
+                rollingSumP2 += p * p;
+            }
+            for (int b = 0; b < k; b++) {
+                double r = benchmarks[b][d];
+                double active = p - r;
+                sumB[b] += r;
+                sumB2[b] += r * r;
+                sumPB[b] += p * r;
+                sumA2[b] += active * active;
+                if (r > 0) {
+                    upP[b] += p;
+                    upB[b] += r;
+                } else if (r < 0) {
+                    downP[b] += p;
+                    downB[b] += r;
+                }
+                if (rolling) {
+                    rollingSumB[b] += r;
+                    rollingSumB2[b] += r * r;
+                    rollingSumPB[b] += p * r;
+                }
+            }
+        }
+
+        Result result = new Result(n, k);
+        double annualisation = RiskEngine.TRADING_DAYS;
+        double varP = variance(sumP, sumP2, n);
+        for (int b = 0; b < k; b++) {
+            double meanActive = (sumP - sumB[b]) / n;
+            double varActive = variance(sumP - sumB[b], sumA2[b], n);
+            double varB = variance(sumB[b], sumB2[b], n);
+            double covPB = covariance(sumP, sumB[b], sumPB[b], n);
+
+            result.trackingError[b] = Math.sqrt(varActive * annualisation);
+            result.informationRatio[b] = meanActive * annualisation / result.trackingError[b];
+            result.beta[b] = covPB / varB;
+            result.alpha[b] = ((sumP / n - dailyRiskFreeRate)
+                    - result.beta[b] * (sumB[b] / n - dailyRiskFreeRate)) * annualisation;
+            result.upCapture[b] = upP[b] / upB[b] * 100;
+            result.downCapture[b] = downP[b] / downB[b] * 100;
+            result.correlation[b] = covPB / Math.sqrt(varP * varB);
+
+            int window = n - rollingStart;
+            result.rollingCorrelation[b] = covariance(rollingSumP, rollingSumB[b], rollingSumPB[b], window)
+                    / Math.sqrt(variance(rollingSumP, rollingSumP2, window)
+                    * variance(rollingSumB[b], rollingSumB2[b], window));
+        }
+        return result;
+    }
+
+    private static double variance(double sum, double sumSquares, int n) {
+        return n > 1 ? (sumSquares - sum * sum / n) / (n - 1) : Double.NaN;
+    }
+
+    private static double covariance(double sumX, double sumY, double sumXY, int n) {
+        return n > 1 ? (sumXY - sumX * sumY / n) / (n - 1) : Double.NaN;
+    }
+
+}
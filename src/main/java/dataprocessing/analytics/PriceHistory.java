@@ -0,0 +1,261 @@
+package dataprocessing.analytics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.*;
+
+
+/**
+ * Rolling window of returns per symbol, built up from the closing prices of successive reports. Returns are kept in
+ * a ring of the last `window` report dates, as one primitive array per symbol with NaN for days a symbol was not
+ * held. A return is only recorded between consecutive report dates: a symbol missing from a report (e.g. sold, then
+ * bought back later) starts again from its next price. This is the history used to estimate the covariance of symbol
+ * returns. Returns are kept as recorded; corporate actions are applied, and returns over several days scaled to one
+ * trading day, when they are read. Symbols which have not been held within the window are dropped.
+ */
+public class PriceHistory {
+
+    // Logger for this class
+    private static final Logger logger = LoggerFactory.getLogger(PriceHistory.class);
+
+    /* Number of report dates kept */
+    public static final int DEFAULT_WINDOW = 250;
+
+    private final int window;
+    /* Epoch day held by each slot of the ring, or Long.MIN_VALUE if unused */
+    private final long[] days;
+    /* Epoch day of the date before each slot's, which its returns are measured from, or Long.MIN_VALUE */
+    private final long[] fromDays;
+    /* Number of dates recorded so far; the latest date is in slot (recorded - 1) % window */
+    private long recorded;
+    /* Per symbol: returns ring, the price recorded at the latest date, and the index of the last date it was held */
+    private final Map<String, double[]> returns = new LinkedHashMap<>();
+    private final Map<String, Double> lastPrices = new HashMap<>();
+    private final Map<String, Long> lastRecorded = new HashMap<>();
+
+    public PriceHistory(int window) {
+        this.window = window;
+        this.days = new long[window];
+        this.fromDays = new long[window];
+        Arrays.fill(this.days, Long.MIN_VALUE);
+        Arrays.fill(this.fromDays, Long.MIN_VALUE);
+    }
+
+    /**
+     * @return The latest date recorded, or null if nothing has been recorded.
+     */
+    public LocalDate getLastDate() {
+        return this.recorded == 0 ? null : LocalDate.ofEpochDay(this.days[slot(this.recorded - 1)]);
+    }
+
+    /**
+     * Records the closing prices of a report date. The return of each symbol is measured from its price at the
+     * previous recorded date; a symbol without one gets no return for this date. Dates not after the latest recorded
+     * date are ignored.
+     *
+     * @param date The date of the prices.
+     * @param prices Closing price of each symbol.
+     * @return Whether the date was recorded.
+     */
+    public boolean record(LocalDate date, Map<String, Double> prices) {
+        LocalDate last = getLastDate();
+        if (last != null && !date.isAfter(last)) {
+            return false;
+        }
+
+        long index = this.recorded;
+        int slot = slot(index);
+        this.days[slot] = date.toEpochDay();
+        this.fromDays[slot] = last == null ? Long.MIN_VALUE : last.toEpochDay();
+        this.recorded++;
+        for (double[] series : this.returns.values()) {
+            series[slot] = Double.NaN;
+        }
+
+        for (Map.Entry<String, Double> price : prices.entrySet()) {
+            String symbol = price.getKey();
+            double current = price.getValue();
+            if (Double.isNaN(current) || current <= 0) continue;
+
+            double[] series = this.returns.computeIfAbsent(symbol, key -> newSeries());
+            Double previous = this.lastPrices.put(symbol, current);
+            Long previousIndex = this.lastRecorded.put(symbol, index);
+            if (previous != null && previousIndex != null && previousIndex == index - 1) {
+                series[slot] = current / previous - 1;
+            }
+        }
+        prune();
+        return true;
+    }
+
+    /**
+     * Gets the returns of a symbol, ordered from oldest to newest slot of the window. Days without a return are NaN.
+     *
+     * @param symbol The symbol.
+     * @return The returns, or null if the symbol has never been recorded.
+     */
+    public double[] getReturns(String symbol) {
+        double[] series = this.returns.get(symbol);
+        if (series == null) {
+            return null;
+        }
+        double[] ordered = new double[this.window];
+        for (int i = 0; i < this.window; i++) {
+            ordered[i] = series[slot(this.recorded + i)];
+        }
+        return ordered;
+    }
+
+    /**
+     * Gets the one-day returns of a symbol adjusted for corporate actions, ordered from oldest to newest slot of the
+     * window. Returns are stored as recorded, so a split shows as a jump in price; the jump is removed here using the
+     * actions effective after the date of the price each return was measured from, up to its own date, including for
+     * the oldest slot of the window. A return over several trading days (e.g. between
+     * weekly or monthly reports) is then scaled to one day by the square root of their number, as variance grows
+     * with time.
+     *
+     * @param symbol The symbol.
+     * @param adjustments Corporate action adjustment factors.
+     * @return The adjusted one-day returns, or null if the symbol is not in the window.
+     */
+    public double[] getReturns(String symbol, AdjustmentIndex adjustments) {
+        double[] ordered = getReturns(symbol);
+        if (ordered == null) {
+            return null;
+        }
+        for (int i = 0; i < this.window; i++) {
+            int slot = slot(this.recorded + i);
+            if (Double.isNaN(ordered[i]) || this.fromDays[slot] == Long.MIN_VALUE) continue;
+            // Adjusted over the dates of the two prices the return was measured between
+            double factor = adjustments.getFactor(symbol, LocalDate.ofEpochDay(this.fromDays[slot]),
+                    LocalDate.ofEpochDay(this.days[slot]));
+            ordered[i] = (1 + ordered[i]) * factor - 1;
+            long tradingDays = tradingDays(this.fromDays[slot], this.days[slot]);
+            if (tradingDays > 1) {
+                ordered[i] /= Math.sqrt(tradingDays);
+            }
+        }
+        return ordered;
+    }
+
+    private int slot(long index) {
+        return (int) (index % this.window);
+    }
+
+    /**
+     * Drops the last price of symbols missing from the latest date, which can no longer give a return, and symbols
+     * which have not been held at any date of the window.
+     */
+    private void prune() {
+        Iterator<Map.Entry<String, Long>> symbols = this.lastRecorded.entrySet().iterator();
+        while (symbols.hasNext()) {
+            Map.Entry<String, Long> symbol = symbols.next();
+            long index = symbol.getValue();
+            if (index != this.recorded - 1) {
+                this.lastPrices.remove(symbol.getKey());
+            }
+            if (this.recorded - index > this.window) {
+                this.returns.remove(symbol.getKey());
+                symbols.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The number of weekdays after one epoch day, up to and including another, and at least 1.
+     */
+    private static long tradingDays(long from, long to) {
+        long count = 0;
+        for (long day = from + 1; day <= to; day++) {
+            // Epoch day 0 was a Thursday, so this gives 0 for Monday to 6 for Sunday
+            if (Math.floorMod(day + 3, 7) < 5) count++;
+        }
+        return Math.max(count, 1);
+    }
+
+    private double[] newSeries() {
+        double[] series = new double[this.window];
+        Arrays.fill(series, Double.NaN);
+        return series;
+    }
+
+    /**
+     * Loads a saved history. A missing file gives an empty history.
+     *
+     * @param file The file the history was saved to.
+     * @param window The window to use if the file does not exist.
+     * @return The loaded history.
+     * @throws IOException If the file exists but cannot be read.
+     */
+    public static PriceHistory load(Path file, int window) throws IOException {
+        if (!Files.exists(file)) {
+            return new PriceHistory(window);
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            PriceHistory history = new PriceHistory(in.readInt());
+            history.recorded = in.readLong();
+            for (int i = 0; i < history.window; i++) {
+                history.days[i] = in.readLong();
+            }
+            for (int i = 0; i < history.window; i++) {
+                history.fromDays[i] = in.readLong();
+            }
+            int symbols = in.readInt();
+            for (int s = 0; s < symbols; s++) {
+                String symbol = in.readUTF();
+                double lastPrice = in.readDouble();
+                long lastRecorded = in.readLong();
+                double[] series = new double[history.window];
+                for (int i = 0; i < history.window; i++) {
+                    series[i] = in.readDouble();
+                }
+                history.returns.put(symbol, series);
+                history.lastRecorded.put(symbol, lastRecorded);
+                if (!Double.isNaN(lastPrice)) {
+                    history.lastPrices.put(symbol, lastPrice);
+                }
+            }
+            logger.debug("Loaded price history of {} symbols from '{}'", symbols, file);
+            return history;
+        }
+    }
+
+    /**
+     * Saves the history. The file is replaced atomically, so a crash leaves the previous history intact.
+     *
+     * @param file The file to save the history to.
+     * @throws IOException If the file cannot be written.
+     */
+    public void save(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(this.window);
+            out.writeLong(this.recorded);
+            for (long day : this.days) {
+                out.writeLong(day);
+            }
+            for (long day : this.fromDays) {
+                out.writeLong(day);
+            }
+            out.writeInt(this.returns.size());
+            for (Map.Entry<String, double[]> symbol : this.returns.entrySet()) {
+                out.writeUTF(symbol.getKey());
+                out.writeDouble(this.lastPrices.getOrDefault(symbol.getKey(), Double.NaN));
+                out.writeLong(this.lastRecorded.get(symbol.getKey()));
+                for (double value : symbol.getValue()) {
+                    out.writeDouble(value);
+                }
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Saved price history of {} symbols to '{}'", this.returns.size(), file);
+    }
+
+}
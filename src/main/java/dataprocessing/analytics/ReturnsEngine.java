@@ -0,0 +1,435 @@
+package dataprocessing.analytics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Time-weighted and money-weighted returns of an account over calendar windows. The engine keeps the account's
+ * daily returns, net asset values and external cash flows (deposits and withdrawals) in primitive arrays. The daily
+ * series of a saved account are read from its stored time series (see `TimeSeriesStore`), only as far back as the
+ * windows need, so only its cash flows are saved by the engine itself.
+ * Time-weighted returns of every window come from one pass of prefix products over the daily returns. Money-weighted
+ * returns solve for the internal rate of return of each window's flows with Newton's method, falling back to Brent's
+ * method if Newton does not converge.
+ */
+public class ReturnsEngine {
+
+    // Logger for this class
+    private static final Logger logger = LoggerFactory.getLogger(ReturnsEngine.class);
+
+    /* Days per year used for year fractions of cash flows */
+    private static final double DAYS_PER_YEAR = 365.0;
+    /* Solver tolerance on the rate, and iteration limits */
+    private static final double TOLERANCE = 1e-10;
+    private static final int NEWTON_ITERATIONS = 20;
+    private static final int BRENT_ITERATIONS = 200;
+
+    /**
+     * Returns of the account over one window.
+     */
+    public static class Window {
+
+        private final String name;
+        private final LocalDate from;
+        private final LocalDate to;
+        private final double timeWeighted;
+        private final double moneyWeighted;
+
+        private Window(String name, LocalDate from, LocalDate to, double timeWeighted, double moneyWeighted) {
+            this.name = name;
+            this.from = from;
+            this.to = to;
+            this.timeWeighted = timeWeighted;
+            this.moneyWeighted = moneyWeighted;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public LocalDate getFrom() {
+            return this.from;
+        }
+
+        public LocalDate getTo() {
+            return this.to;
+        }
+
+        /**
+         * @return Chain-linked return over the window, as a fraction.
+         */
+        public double getTimeWeighted() {
+            return this.timeWeighted;
+        }
+
+        /**
+         * @return Internal rate of return over the window (not annualised), as a fraction, or NaN without values.
+         */
+        public double getMoneyWeighted() {
+            return this.moneyWeighted;
+        }
+
+    }
+
+    /* Daily series, in date order */
+    private long[] days = new long[64];
+    private double[] returns = new double[64];
+    private double[] values = new double[64];
+    private int size;
+    /* External cash flows in date order; deposits are positive */
+    private long[] flowDays = new long[16];
+    private double[] flowAmounts = new double[16];
+    private int flowCount;
+
+    /**
+     * Creates an engine over the days of an account's stored series needed for its windows as of its latest day,
+     * without reading the rest of the history. Cash flows are added separately, e.g. with `loadFlows`.
+     *
+     * @param returns The stored daily returns.
+     * @param values The stored net asset values; days without one have no value.
+     * @return The engine.
+     */
+    public static ReturnsEngine fromSeries(TimeSeriesStore returns, TimeSeriesStore values) {
+        ReturnsEngine engine = new ReturnsEngine();
+        LocalDate last = returns.getLastDate();
+        if (last == null) {
+            return engine;
+        }
+        // The longest window is the trailing 12 months, whose money-weighted return starts from the day before it
+        LocalDate start = last.minusYears(1).plusDays(1);
+        LocalDate before = returns.getDateBefore(start);
+        TimeSeriesStore.Range days = returns.scan(before == null ? start : before, last);
+        TimeSeriesStore.Range navs = values.scan(before == null ? start : before, last);
+        int nav = 0;
+        for (int i = 0; i < days.size(); i++) {
+            long day = days.getDay(i);
+            while (nav < navs.size() && navs.getDay(nav) < day) nav++;
+            double value = nav < navs.size() && navs.getDay(nav) == day ? navs.getValue(nav) : Double.NaN;
+            engine.addDay(days.getDate(i), days.getValue(i), value);
+        }
+        return engine;
+    }
+
+    /**
+     * Adds a day. Days must be added in date order; days not after the last added day are ignored.
+     *
+     * @param date The date.
+     * @param dailyReturn The return for the day as a fraction.
+     * @param value The net asset value at the end of the day, or NaN if unknown.
+     * @return Whether the day was added.
+     */
+    public boolean addDay(LocalDate date, double dailyReturn, double value) {
+        long day = date.toEpochDay();
+        if ((this.size > 0 && day <= this.days[this.size - 1]) || Double.isNaN(dailyReturn)) {
+            return false;
+        }
+        if (this.size == this.days.length) {
+            int capacity = this.size * 2;
+            this.days = Arrays.copyOf(this.days, capacity);
+            this.returns = Arrays.copyOf(this.returns, capacity);
+            this.values = Arrays.copyOf(this.values, capacity);
+        }
+        this.days[this.size] = day;
+        this.returns[this.size] = dailyReturn;
+        this.values[this.size] = value;
+        this.size++;
+        return true;
+    }
+
+    /**
+     * Adds an external cash flow. Flows are kept in date order.
+     *
+     * @param date The date of the flow.
+     * @param amount The amount, positive for deposits and negative for withdrawals.
+     */
+    public void addFlow(LocalDate date, double amount) {
+        if (Double.isNaN(amount) || amount == 0) return;
+        if (this.flowCount == this.flowDays.length) {
+            this.flowDays = Arrays.copyOf(this.flowDays, this.flowCount * 2);
+            this.flowAmounts = Arrays.copyOf(this.flowAmounts, this.flowCount * 2);
+        }
+        long day = date.toEpochDay();
+        int position = this.flowCount;
+        while (position > 0 && this.flowDays[position - 1] > day) {
+            this.flowDays[position] = this.flowDays[position - 1];
+            this.flowAmounts[position] = this.flowAmounts[position - 1];
+            position--;
+        }
+        this.flowDays[position] = day;
+        this.flowAmounts[position] = amount;
+        this.flowCount++;
+    }
+
+    /**
+     * @return The last day added, or null if nothing has been added.
+     */
+    public LocalDate getLastDate() {
+        return this.size == 0 ? null : LocalDate.ofEpochDay(this.days[this.size - 1]);
+    }
+
+    /**
+     * Calculates the month, quarter and year to date and trailing 12 month returns, as of the last day added.
+     *
+     * @return The windows, or an empty list if nothing has been added.
+     */
+    public List<Window> getWindows() {
+        List<Window> windows = new ArrayList<>();
+        if (this.size == 0) {
+            return windows;
+        }
+
+        // growth[i] is the growth of 1 unit over the first i days, so any window is a ratio of two entries
+        double[] growth = new double[this.size + 1];
+        growth[0] = 1;
+        for (int i = 0; i < this.size; i++) {
+            growth[i + 1] = growth[i] * (1 + this.returns[i]);
+        }
+
+        LocalDate asOf = getLastDate();
+        LocalDate quarter = asOf.withMonth((asOf.getMonthValue() - 1) / 3 * 3 + 1).withDayOfMonth(1);
+        windows.add(getWindow("MTD", asOf.withDayOfMonth(1), growth));
+        windows.add(getWindow("QTD", quarter, growth));
+        windows.add(getWindow("YTD", asOf.withDayOfYear(1), growth));
+        windows.add(getWindow("12M", asOf.minusYears(1).plusDays(1), growth));
+        return windows;
+    }
+
+    private Window getWindow(String name, LocalDate from, double[] growth) {
+        int first = lowerBound(this.days, this.size, from.toEpochDay());
+        int last = this.size - 1;
+        double timeWeighted = growth[last + 1] / growth[first] - 1;
+        LocalDate start = LocalDate.ofEpochDay(this.days[Math.min(first, last)]);
+        return new Window(name, start, LocalDate.ofEpochDay(this.days[last]), timeWeighted,
+                getMoneyWeighted(first, last));
+    }
+
+    /**
+     * Solves the money-weighted return between the value before a window and the value at its end, with the
+     * window's flows in between. A window starting at the first day uses that day's value as its start.
+     */
+    private double getMoneyWeighted(int first, int last) {
+        int startIndex = first > 0 ? first - 1 : first;
+        double startValue = this.values[startIndex];
+        double endValue = this.values[last];
+        if (Double.isNaN(startValue) || Double.isNaN(endValue) || startValue <= 0) {
+            return Double.NaN;
+        }
+        long startDay = this.days[startIndex];
+        long endDay = this.days[last];
+
+        // Flows after the start value, up to the end of the window
+        int flowStart = lowerBound(this.flowDays, this.flowCount, startDay + 1);
+        int flowEnd = lowerBound(this.flowDays, this.flowCount, endDay + 1);
+        int n = flowEnd - flowStart + 2;
+        double[] years = new double[n];
+        double[] amounts = new double[n];
+        double totalYears = (endDay - startDay) / DAYS_PER_YEAR;
+        if (totalYears <= 0) {
+            return Double.NaN;
+        }
+
+        // From the investor's side: the start value and deposits go in, withdrawals and the end value come out
+        amounts[0] = -startValue;
+        double invested = startValue;
+        double weightedInvested = startValue;
+        for (int k = flowStart; k < flowEnd; k++) {
+            int i = k - flowStart + 1;
+            years[i] = (this.flowDays[k] - startDay) / DAYS_PER_YEAR;
+            amounts[i] = -this.flowAmounts[k];
+            invested += this.flowAmounts[k];
+            weightedInvested += this.flowAmounts[k] * (1 - years[i] / totalYears);
+        }
+        years[n - 1] = totalYears;
+        amounts[n - 1] = endValue;
+
+        // Modified Dietz return as the initial guess, converted to an annual rate
+        double dietz = (endValue - invested) / weightedInvested;
+        double guess = dietz > -1 ? Math.pow(1 + dietz, 1 / totalYears) - 1 : 0;
+        double rate = solveRate(years, amounts, guess);
+        return Double.isNaN(rate) ? Double.NaN : Math.pow(1 + rate, totalYears) - 1;
+    }
+
+    /**
+     * Solves for the annual rate at which the present value of the cash flows is zero.
+     *
+     * @param years Time of each flow from the first, in years.
+     * @param amounts Amount of each flow.
+     * @param guess Initial guess of the rate.
+     * @return The rate, or NaN if there is no solution.
+     */
+    public static double solveRate(double[] years, double[] amounts, double guess) {
+        // Newton's method on ln(1 + rate): each flow's discount factor is computed once per iteration and gives
+        // both the present value and its derivative
+        double x = Math.log1p(Math.max(guess, -0.99));
+        double[] factors = new double[years.length];
+        for (int iteration = 0; iteration < NEWTON_ITERATIONS; iteration++) {
+            double value = 0;
+            double derivative = 0;
+            for (int k = 0; k < years.length; k++) {
+                factors[k] = amounts[k] * Math.exp(-years[k] * x);
+                value += factors[k];
+                derivative -= years[k] * factors[k];
+            }
+            if (derivative == 0 || Double.isNaN(value)) break;
+            double step = value / derivative;
+            x -= step;
+            if (Math.abs(step) < TOLERANCE) {
+                return Math.expm1(x);
+            }
+        }
+        return brent(years, amounts);
+    }
+
+    /**
+     * Brent's method on ln(1 + rate), over a bracket widened from around zero until the present value changes sign.
+     */
+    private static double brent(double[] years, double[] amounts) {
+        double a = -1;
+        double b = 1;
+        double fa = presentValue(years, amounts, a);
+        double fb = presentValue(years, amounts, b);
+        for (int widen = 0; fa * fb > 0 && widen < 10; widen++) {
+            a *= 2;
+            b *= 2;
+            fa = presentValue(years, amounts, a);
+            fb = presentValue(years, amounts, b);
+        }
+        if (fa * fb > 0) {
+            logger.debug("No money-weighted return found for {} cash flows", years.length);
+            return Double.NaN;
+        }
+
+        double c = a;
+        double fc = fa;
+        double d = b - a;
+        double e = d;
+        for (int iteration = 0; iteration < BRENT_ITERATIONS; iteration++) {
+            if (fb * fc > 0) {
+                c = a;
+                fc = fa;
+                d = b - a;
+                e = d;
+            }
+            if (Math.abs(fc) < Math.abs(fb)) {
+                a = b;
+                b = c;
+                c = a;
+                fa = fb;
+                fb = fc;
+                fc = fa;
+            }
+            double tolerance = 2 * Math.ulp(b) + TOLERANCE / 2;
+            double middle = (c - b) / 2;
+            if (Math.abs(middle) <= tolerance || fb == 0) {
+                return Math.expm1(b);
+            }
+            if (Math.abs(e) >= tolerance && Math.abs(fa) > Math.abs(fb)) {
+                // Secant or inverse quadratic interpolation
+                double s = fb / fa;
+                double p;
+                double q;
+                if (a == c) {
+                    p = 2 * middle * s;
+                    q = 1 - s;
+                } else {
+                    double r = fb / fc;
+                    double t = fa / fc;
+                    p = s * (2 * middle * t * (t - r) - (b - a) * (r - 1));
+                    q = (t - 1) * (r - 1) * (s - 1);
+                }
+                if (p > 0) q = -q;
+                p = Math.abs(p);
+                if (2 * p < Math.min(3 * middle * q - Math.abs(tolerance * q), Math.abs(e * q))) {
+                    e = d;
+                    d = p / q;
+                } else {
+                    d = middle;
+                    e = d;
+                }
+            } else {
+                d = middle;
+                e = d;
+            }
+            a = b;
+            fa = fb;
+            b += Math.abs(d) > tolerance ? d : Math.copySign(tolerance, middle);
+            fb = presentValue(years, amounts, b);
+        }
+        return Math.expm1(b);
+    }
+
+    private static double presentValue(double[] years, double[] amounts, double x) {
+        double value = 0;
+        for (int k = 0; k < years.length; k++) {
+            value += amounts[k] * Math.exp(-years[k] * x);
+        }
+        return value;
+    }
+
+    /**
+     * @return The first index of a sorted array whose value is at least the key.
+     */
+    private static int lowerBound(long[] sorted, int length, long key) {
+        int low = 0;
+        int high = length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Adds the cash flows saved for an account. A missing file gives no flows.
+     *
+     * @param file The file the flows were saved to.
+     * @throws IOException If the file exists but cannot be read.
+     */
+    public void loadFlows(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int flows = in.readInt();
+            for (int i = 0; i < flows; i++) {
+                addFlow(LocalDate.ofEpochDay(in.readLong()), in.readDouble());
+            }
+            logger.debug("Loaded {} cash flows from '{}'", flows, file);
+        }
+    }
+
+    /**
+     * Saves the cash flows. The file is replaced atomically, so a crash leaves the previous flows intact.
+     *
+     * @param file The file to save the flows to.
+     * @throws IOException If the file cannot be written.
+     */
+    public void saveFlows(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(this.flowCount);
+            for (int i = 0; i < this.flowCount; i++) {
+                out.writeLong(this.flowDays[i]);
+                out.writeDouble(this.flowAmounts[i]);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Saved {} cash flows to '{}'", this.flowCount, file);
+    }
+
+}
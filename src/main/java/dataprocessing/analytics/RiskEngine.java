@@ -0,0 +1,188 @@
+package dataprocessing.analytics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+
+
+/**
+ * Streaming risk metrics over a series of daily returns. Each day updates a fixed set of running totals in O(1),
+ * so metrics over years of history never need the history itself: mean and variance use Welford's method, downside
+ * deviation a running sum of squared shortfalls, and maximum drawdown a running wealth index and its peak.
+ * The state is a small primitive array, which can be saved and loaded so each new daily report only adds its new
+ * days.
+ */
+public class RiskEngine {
+
+    // Logger for this class
+    private static final Logger logger = LoggerFactory.getLogger(RiskEngine.class);
+
+    /* Number of trading days used to annualise daily figures */
+    public static final int TRADING_DAYS = 252;
+
+    /* Slots of the state array */
+    private static final int COUNT = 0;
+    private static final int MEAN = 1;
+    private static final int M2 = 2;
+    private static final int DOWNSIDE_SQUARES = 3;
+    private static final int WEALTH = 4;
+    private static final int PEAK = 5;
+    private static final int MAX_DRAWDOWN = 6;
+    private static final int LAST_DAY = 7;
+    private static final int STATE_SIZE = 8;
+
+    private final double[] state = new double[STATE_SIZE];
+    /* Daily risk-free rate, also used as the minimum acceptable return for downside figures */
+    private final double dailyRiskFreeRate;
+
+    /**
+     * @param annualRiskFreeRate The annual risk-free rate as a fraction, e.g. 0.02 for 2%.
+     */
+    public RiskEngine(double annualRiskFreeRate) {
+        this.dailyRiskFreeRate = Math.pow(1 + annualRiskFreeRate, 1.0 / TRADING_DAYS) - 1;
+        this.state[WEALTH] = 1;
+        this.state[PEAK] = 1;
+        this.state[LAST_DAY] = Long.MIN_VALUE;
+    }
+
+    /**
+     * Adds a day's return. Days must be added in date order; days not after the last added day are ignored, so a
+     * report overlapping earlier reports can be applied as a whole.
+     *
+     * @param date The date of the return.
+     * @param dailyReturn The return for the day as a fraction, e.g. 0.01 for 1%.
+     * @return Whether the day was added.
+     */
+    public boolean update(LocalDate date, double dailyReturn) {
+        long day = date.toEpochDay();
+        if (day <= this.state[LAST_DAY] || Double.isNaN(dailyReturn)) {
+            return false;
+        }
+
+        double[] s = this.state;
+        s[COUNT]++;
+        double delta = dailyReturn - s[MEAN];
+        s[MEAN] += delta / s[COUNT];
+        s[M2] += delta * (dailyReturn - s[MEAN]);
+
+        double shortfall = Math.min(dailyReturn - this.dailyRiskFreeRate, 0);
+        s[DOWNSIDE_SQUARES] += shortfall * shortfall;
+
+        s[WEALTH] *= 1 + dailyReturn;
+        s[PEAK] = Math.max(s[PEAK], s[WEALTH]);
+        s[MAX_DRAWDOWN] = Math.max(s[MAX_DRAWDOWN], 1 - s[WEALTH] / s[PEAK]);
+
+        s[LAST_DAY] = day;
+        return true;
+    }
+
+    /**
+     * @return The number of days added.
+     */
+    public long getDays() {
+        return (long) this.state[COUNT];
+    }
+
+    /**
+     * @return The date of the last day added, or null if no days have been added.
+     */
+    public LocalDate getLastDate() {
+        return getDays() == 0 ? null : LocalDate.ofEpochDay((long) this.state[LAST_DAY]);
+    }
+
+    /**
+     * @return Annualised standard deviation of daily returns, or NaN with fewer than two days.
+     */
+    public double getAnnualisedVolatility() {
+        return getDailyVolatility() * Math.sqrt(TRADING_DAYS);
+    }
+
+    /**
+     * @return Annualised downside deviation below the risk-free rate, or NaN with no days.
+     */
+    public double getDownsideDeviation() {
+        return getDailyDownsideDeviation() * Math.sqrt(TRADING_DAYS);
+    }
+
+    /**
+     * @return Annualised Sharpe ratio, or NaN if volatility is zero or undefined.
+     */
+    public double getSharpeRatio() {
+        double volatility = getDailyVolatility();
+        return volatility > 0 ? getDailyExcessReturn() / volatility * Math.sqrt(TRADING_DAYS) : Double.NaN;
+    }
+
+    /**
+     * @return Annualised Sortino ratio, or NaN if there has been no downside.
+     */
+    public double getSortinoRatio() {
+        double downside = getDailyDownsideDeviation();
+        return downside > 0 ? getDailyExcessReturn() / downside * Math.sqrt(TRADING_DAYS) : Double.NaN;
+    }
+
+    /**
+     * @return Largest peak-to-trough fall of the cumulative return, as a fraction.
+     */
+    public double getMaxDrawdown() {
+        return this.state[MAX_DRAWDOWN];
+    }
+
+    private double getDailyVolatility() {
+        return this.state[COUNT] > 1 ? Math.sqrt(this.state[M2] / (this.state[COUNT] - 1)) : Double.NaN;
+    }
+
+    private double getDailyDownsideDeviation() {
+        return this.state[COUNT] > 0 ? Math.sqrt(this.state[DOWNSIDE_SQUARES] / this.state[COUNT]) : Double.NaN;
+    }
+
+    private double getDailyExcessReturn() {
+        return this.state[MEAN] - this.dailyRiskFreeRate;
+    }
+
+    /**
+     * Loads saved state into this engine. A missing file leaves the engine empty.
+     *
+     * @param file The file the state was saved to.
+     * @throws IOException If the file exists but cannot be read.
+     */
+    public void load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int size = in.readInt();
+            if (size != STATE_SIZE) {
+                throw new IOException("Unexpected risk state size " + size + " in " + file);
+            }
+            for (int i = 0; i < STATE_SIZE; i++) {
+                this.state[i] = in.readDouble();
+            }
+        }
+        logger.debug("Loaded risk state of {} days from '{}'", getDays(), file);
+    }
+
+    /**
+     * Saves the state of this engine. The file is replaced atomically, so a crash leaves the previous state intact.
+     *
+     * @param file The file to save the state to.
+     * @throws IOException If the file cannot be written.
+     */
+    public void save(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(STATE_SIZE);
+            for (double value : this.state) {
+                out.writeDouble(value);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Saved risk state of {} days to '{}'", getDays(), file);
+    }
+
+}
@@ -0,0 +1,402 @@
+package dataprocessing.analytics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.*;
+
+
+/**
+ * Matches fills against open tax lots, per symbol, and accumulates realised profit and loss for the month.
+ * Each symbol's open lots are a ring buffer of primitive arrays, used as a double-ended queue: FIFO closes from the
+ * head, LIFO from the tail, HIFO the lot with the highest cost and specific-ID the lot named by the fill.
+ * Lots closed out of order are zeroed in place and trimmed once they reach either end of the ring.
+ * Lots are kept with the quantity and price they were opened with; splits since then are applied from the adjustment
+ * index when lots are matched or read, so a lot opened before a 4-for-1 split closes four times its quantity.
+ * The open lots and the month's totals can be saved and loaded, with the date of the last report matched, so each
+ * report only matches its new fills.
+ */
+public class TaxLotEngine {
+
+    // Logger for this class
+    private static final Logger logger = LoggerFactory.getLogger(TaxLotEngine.class);
+
+    /* Days a lot must be held for its gains to be long term */
+    private static final int LONG_TERM_DAYS = 365;
+
+    /* Slots of the realised totals of each symbol */
+    public static final int CLOSED_QUANTITY = 0;
+    public static final int SHORT_TERM = 1;
+    public static final int LONG_TERM = 2;
+
+    /**
+     * Order in which open lots are closed.
+     */
+    public enum Method {
+        FIFO, LIFO, HIFO, SPECIFIC_ID
+    }
+
+    /**
+     * Open lots of one symbol. Quantities are signed: positive for long lots and negative for short lots, and all
+     * open lots of a symbol have the same sign.
+     */
+    private static class LotQueue {
+
+        private long[] ids = new long[8];
+        private long[] days = new long[8];
+        private double[] quantities = new double[8];
+        private double[] prices = new double[8];
+        private int head;
+        private int size;
+
+        private int slot(int index) {
+            return (this.head + index) & (this.ids.length - 1);
+        }
+
+        private void addLast(long id, long day, double quantity, double price) {
+            if (this.size == this.ids.length) {
+                grow();
+            }
+            int slot = slot(this.size++);
+            this.ids[slot] = id;
+            this.days[slot] = day;
+            this.quantities[slot] = quantity;
+            this.prices[slot] = price;
+        }
+
+        /* Doubles the capacity, keeping it a power of two, and moves the lots to the start */
+        private void grow() {
+            int capacity = this.ids.length * 2;
+            long[] newIds = new long[capacity];
+            long[] newDays = new long[capacity];
+            double[] newQuantities = new double[capacity];
+            double[] newPrices = new double[capacity];
+            for (int i = 0; i < this.size; i++) {
+                int slot = slot(i);
+                newIds[i] = this.ids[slot];
+                newDays[i] = this.days[slot];
+                newQuantities[i] = this.quantities[slot];
+                newPrices[i] = this.prices[slot];
+            }
+            this.ids = newIds;
+            this.days = newDays;
+            this.quantities = newQuantities;
+            this.prices = newPrices;
+            this.head = 0;
+        }
+
+        /* Drops closed lots from both ends */
+        private void trim() {
+            while (this.size > 0 && this.quantities[this.head] == 0) {
+                this.head = slot(1);
+                this.size--;
+            }
+            while (this.size > 0 && this.quantities[slot(this.size - 1)] == 0) {
+                this.size--;
+            }
+        }
+
+        private double getCostBasis() {
+            double total = 0;
+            for (int i = 0; i < this.size; i++) {
+                int slot = slot(i);
+                total += this.quantities[slot] * this.prices[slot];
+            }
+            return total;
+        }
+
+    }
+
+    private final Method method;
+    /* Splits and reverse splits, applied to lots opened before them */
+    private AdjustmentIndex adjustments = new AdjustmentIndex();
+    private final Map<String, LotQueue> lots = new HashMap<>();
+    /* Realised totals of each symbol for the month of the last report */
+    private final Map<String, double[]> realised = new TreeMap<>();
+    private long month = Long.MIN_VALUE;
+    /* Epoch day of the last report matched */
+    private long reportDay = Long.MIN_VALUE;
+    /* Last day matched by a previous run; fills up to it have already been applied */
+    private long committedDay = Long.MIN_VALUE;
+    private long lastDay = Long.MIN_VALUE;
+    private long nextId = 1;
+
+    public TaxLotEngine(Method method) {
+        this.method = method;
+    }
+
+    /**
+     * Sets the corporate actions applied to open lots opened before them.
+     *
+     * @param adjustments The adjustment index.
+     */
+    public void setAdjustments(AdjustmentIndex adjustments) {
+        this.adjustments = adjustments;
+    }
+
+    /**
+     * Starts matching a report's fills. The realised totals are for the month of the report date, so a report in a
+     * new month starts them again, whether or not it has any fills.
+     *
+     * @param reportDate The report date.
+     */
+    public void startMonth(LocalDate reportDate) {
+        long firstOfMonth = reportDate.withDayOfMonth(1).toEpochDay();
+        if (firstOfMonth != this.month) {
+            this.realised.clear();
+            this.month = firstOfMonth;
+        }
+        this.reportDay = reportDate.toEpochDay();
+    }
+
+    /**
+     * Applies a fill, counting its realised profit and loss in the month started by `startMonth`. Fills must be added
+     * in date order; fills on days already matched by a previous run are ignored.
+     *
+     * @param date The trade date.
+     * @param symbol The symbol traded.
+     * @param quantity The signed quantity: positive for buys and negative for sells.
+     * @param price The price per unit.
+     * @param lotId The lot id opened by the fill, or closed first by a specific-ID fill; 0 if none.
+     * @return Whether the fill was applied.
+     */
+    public boolean addFill(LocalDate date, String symbol, double quantity, double price, long lotId) {
+        long day = date.toEpochDay();
+        if (day <= this.committedDay || Double.isNaN(quantity) || Double.isNaN(price) || quantity == 0) {
+            return false;
+        }
+        this.lastDay = Math.max(this.lastDay, day);
+
+        LotQueue queue = this.lots.computeIfAbsent(symbol, key -> new LotQueue());
+        double remaining = quantity;
+        // Close open lots of the opposite sign
+        while (remaining != 0 && queue.size > 0
+                && Math.signum(queue.quantities[queue.head]) == -Math.signum(remaining)) {
+            int slot = queue.slot(pickLot(queue, symbol, day, lotId));
+            // The lot's quantity and price in shares as of the fill
+            double factor = getFactor(symbol, queue.days[slot], day);
+            double lotQuantity = queue.quantities[slot] * factor;
+            double matched = Math.min(Math.abs(lotQuantity), Math.abs(remaining));
+            double profit = Math.signum(lotQuantity) * matched * (price - queue.prices[slot] / factor);
+
+            double[] totals = this.realised.computeIfAbsent(symbol, key -> new double[3]);
+            totals[CLOSED_QUANTITY] += matched;
+            totals[day - queue.days[slot] > LONG_TERM_DAYS ? LONG_TERM : SHORT_TERM] += profit;
+
+            queue.quantities[slot] -= Math.signum(lotQuantity) * matched / factor;
+            if (Math.abs(queue.quantities[slot] * factor) < 1e-9) queue.quantities[slot] = 0;
+            remaining -= Math.signum(remaining) * matched;
+            if (Math.abs(remaining) < 1e-9) remaining = 0;
+            queue.trim();
+        }
+
+        // Whatever is left opens a new lot
+        if (remaining != 0) {
+            long id = lotId != 0 ? lotId : this.nextId++;
+            queue.addLast(id, day, remaining, price);
+        }
+        if (queue.size == 0) {
+            this.lots.remove(symbol);
+        }
+        return true;
+    }
+
+    /**
+     * @return The index in the queue of the next open lot to close.
+     */
+    private int pickLot(LotQueue queue, String symbol, long day, long lotId) {
+        switch (this.method) {
+            case LIFO:
+                return queue.size - 1;
+            case HIFO: {
+                // Costs are compared per share as of the fill, as lots may straddle a split
+                int best = 0;
+                double bestPrice = Double.NEGATIVE_INFINITY;
+                for (int i = 0; i < queue.size; i++) {
+                    int slot = queue.slot(i);
+                    if (queue.quantities[slot] == 0) continue;
+                    double price = queue.prices[slot] / getFactor(symbol, queue.days[slot], day);
+                    if (price > bestPrice) {
+                        best = i;
+                        bestPrice = price;
+                    }
+                }
+                return best;
+            }
+            case SPECIFIC_ID:
+                if (lotId != 0) {
+                    for (int i = 0; i < queue.size; i++) {
+                        int slot = queue.slot(i);
+                        if (queue.ids[slot] == lotId && queue.quantities[slot] != 0) return i;
+                    }
+                }
+                // The named lot is closed (or none was named), so fall back to FIFO
+                return 0;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return Symbols with realised totals or open lots, in order.
+     */
+    public SortedSet<String> getSymbols() {
+        SortedSet<String> symbols = new TreeSet<>(this.realised.keySet());
+        symbols.addAll(this.lots.keySet());
+        return symbols;
+    }
+
+    /**
+     * Gets the realised totals of a symbol for the month.
+     *
+     * @param symbol The symbol.
+     * @return Totals indexed by CLOSED_QUANTITY, SHORT_TERM and LONG_TERM.
+     */
+    public double[] getRealised(String symbol) {
+        double[] totals = this.realised.get(symbol);
+        return totals == null ? new double[3] : totals.clone();
+    }
+
+    /**
+     * Gets the open quantity of a symbol, adjusted for the splits since each lot was opened.
+     *
+     * @param symbol The symbol.
+     * @param date The date to express the quantity at, e.g. the report date.
+     * @return The signed open quantity, in shares as of the date.
+     */
+    public double getOpenQuantity(String symbol, LocalDate date) {
+        LotQueue queue = this.lots.get(symbol);
+        if (queue == null) {
+            return 0;
+        }
+        double total = 0;
+        for (int i = 0; i < queue.size; i++) {
+            int slot = queue.slot(i);
+            total += queue.quantities[slot] * getFactor(symbol, queue.days[slot], date.toEpochDay());
+        }
+        return total;
+    }
+
+    /**
+     * Gets the cost basis of a symbol's open lots. A split multiplies a lot's quantity and divides its price by the
+     * same factor, so the cost of each lot is the same at any date.
+     *
+     * @param symbol The symbol.
+     * @return The signed cost basis.
+     */
+    public double getCostBasis(String symbol) {
+        LotQueue queue = this.lots.get(symbol);
+        return queue == null ? 0 : queue.getCostBasis();
+    }
+
+    public Method getMethod() {
+        return this.method;
+    }
+
+    /**
+     * @return The adjustment factor of a symbol's splits after one epoch day, up to and including another.
+     */
+    private double getFactor(String symbol, long from, long to) {
+        if (from >= to) {
+            return 1;
+        }
+        return this.adjustments.getFactor(symbol, LocalDate.ofEpochDay(from), LocalDate.ofEpochDay(to));
+    }
+
+    /**
+     * @return The date of the last report matched, or null if no report has been matched.
+     */
+    public LocalDate getReportDate() {
+        return this.reportDay == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(this.reportDay);
+    }
+
+    /**
+     * Loads a saved snapshot. A missing file, or one saved with another method, gives an empty engine.
+     *
+     * @param file The file the snapshot was saved to.
+     * @param method The matching method.
+     * @return The loaded engine.
+     * @throws IOException If the file exists but cannot be read.
+     */
+    public static TaxLotEngine load(Path file, Method method) throws IOException {
+        TaxLotEngine engine = new TaxLotEngine(method);
+        if (!Files.exists(file)) {
+            return engine;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (!in.readUTF().equals(method.name())) {
+                logger.warn("Saved tax lots were matched with another method, starting from this report");
+                return engine;
+            }
+            engine.month = in.readLong();
+            engine.reportDay = in.readLong();
+            engine.lastDay = in.readLong();
+            engine.committedDay = engine.lastDay;
+            engine.nextId = in.readLong();
+            int symbols = in.readInt();
+            for (int s = 0; s < symbols; s++) {
+                String symbol = in.readUTF();
+                LotQueue queue = new LotQueue();
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    queue.addLast(in.readLong(), in.readLong(), in.readDouble(), in.readDouble());
+                }
+                engine.lots.put(symbol, queue);
+            }
+            int realised = in.readInt();
+            for (int s = 0; s < realised; s++) {
+                String symbol = in.readUTF();
+                engine.realised.put(symbol, new double[]{in.readDouble(), in.readDouble(), in.readDouble()});
+            }
+            logger.debug("Loaded open lots of {} symbols from '{}'", symbols, file);
+            return engine;
+        }
+    }
+
+    /**
+     * Saves a snapshot of the open lots, the month's totals and the last report date. The file is replaced atomically, so a crash leaves
+     * the previous snapshot intact.
+     *
+     * @param file The file to save the snapshot to.
+     * @throws IOException If the file cannot be written.
+     */
+    public void save(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeUTF(this.method.name());
+            out.writeLong(this.month);
+            out.writeLong(this.reportDay);
+            out.writeLong(this.lastDay);
+            out.writeLong(this.nextId);
+            out.writeInt(this.lots.size());
+            for (Map.Entry<String, LotQueue> symbol : this.lots.entrySet()) {
+                LotQueue queue = symbol.getValue();
+                out.writeUTF(symbol.getKey());
+                out.writeInt(queue.size);
+                for (int i = 0; i < queue.size; i++) {
+                    int slot = queue.slot(i);
+                    out.writeLong(queue.ids[slot]);
+                    out.writeLong(queue.days[slot]);
+                    out.writeDouble(queue.quantities[slot]);
+                    out.writeDouble(queue.prices[slot]);
+                }
+            }
+            out.writeInt(this.realised.size());
+            for (Map.Entry<String, double[]> symbol : this.realised.entrySet()) {
+                out.writeUTF(symbol.getKey());
+                for (double value : symbol.getValue()) {
+                    out.writeDouble(value);
+                }
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Saved open lots of {} symbols to '{}'", this.lots.size(), file);
+    }
+
+}
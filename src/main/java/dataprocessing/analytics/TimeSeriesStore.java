@@ -0,0 +1,285 @@
+package dataprocessing.analytics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.zip.CRC32;
+
+
+/**
+ * Persistent daily time series (e.g. an account's NAV or returns) in a memory-mapped file of fixed-width records.
+ * <p>
+ * Each record is an epoch day and a value, 16 bytes, in strictly increasing date order, so the records themselves
+ * are the date index and a date is found by binary search over the mapping. Writes are append-only: records are
+ * written after the committed tail, then {@link #commit()} flushes them and writes a new tail marker holding the
+ * committed record count. The header holds two checksummed tail markers which are written alternately, so a crash
+ * during a commit leaves the previous marker intact, and records past the committed tail are ignored on open.
+ * Reads are range scans over a read-only view of the mapping, so no records are copied onto the heap.
+ */
+public class TimeSeriesStore implements Closeable {
+
+    // Logger for this class
+    private static final Logger logger = LoggerFactory.getLogger(TimeSeriesStore.class);
+
+    /* File layout: magic and record size, two tail markers of (sequence, count, checksum), then the records */
+    private static final int MAGIC = 0x54535331;
+    private static final int HEADER_SIZE = 64;
+    private static final int MARKER_OFFSET = 16;
+    private static final int MARKER_SIZE = 24;
+    public static final int RECORD_SIZE = 16;
+    /* The file is extended by this many records at a time */
+    private static final int GROWTH_RECORDS = 4096;
+    private static final int MAX_RECORDS = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+    /**
+     * A read-only range of consecutive records, backed by the store's mapping.
+     */
+    public static class Range {
+
+        private final ByteBuffer records;
+        private final int size;
+
+        private Range(ByteBuffer records, int size) {
+            this.records = records;
+            this.size = size;
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        public long getDay(int index) {
+            return this.records.getLong(index * RECORD_SIZE);
+        }
+
+        public LocalDate getDate(int index) {
+            return LocalDate.ofEpochDay(getDay(index));
+        }
+
+        public double getValue(int index) {
+            return this.records.getDouble(index * RECORD_SIZE + 8);
+        }
+
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private MappedByteBuffer mapping;
+    /* Records the mapping has room for */
+    private int capacity;
+    /* Records covered by the latest tail marker, and records written including uncommitted ones */
+    private int committed;
+    private int written;
+    private long sequence;
+
+    private TimeSeriesStore(Path file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Opens a series, creating its file if it does not exist. Records written after the last commit are discarded.
+     *
+     * @param file The file of the series.
+     * @return The opened series.
+     * @throws IOException If the file cannot be opened, or is not a valid series.
+     */
+    public static TimeSeriesStore open(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        TimeSeriesStore store = new TimeSeriesStore(file, channel);
+        try {
+            boolean created = channel.size() == 0;
+            store.map(Math.max(GROWTH_RECORDS, (int) ((channel.size() - HEADER_SIZE) / RECORD_SIZE)));
+            if (created) {
+                store.mapping.putInt(0, MAGIC);
+                store.mapping.putInt(4, RECORD_SIZE);
+                store.writeMarker(0, 0, 0);
+                store.mapping.force();
+            } else {
+                store.readMarkers();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        logger.debug("Opened series '{}' with {} records", file, store.committed);
+        return store;
+    }
+
+    /**
+     * @return The number of records, including any not yet committed.
+     */
+    public int size() {
+        return this.written;
+    }
+
+    /**
+     * @return The date of the first record, or null if there are none.
+     */
+    public LocalDate getFirstDate() {
+        return this.written == 0 ? null : LocalDate.ofEpochDay(day(0));
+    }
+
+    /**
+     * @return The date of the latest record, or null if there are none.
+     */
+    public LocalDate getLastDate() {
+        return this.written == 0 ? null : LocalDate.ofEpochDay(day(this.written - 1));
+    }
+
+    /**
+     * @param date A date.
+     * @return The date of the latest record before the date, or null if there is none.
+     */
+    public LocalDate getDateBefore(LocalDate date) {
+        int index = lowerBound(date.toEpochDay());
+        return index == 0 ? null : LocalDate.ofEpochDay(day(index - 1));
+    }
+
+    /**
+     * Appends a record after the latest one. It is only kept once committed.
+     *
+     * @param date The date of the record.
+     * @param value The value on that date.
+     * @return Whether the record was appended; false if it is not after the latest record.
+     * @throws IOException If the file cannot be extended.
+     */
+    public boolean append(LocalDate date, double value) throws IOException {
+        long day = date.toEpochDay();
+        if (this.written > 0 && day <= day(this.written - 1)) {
+            return false;
+        }
+        if (this.written == this.capacity) {
+            if (this.capacity == MAX_RECORDS) throw new IOException("Series '" + this.file + "' is full");
+            map((int) Math.min(MAX_RECORDS, (long) this.capacity + GROWTH_RECORDS));
+        }
+        int position = HEADER_SIZE + this.written * RECORD_SIZE;
+        this.mapping.putLong(position, day);
+        this.mapping.putDouble(position + 8, value);
+        this.written++;
+        return true;
+    }
+
+    /**
+     * Makes the appended records durable: they are flushed to disk before the tail marker which covers them.
+     */
+    public void commit() {
+        if (this.written == this.committed) {
+            return;
+        }
+        this.mapping.force();
+        this.sequence++;
+        writeMarker((int) (this.sequence % 2), this.sequence, this.written);
+        this.mapping.force();
+        this.committed = this.written;
+    }
+
+    /**
+     * Scans the records dated within an inclusive range, without copying them.
+     *
+     * @param from The first date to include.
+     * @param to The last date to include.
+     * @return A view of the records in the range, valid while the store is open.
+     */
+    public Range scan(LocalDate from, LocalDate to) {
+        int start = lowerBound(from.toEpochDay());
+        int end = Math.max(start, lowerBound(to.toEpochDay() + 1));
+        ByteBuffer view = this.mapping.duplicate();
+        view.position(HEADER_SIZE + start * RECORD_SIZE).limit(HEADER_SIZE + end * RECORD_SIZE);
+        return new Range(view.slice().asReadOnlyBuffer(), end - start);
+    }
+
+    /**
+     * Closes the series. Records appended since the last commit are discarded.
+     */
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    /**
+     * Binary search for the first record dated on or after a day.
+     */
+    private int lowerBound(long key) {
+        int low = 0;
+        int high = this.written;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (day(middle) < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private long day(int index) {
+        return this.mapping.getLong(HEADER_SIZE + index * RECORD_SIZE);
+    }
+
+    /**
+     * Maps the file with room for a number of records, extending the file if needed.
+     */
+    private void map(int records) throws IOException {
+        long size = HEADER_SIZE + (long) records * RECORD_SIZE;
+        if (this.channel.size() < size) {
+            this.channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+        this.mapping = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        this.capacity = records;
+    }
+
+    /**
+     * Reads the header, using the valid tail marker with the highest sequence.
+     */
+    private void readMarkers() throws IOException {
+        if (this.mapping.getInt(0) != MAGIC || this.mapping.getInt(4) != RECORD_SIZE) {
+            throw new IOException("'" + this.file + "' is not a time series file");
+        }
+        boolean found = false;
+        for (int slot = 0; slot < 2; slot++) {
+            int offset = MARKER_OFFSET + slot * MARKER_SIZE;
+            long markerSequence = this.mapping.getLong(offset);
+            long count = this.mapping.getLong(offset + 8);
+            if (this.mapping.getLong(offset + 16) != checksum(markerSequence, count)
+                    || count < 0 || count > this.capacity) {
+                continue;
+            }
+            if (!found || markerSequence > this.sequence) {
+                this.sequence = markerSequence;
+                this.committed = (int) count;
+                found = true;
+            }
+        }
+        if (!found) {
+            throw new IOException("Series '" + this.file + "' has no valid tail marker");
+        }
+        this.written = this.committed;
+    }
+
+    private void writeMarker(int slot, long markerSequence, int count) {
+        int offset = MARKER_OFFSET + slot * MARKER_SIZE;
+        this.mapping.putLong(offset, markerSequence);
+        this.mapping.putLong(offset + 8, count);
+        this.mapping.putLong(offset + 16, checksum(markerSequence, count));
+    }
+
+    private static long checksum(long markerSequence, long count) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(16).putLong(markerSequence).putLong(count).flip());
+        return crc.getValue();
+    }
+
+}
@@ -1,21 +1,134 @@
 package dataprocessing.reportpage;
 
+import dataprocessing.NumberCodec;
+import dataprocessing.ReportContext;
 import dataprocessing.ReportPageProcessor;
+import dataprocessing.SectionTable;
+import dataprocessing.analytics.AllocationCube;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+
 
 /**
  * Used to process the 'Concentration' page of a report CSV.
+ * Builds an allocation cube from the positions in the 'Open Position Summary' page, over whichever of asset class,
+ * financial instrument, region, sector and symbol the positions show. Appends the rolled-up value and weight of every
+ * node of that hierarchy, flattened into rows, and the largest holdings at each level.
  */
 public class Concentration implements ReportPageProcessor {
 
     // Logger for this class
-    private static final Logger logger = LoggerFactory.getLogger(AllocationByFinancialInstrument.class);
+    private static final Logger logger = LoggerFactory.getLogger(Concentration.class);
+
+    /* Page holding the positions */
+    private static final String POSITIONS_PAGE = "Open Position Summary";
+    /* Hierarchy of the cube, from the top down: each dimension and the column names it may have */
+    private static final String[][] DIMENSIONS = {
+            {"Asset Class", "Asset Category"},
+            {"Financial Instrument", "Instrument"},
+            {"Region"},
+            {"Sector"},
+            {"Symbol"},
+    };
+    /* Number of largest holdings listed at each level, set with -Dreports.concentrationTopN=10 */
+    private static final String TOP_N_PROPERTY = "reports.concentrationTopN";
+    private static final int DEFAULT_TOP_N = 10;
 
     @Override
     public String processDataSection(String dataCSV) {
         return dataCSV;
     }
 
+    @Override
+    public String processDataSection(String dataCSV, ReportContext context) {
+        SectionTable positions = context.getTable(POSITIONS_PAGE);
+        if (positions == null || positions.getColumn("Value") < 0) {
+            logger.warn("No position values in '{}' to build allocations from", POSITIONS_PAGE);
+            return dataCSV;
+        }
+
+        // Dimensions the positions have columns for
+        List<String> dimensions = new ArrayList<>();
+        List<Integer> columns = new ArrayList<>();
+        for (String[] dimension : DIMENSIONS) {
+            for (String name : dimension) {
+                int column = positions.getColumn(name);
+                if (column >= 0) {
+                    dimensions.add(dimension[0]);
+                    columns.add(column);
+                    break;
+                }
+            }
+        }
+        if (dimensions.isEmpty()) {
+            return dataCSV;
+        }
+
+        int valueColumn = positions.getColumn("Value");
+        List<String[]> rows = positions.getRows();
+        String[][] paths = new String[rows.size()][dimensions.size()];
+        double[] values = new double[rows.size()];
+        for (int p = 0; p < rows.size(); p++) {
+            String[] row = rows.get(p);
+            for (int d = 0; d < dimensions.size(); d++) {
+                String cell = SectionTable.getCell(row, columns.get(d)).trim();
+                paths[p][d] = cell.isEmpty() ? "--" : cell;
+            }
+            values[p] = SectionTable.parseNumber(SectionTable.getCell(row, valueColumn));
+        }
+
+        AllocationCube cube;
+        try {
+            cube = AllocationCube.build(dimensions.toArray(new String[0]), paths, values);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unable to build allocation cube");
+            logger.warn(e.toString());
+            return dataCSV;
+        }
+        double total = cube.getTotal();
+
+        StringBuilder block = new StringBuilder(dataCSV);
+        block.append("Header,Allocation Rollup,Level");
+        for (String dimension : dimensions) {
+            block.append(',').append(dimension);
+        }
+        block.append(",Value,Weight (%)\n");
+        for (AllocationCube.Node node : cube.getRollups()) {
+            appendNode(block, "Allocation Rollup", Integer.toString(node.getLevel()), node, dimensions.size(), total);
+        }
+
+        int topN = Integer.getInteger(TOP_N_PROPERTY, DEFAULT_TOP_N);
+        block.append("Header,Top Holdings,Rank");
+        for (String dimension : dimensions) {
+            block.append(',').append(dimension);
+        }
+        block.append(",Value,Weight (%)\n");
+        for (int level = 1; level <= dimensions.size(); level++) {
+            int rank = 1;
+            for (AllocationCube.Node node : cube.top(level, topN)) {
+                appendNode(block, "Top " + dimensions.get(level - 1), Integer.toString(rank++), node,
+                        dimensions.size(), total);
+            }
+        }
+        return block.toString();
+    }
+
+    /**
+     * Appends a node as a row, with its path padded to every dimension.
+     */
+    private static void appendNode(StringBuilder block, String label, String position, AllocationCube.Node node,
+                                   int dimensions, double total) {
+        block.append("Data,").append(label).append(',').append(position);
+        String[] path = node.getPath();
+        for (int d = 0; d < dimensions; d++) {
+            block.append(',');
+            if (d < path.length) block.append(SectionTable.quote(path[d]));
+        }
+        NumberCodec.appendFixed(block.append(','), node.getValue(), 2).append(',');
+        NumberCodec.appendFixed(block, total == 0 ? Double.NaN : node.getValue() / total * 100, 4).append('\n');
+    }
+
 }
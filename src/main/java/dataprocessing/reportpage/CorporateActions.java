@@ -1,21 +1,158 @@
 package dataprocessing.reportpage;
 
+import dataprocessing.NumberCodec;
+import dataprocessing.ReportContext;
 import dataprocessing.ReportPageProcessor;
+import dataprocessing.ReportProcessor;
+import dataprocessing.SectionTable;
+import dataprocessing.analytics.AdjustmentIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 
 /**
  * Used to process the 'Corporate Actions' page of a report CSV.
+ * Adds the splits on the page to the shared adjustment index, which adjusts per-symbol histories when they are read,
+ * and appends the factor of each split.
  */
 public class CorporateActions implements ReportPageProcessor {
 
     // Logger for this class
-    private static final Logger logger = LoggerFactory.getLogger(AllocationByFinancialInstrument.class);
+    private static final Logger logger = LoggerFactory.getLogger(CorporateActions.class);
+
+    /* Name of this page, for handlers which need its actions first */
+    private static final String PAGE = "Corporate Actions";
+    /* Splits and reverse splits, e.g. 'AAPL(US0378331005) Split 4 for 1 (AAPL, APPLE INC, US0378331005)' */
+    private static final Pattern SPLIT = Pattern.compile("split\\s+(\\d+(?:\\.\\d+)?)\\s+for\\s+(\\d+(?:\\.\\d+)?)",
+            Pattern.CASE_INSENSITIVE);
+    /* Symbol at the start of a description, before its security id */
+    private static final Pattern SYMBOL = Pattern.compile("^\\s*([^\\s(]+)\\(");
+    /* Columns used from the page */
+    private static final String[] COLUMNS = {"Date", "Description", "Symbol"};
+
+    private static final String INDEX_FILE = "adjustments.dat";
+    /* Shared by all reports of the process, and loaded on first use from the file it is saved to */
+    private static AdjustmentIndex index;
+    private static Path indexFile;
 
     @Override
     public String processDataSection(String dataCSV) {
         return dataCSV;
     }
 
+    @Override
+    public String processDataSection(String dataCSV, ReportContext context) {
+        SectionTable actions = SectionTable.parse(dataCSV, COLUMNS);
+        AdjustmentIndex adjustments = getIndex(context);
+
+        StringBuilder block = new StringBuilder();
+        int dateColumn = actions.findColumn("Date");
+        int descriptionColumn = actions.findColumn("Description");
+        int symbolColumn = actions.getColumn("Symbol");
+        for (String[] row : actions.getRows()) {
+            Split split = parseSplit(row, dateColumn, descriptionColumn, symbolColumn);
+            if (split != null) {
+                block.append("Data,").append(split.symbol).append(',').append(split.effective).append(',');
+                NumberCodec.appendFixed(block, split.factor, 6).append('\n');
+            }
+        }
+        if (block.length() == 0) {
+            return dataCSV;
+        }
+        logger.debug("{} symbols have adjustment factors", adjustments.size());
+        return dataCSV + "Header,Adjusted Symbol,Effective Date,Share Factor\n" + block;
+    }
+
+    /**
+     * Gets the shared adjustment index, first adding the splits on the report's 'Corporate Actions' page. Handlers
+     * which build per-symbol histories call this, as the page may come after theirs in the report.
+     *
+     * @param context The report being processed.
+     * @return The adjustment index.
+     */
+    public static synchronized AdjustmentIndex getIndex(ReportContext context) {
+        Path file = ReportProcessor.getStateDirectory().resolve(INDEX_FILE);
+        if (index == null || !file.equals(indexFile)) {
+            indexFile = file;
+            try {
+                index = AdjustmentIndex.load(file);
+            } catch (IOException e) {
+                logger.warn("Unable to load saved adjustment factors, starting from this report");
+                logger.warn(e.toString());
+                index = new AdjustmentIndex();
+            }
+        }
+
+        SectionTable actions = context.getTable(PAGE);
+        if (actions == null) {
+            return index;
+        }
+        int dateColumn = actions.findColumn("Date");
+        int descriptionColumn = actions.findColumn("Description");
+        int symbolColumn = actions.getColumn("Symbol");
+        boolean changed = false;
+        for (String[] row : actions.getRows()) {
+            Split split = parseSplit(row, dateColumn, descriptionColumn, symbolColumn);
+            if (split != null && index.add(split.symbol, split.effective, split.factor)) {
+                changed = true;
+            }
+        }
+
+        if (changed) {
+            try {
+                index.save(file);
+            } catch (IOException e) {
+                logger.warn("Unable to save adjustment factors");
+                logger.warn(e.toString());
+            }
+        }
+        return index;
+    }
+
+    /**
+     * A split read from a row of the page.
+     */
+    private static class Split {
+
+        private final String symbol;
+        private final LocalDate effective;
+        private final double factor;
+
+        private Split(String symbol, LocalDate effective, double factor) {
+            this.symbol = symbol;
+            this.effective = effective;
+            this.factor = factor;
+        }
+
+    }
+
+    /**
+     * Reads a split from a row. 'Split N for M' gives N shares for every M held.
+     *
+     * @return The split, or null if the row is not a split.
+     */
+    private static Split parseSplit(String[] row, int dateColumn, int descriptionColumn, int symbolColumn) {
+        String description = SectionTable.getCell(row, descriptionColumn);
+        Matcher split = SPLIT.matcher(description);
+        LocalDate effective = SectionTable.parseDate(SectionTable.getCell(row, dateColumn));
+        if (!split.find() || effective == null) {
+            return null;
+        }
+
+        String symbol = SectionTable.getCell(row, symbolColumn).trim();
+        if (symbol.isEmpty()) {
+            Matcher prefix = SYMBOL.matcher(description);
+            if (!prefix.find()) return null;
+            symbol = prefix.group(1);
+        }
+        double factor = Double.parseDouble(split.group(1)) / Double.parseDouble(split.group(2));
+        return new Split(symbol, effective, factor);
+    }
+
 }
@@ -1,21 +1,237 @@
 package dataprocessing.reportpage;
 
+import dataprocessing.NumberCodec;
+import dataprocessing.ReportContext;
 import dataprocessing.ReportPageProcessor;
+import dataprocessing.ReportProcessor;
+import dataprocessing.SectionTable;
+import dataprocessing.analytics.ReturnsEngine;
+import dataprocessing.analytics.TimeSeriesStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.List;
+
 
 /**
  * Used to process the 'Historical Performance' page of a report CSV.
+ * Appends time-weighted and money-weighted returns over the month, quarter and year to date and the trailing 12
+ * months. Cash flows are read from the 'Deposits And Withdrawals' page. The account's daily NAVs and returns are
+ * appended to its memory-mapped time series, which keep its whole history, so windows longer than a report are
+ * covered and each report only adds its new days. The windows read the last year of the series, multi-year lookbacks
+ * are scanned from them, and only the cash flows are saved separately.
  */
 public class HistoricalPerformance implements ReportPageProcessor {
 
     // Logger for this class
-    private static final Logger logger = LoggerFactory.getLogger(AllocationByFinancialInstrument.class);
+    private static final Logger logger = LoggerFactory.getLogger(HistoricalPerformance.class);
+
+    /* Page holding the external cash flows */
+    private static final String FLOWS_PAGE = "Deposits And Withdrawals";
+    /* Columns used from the page */
+    private static final String[] COLUMNS = {"Date", "Return", "NAV", "Value"};
+    /* Lookbacks scanned from the stored series, in years; 0 is since the first stored day */
+    private static final int[] LOOKBACK_YEARS = {3, 5, 0};
+    /* A lookback is shown if the stored series starts at most this many days after its start */
+    private static final int LOOKBACK_TOLERANCE_DAYS = 7;
 
     @Override
     public String processDataSection(String dataCSV) {
         return dataCSV;
     }
 
+    @Override
+    public String processDataSection(String dataCSV, ReportContext context) {
+        SectionTable history = SectionTable.parse(dataCSV, COLUMNS);
+        int dateColumn = history.getColumn("Date");
+        int returnColumn = history.findColumn("Return");
+        if (dateColumn < 0 || returnColumn < 0) {
+            logger.warn("Page is missing a date or return column");
+            return dataCSV;
+        }
+        int valueColumn = history.findColumn("NAV");
+        if (valueColumn < 0) valueColumn = history.findColumn("Value");
+
+        String account = context.getReport().getAccount();
+        StringBuilder lookbacks = new StringBuilder();
+        ReturnsEngine engine = update(account, history, dateColumn, returnColumn, valueColumn,
+                context.getTable(FLOWS_PAGE), lookbacks);
+        List<ReturnsEngine.Window> windows = engine.getWindows();
+        if (windows.isEmpty() && lookbacks.length() == 0) {
+            return dataCSV;
+        }
+
+        StringBuilder block = new StringBuilder(dataCSV);
+        if (!windows.isEmpty()) {
+            block.append("Header,Calculated Return,From,To,Time-Weighted Return (%),Money-Weighted Return (%)\n");
+        }
+        for (ReturnsEngine.Window window : windows) {
+            block.append("Data,").append(window.getName())
+                    .append(',').append(window.getFrom())
+                    .append(',').append(window.getTo());
+            appendPercent(block, window.getTimeWeighted());
+            appendPercent(block, window.getMoneyWeighted());
+            block.append('\n');
+        }
+        return block.append(lookbacks).toString();
+    }
+
+    /**
+     * Appends a report's new days to the stored NAV and return series of its account, and its new cash flows to the
+     * saved flows, then reads the engine for the return windows from them and scans the lookbacks. Days up to the
+     * latest stored day are already stored, so only later days and their flows are added. A report older than the
+     * stored series (e.g. when replaying history) is calculated on its own days and flows, without lookbacks, and
+     * the stored series are left unchanged.
+     *
+     * @param lookbacks Receives the lookback block, if any.
+     * @return The engine for the return windows.
+     */
+    private static synchronized ReturnsEngine update(String account, SectionTable history, int dateColumn,
+                                                     int returnColumn, int valueColumn, SectionTable flows,
+                                                     StringBuilder lookbacks) {
+        String name = account.replaceAll("[^A-Za-z0-9._-]", "_");
+        Path directory = ReportProcessor.getStateDirectory();
+        Path flowsFile = directory.resolve("flows-" + name + ".dat");
+        try (TimeSeriesStore navs = TimeSeriesStore.open(directory.resolve("series").resolve(name + "-nav.ts"));
+             TimeSeriesStore returns = TimeSeriesStore.open(directory.resolve("series")
+                     .resolve(name + "-returns.ts"))) {
+
+            LocalDate lastStored = returns.getLastDate();
+            LocalDate lastReported = null;
+            for (String[] row : history.getRows()) {
+                LocalDate date = SectionTable.parseDate(SectionTable.getCell(row, dateColumn));
+                if (date != null && (lastReported == null || date.isAfter(lastReported))) lastReported = date;
+            }
+            if (lastStored != null && (lastReported == null || lastReported.isBefore(lastStored))) {
+                logger.debug("Report is older than stored series, calculating from its own days");
+                ReturnsEngine engine = new ReturnsEngine();
+                addDays(engine, history, dateColumn, returnColumn, valueColumn);
+                addFlows(engine, flows, null, lastReported);
+                return engine;
+            }
+
+            int added = 0;
+            for (String[] row : history.getRows()) {
+                LocalDate date = SectionTable.parseDate(SectionTable.getCell(row, dateColumn));
+                if (date == null) continue;
+                double dailyReturn = SectionTable.parseNumber(SectionTable.getCell(row, returnColumn)) / 100;
+                double value = valueColumn < 0 ? Double.NaN
+                        : SectionTable.parseNumber(SectionTable.getCell(row, valueColumn));
+                if (!Double.isNaN(dailyReturn) && returns.append(date, dailyReturn)) added++;
+                if (!Double.isNaN(value)) navs.append(date, value);
+            }
+            navs.commit();
+            returns.commit();
+            logger.debug("Added {} new days to stored series of account '{}'", added, account);
+
+            // Only flows on the newly added days, as earlier flows were saved with their days
+            ReturnsEngine engine = ReturnsEngine.fromSeries(returns, navs);
+            engine.loadFlows(flowsFile);
+            if (addFlows(engine, flows, lastStored, lastReported) > 0) {
+                engine.saveFlows(flowsFile);
+            }
+
+            LocalDate last = returns.getLastDate();
+            if (last != null) {
+                lookbacks.append(lookbacks(returns, last));
+            }
+            return engine;
+        } catch (IOException e) {
+            logger.warn("Unable to update stored series for account '{}', calculating from this report", account);
+            logger.warn(e.toString());
+            ReturnsEngine engine = new ReturnsEngine();
+            addDays(engine, history, dateColumn, returnColumn, valueColumn);
+            return engine;
+        }
+    }
+
+    /**
+     * Calculates cumulative and annualised returns and the maximum drawdown over each lookback ending on a date.
+     */
+    private static String lookbacks(TimeSeriesStore returns, LocalDate last) {
+        LocalDate first = returns.getFirstDate();
+        StringBuilder block = new StringBuilder();
+        for (int years : LOOKBACK_YEARS) {
+            LocalDate from = years == 0 ? first : last.minusYears(years).plusDays(1);
+            if (first.isAfter(from.plusDays(LOOKBACK_TOLERANCE_DAYS))) continue;
+
+            TimeSeriesStore.Range range = returns.scan(from, last);
+            if (range.size() == 0) continue;
+            double growth = 1;
+            double peak = 1;
+            double maxDrawdown = 0;
+            for (int i = 0; i < range.size(); i++) {
+                growth *= 1 + range.getValue(i);
+                peak = Math.max(peak, growth);
+                maxDrawdown = Math.min(maxDrawdown, growth / peak - 1);
+            }
+            double span = (last.toEpochDay() - range.getDay(0) + 1) / 365.25;
+            double annualised = span < 1 ? Double.NaN : Math.pow(growth, 1 / span) - 1;
+
+            if (block.length() == 0) {
+                block.append("Header,Lookback,From,To,Cumulative Return (%),Annualised Return (%),"
+                        + "Max Drawdown (%)\n");
+            }
+            block.append("Data,").append(years == 0 ? "Since Inception" : years + "Y")
+                    .append(',').append(range.getDate(0))
+                    .append(',').append(last);
+            appendPercent(block, growth - 1);
+            appendPercent(block, annualised);
+            appendPercent(block, maxDrawdown);
+            block.append('\n');
+        }
+        return block.toString();
+    }
+
+    private static void addDays(ReturnsEngine engine, SectionTable history, int dateColumn, int returnColumn,
+                                int valueColumn) {
+        for (String[] row : history.getRows()) {
+            LocalDate date = SectionTable.parseDate(SectionTable.getCell(row, dateColumn));
+            if (date == null) continue;
+            double dailyReturn = SectionTable.parseNumber(SectionTable.getCell(row, returnColumn)) / 100;
+            double value = valueColumn < 0 ? Double.NaN
+                    : SectionTable.parseNumber(SectionTable.getCell(row, valueColumn));
+            engine.addDay(date, dailyReturn, value);
+        }
+    }
+
+    /**
+     * Adds the cash flows of the 'Deposits And Withdrawals' page dated after one date, up to and including another.
+     *
+     * @return The number of flows added.
+     */
+    private static int addFlows(ReturnsEngine engine, SectionTable flows, LocalDate after, LocalDate until) {
+        int dateColumn = flows == null ? -1 : flows.getColumn("Date");
+        int amountColumn = flows == null ? -1 : flows.findColumn("Amount");
+        if (dateColumn < 0 || amountColumn < 0) {
+            return 0;
+        }
+        int added = 0;
+        for (String[] row : flows.getRows()) {
+            LocalDate date = SectionTable.parseDate(SectionTable.getCell(row, dateColumn));
+            if (date == null || (after != null && !date.isAfter(after))) continue;
+            if (until != null && date.isAfter(until)) continue;
+            double amount = SectionTable.parseNumber(SectionTable.getCell(row, amountColumn));
+            if (Double.isNaN(amount) || amount == 0) continue;
+            engine.addFlow(date, amount);
+            added++;
+        }
+        return added;
+    }
+
+    /**
+     * Appends a cell with a fraction as a percentage, or '--' if it is not known.
+     */
+    private static void appendPercent(StringBuilder block, double value) {
+        block.append(',');
+        if (Double.isNaN(value)) {
+            block.append("--");
+        } else {
+            NumberCodec.appendFixed(block, value * 100, 4);
+        }
+    }
+
 }
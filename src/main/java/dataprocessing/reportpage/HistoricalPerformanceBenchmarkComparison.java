@@ -1,21 +1,244 @@
 package dataprocessing.reportpage;
 
+import dataprocessing.NumberCodec;
+import dataprocessing.ReportContext;
 import dataprocessing.ReportPageProcessor;
+import dataprocessing.ReportProcessor;
+import dataprocessing.SectionTable;
+import dataprocessing.analytics.BenchmarkEngine;
+import dataprocessing.analytics.RiskEngine;
+import dataprocessing.analytics.TimeSeriesStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.*;
+
 
 /**
  * Used to process the 'Historical Performance Benchmark Comparison' page of a report CSV.
+ * Appends tracking error, information ratio, beta, alpha, up/down capture and correlation of the account's daily
+ * returns (from the 'Historical Performance' page) against every benchmark on this page.
+ * Benchmarks may be laid out as one return column each, or as rows with a 'Benchmark' column.
+ * Each report's daily returns are appended to stored series of the account and of each benchmark (see
+ * `TimeSeriesStore`), and the statistics are calculated over every stored day, so they span past reports rather than
+ * only this report's month.
  */
 public class HistoricalPerformanceBenchmarkComparison implements ReportPageProcessor {
 
     // Logger for this class
-    private static final Logger logger = LoggerFactory.getLogger(AllocationByFinancialInstrument.class);
+    private static final Logger logger = LoggerFactory.getLogger(HistoricalPerformanceBenchmarkComparison.class);
+
+    /* Page holding the account's daily returns */
+    private static final String HISTORY_PAGE = "Historical Performance";
+    /* Number of most recent days used for the rolling correlation */
+    private static final int ROLLING_WINDOW = 63;
+    /* Annual risk-free rate as a fraction, shared with the 'Risk Measures' calculations */
+    private static final String RISK_FREE_RATE_PROPERTY = "reports.riskFreeRate";
 
     @Override
     public String processDataSection(String dataCSV) {
         return dataCSV;
     }
 
+    @Override
+    public String processDataSection(String dataCSV, ReportContext context) {
+        SectionTable history = context.getTable(HISTORY_PAGE);
+        SectionTable comparison = SectionTable.parse(dataCSV);
+        if (history == null || history.getColumn("Date") < 0 || history.findColumn("Return") < 0
+                || comparison.getColumn("Date") < 0) {
+            logger.warn("Missing dated returns to compare against benchmarks");
+            return dataCSV;
+        }
+
+        // Portfolio returns by date
+        TreeMap<Long, Double> portfolioByDay = new TreeMap<>();
+        int dateColumn = history.getColumn("Date");
+        int returnColumn = history.findColumn("Return");
+        for (String[] row : history.getRows()) {
+            LocalDate date = SectionTable.parseDate(SectionTable.getCell(row, dateColumn));
+            if (date != null) {
+                portfolioByDay.put(date.toEpochDay(),
+                        SectionTable.parseNumber(SectionTable.getCell(row, returnColumn)) / 100);
+            }
+        }
+
+        // Benchmark returns by date, for each benchmark
+        Map<String, Map<Long, Double>> benchmarkReturns = readBenchmarks(comparison);
+        if (portfolioByDay.isEmpty() || benchmarkReturns.isEmpty()) {
+            return dataCSV;
+        }
+        String[] names = benchmarkReturns.keySet().toArray(new String[0]);
+
+        double[][] aligned = alignStored(context.getReport().getAccount(), portfolioByDay, benchmarkReturns, names);
+        double riskFreeRate = Double.parseDouble(System.getProperty(RISK_FREE_RATE_PROPERTY, "0"));
+        double dailyRiskFreeRate = Math.pow(1 + riskFreeRate, 1.0 / RiskEngine.TRADING_DAYS) - 1;
+        BenchmarkEngine.Result result = BenchmarkEngine.compare(aligned[0],
+                Arrays.copyOfRange(aligned, 1, aligned.length), dailyRiskFreeRate, ROLLING_WINDOW);
+        logger.debug("Compared {} aligned days against {} benchmarks", result.getDays(), names.length);
+
+        StringBuilder block = new StringBuilder(dataCSV);
+        block.append("Header,Benchmark,Days,Tracking Error (%),Information Ratio,Beta,Alpha (%),")
+                .append("Up Capture (%),Down Capture (%),Correlation,Rolling Correlation (")
+                .append(ROLLING_WINDOW).append(" days)\n");
+        for (int b = 0; b < names.length; b++) {
+            block.append("Data,").append(names[b]).append(',').append(result.getDays());
+            appendValue(block, result.getTrackingError()[b] * 100);
+            appendValue(block, result.getInformationRatio()[b]);
+            appendValue(block, result.getBeta()[b]);
+            appendValue(block, result.getAlpha()[b] * 100);
+            appendValue(block, result.getUpCapture()[b]);
+            appendValue(block, result.getDownCapture()[b]);
+            appendValue(block, result.getCorrelation()[b]);
+            appendValue(block, result.getRollingCorrelation()[b]);
+            block.append('\n');
+        }
+        return block.toString();
+    }
+
+    /**
+     * Appends a report's days to the stored return series of its account and of each of its benchmarks, then reads
+     * them back aligned by date. A report older than the stored series (e.g. when replaying history) is compared on
+     * its own days, and the stored series are left unchanged.
+     *
+     * @return The portfolio's returns, then each benchmark's, on the days they all have.
+     */
+    private static synchronized double[][] alignStored(String account, TreeMap<Long, Double> portfolioByDay,
+                                                       Map<String, Map<Long, Double>> benchmarkReturns,
+                                                       String[] names) {
+        String name = account.replaceAll("[^A-Za-z0-9._-]", "_");
+        Path directory = ReportProcessor.getStateDirectory().resolve("series");
+        try (TimeSeriesStore portfolio = TimeSeriesStore.open(directory.resolve(name + "-comparison.ts"))) {
+            LocalDate lastStored = portfolio.getLastDate();
+            if (lastStored != null && portfolioByDay.lastKey() < lastStored.toEpochDay()) {
+                logger.debug("Report is older than stored series, comparing its own days");
+                return align(portfolioByDay, benchmarkReturns, names);
+            }
+            append(portfolio, portfolioByDay);
+            if (portfolio.size() == 0) {
+                return align(portfolioByDay, benchmarkReturns, names);
+            }
+
+            TimeSeriesStore.Range range = portfolio.scan(portfolio.getFirstDate(), portfolio.getLastDate());
+            long[] days = new long[range.size()];
+            double[] returns = new double[range.size()];
+            for (int d = 0; d < days.length; d++) {
+                days[d] = range.getDay(d);
+                returns[d] = range.getValue(d);
+            }
+            double[][] benchmarks = new double[names.length][];
+            for (int b = 0; b < names.length; b++) {
+                Path file = directory.resolve(name + "-benchmark-" + names[b].replaceAll("[^A-Za-z0-9._-]", "_")
+                        + ".ts");
+                try (TimeSeriesStore benchmark = TimeSeriesStore.open(file)) {
+                    append(benchmark, benchmarkReturns.get(names[b]));
+                    benchmarks[b] = read(benchmark, days);
+                }
+            }
+            return BenchmarkEngine.align(days, returns, days, benchmarks);
+        } catch (IOException e) {
+            logger.warn("Unable to update stored benchmark series for account '{}', comparing this report's days",
+                    account);
+            logger.warn(e.toString());
+            return align(portfolioByDay, benchmarkReturns, names);
+        }
+    }
+
+    /**
+     * Appends the days of a series after the latest stored day, skipping days without a return, and commits them.
+     */
+    private static void append(TimeSeriesStore store, Map<Long, Double> series) throws IOException {
+        for (Map.Entry<Long, Double> day : new TreeMap<>(series).entrySet()) {
+            if (!Double.isNaN(day.getValue())) store.append(LocalDate.ofEpochDay(day.getKey()), day.getValue());
+        }
+        store.commit();
+    }
+
+    /**
+     * Reads a stored series on the given days, in order.
+     *
+     * @return The value on each day, or NaN where the series has none.
+     */
+    private static double[] read(TimeSeriesStore store, long[] days) {
+        double[] values = new double[days.length];
+        Arrays.fill(values, Double.NaN);
+        TimeSeriesStore.Range range = store.scan(LocalDate.ofEpochDay(days[0]),
+                LocalDate.ofEpochDay(days[days.length - 1]));
+        int d = 0;
+        for (int i = 0; i < range.size(); i++) {
+            long day = range.getDay(i);
+            while (d < days.length && days[d] < day) d++;
+            if (d == days.length) break;
+            if (days[d] == day) values[d] = range.getValue(i);
+        }
+        return values;
+    }
+
+    /**
+     * Aligns the portfolio and benchmark returns of this report only.
+     *
+     * @return The portfolio's returns, then each benchmark's, on the days they all have.
+     */
+    private static double[][] align(TreeMap<Long, Double> portfolioByDay,
+                                    Map<String, Map<Long, Double>> benchmarkReturns, String[] names) {
+        TreeSet<Long> benchmarkDaySet = new TreeSet<>();
+        benchmarkReturns.values().forEach(series -> benchmarkDaySet.addAll(series.keySet()));
+
+        long[] portfolioDays = portfolioByDay.keySet().stream().mapToLong(Long::longValue).toArray();
+        double[] portfolio = portfolioByDay.values().stream().mapToDouble(Double::doubleValue).toArray();
+        long[] benchmarkDays = benchmarkDaySet.stream().mapToLong(Long::longValue).toArray();
+        double[][] benchmarks = new double[names.length][benchmarkDays.length];
+        for (int b = 0; b < names.length; b++) {
+            Map<Long, Double> series = benchmarkReturns.get(names[b]);
+            for (int d = 0; d < benchmarkDays.length; d++) {
+                benchmarks[b][d] = series.getOrDefault(benchmarkDays[d], Double.NaN);
+            }
+        }
+        return BenchmarkEngine.align(portfolioDays, portfolio, benchmarkDays, benchmarks);
+    }
+
+    /**
+     * Reads the returns of each benchmark on the page, as fractions keyed by epoch day.
+     */
+    private static Map<String, Map<Long, Double>> readBenchmarks(SectionTable comparison) {
+        Map<String, Map<Long, Double>> benchmarks = new LinkedHashMap<>();
+        int dateColumn = comparison.getColumn("Date");
+        int nameColumn = comparison.getColumn("Benchmark");
+        int returnColumn = comparison.findColumn("Return");
+        String[] header = comparison.getHeader();
+
+        for (String[] row : comparison.getRows()) {
+            LocalDate date = SectionTable.parseDate(SectionTable.getCell(row, dateColumn));
+            if (date == null) continue;
+
+            if (nameColumn >= 0 && returnColumn >= 0) {
+                // One row per benchmark and day
+                String name = SectionTable.getCell(row, nameColumn).trim();
+                double value = SectionTable.parseNumber(SectionTable.getCell(row, returnColumn));
+                benchmarks.computeIfAbsent(name, key -> new HashMap<>()).put(date.toEpochDay(), value / 100);
+            } else {
+                // One column per benchmark
+                for (int column = 0; column < header.length; column++) {
+                    if (column == dateColumn) continue;
+                    double value = SectionTable.parseNumber(SectionTable.getCell(row, column));
+                    if (Double.isNaN(value)) continue;
+                    benchmarks.computeIfAbsent(header[column].trim(), key -> new HashMap<>())
+                            .put(date.toEpochDay(), value / 100);
+                }
+            }
+        }
+        return benchmarks;
+    }
+
+    private static void appendValue(StringBuilder block, double value) {
+        block.append(',');
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            block.append("--");
+        } else {
+            NumberCodec.appendFixed(block, value, 4);
+        }
+    }
+
 }
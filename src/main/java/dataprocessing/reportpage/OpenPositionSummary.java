@@ -1,21 +1,163 @@
 package dataprocessing.reportpage;
 
+import dataprocessing.NumberCodec;
+import dataprocessing.ReportContext;
 import dataprocessing.ReportPageProcessor;
+import dataprocessing.ReportProcessor;
+import dataprocessing.SectionTable;
+import dataprocessing.analytics.AdjustmentIndex;
+import dataprocessing.analytics.MonteCarloVaR;
+import dataprocessing.analytics.PriceHistory;
+import misc.Report;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
 
 /**
  * Used to process the 'Open Position Summary' page of a report CSV.
+ * Records each symbol's closing price into the account's price history, then appends the one-day Value-at-Risk and
+ * Expected Shortfall (CVaR) of the open positions, simulated from the covariance of that history. The history is
+ * adjusted for splits when it is read, and returns between reports more than a trading day apart are scaled to one
+ * day.
  */
 public class OpenPositionSummary implements ReportPageProcessor {
 
     // Logger for this class
-    private static final Logger logger = LoggerFactory.getLogger(AllocationByFinancialInstrument.class);
+    private static final Logger logger = LoggerFactory.getLogger(OpenPositionSummary.class);
+
+    /* Simulation settings, each of which can be overridden with a system property */
+    private static final String CONFIDENCE_PROPERTY = "reports.varConfidence";
+    private static final String DEFAULT_CONFIDENCE = "0.95,0.99";
+    private static final String SCENARIOS_PROPERTY = "reports.varScenarios";
+    private static final long DEFAULT_SCENARIOS = 1_000_000;
+    private static final String TIME_BUDGET_PROPERTY = "reports.varTimeBudgetMs";
+    private static final long DEFAULT_TIME_BUDGET_MILLIS = 2000;
+    private static final String DEGREES_OF_FREEDOM_PROPERTY = "reports.varDegreesOfFreedom";
+    private static final int DEFAULT_DEGREES_OF_FREEDOM = 5;
+    /* Columns used from the page */
+    private static final String[] COLUMNS = {"Symbol", "Value", "ClosePrice", "Close Price", "Price"};
 
     @Override
     public String processDataSection(String dataCSV) {
         return dataCSV;
     }
 
+    @Override
+    public String processDataSection(String dataCSV, ReportContext context) {
+        SectionTable positions = SectionTable.parse(dataCSV, COLUMNS);
+        int symbolColumn = positions.getColumn("Symbol");
+        int valueColumn = positions.getColumn("Value");
+        int priceColumn = findPriceColumn(positions);
+        if (symbolColumn < 0 || valueColumn < 0 || priceColumn < 0) {
+            logger.warn("Open positions are missing a symbol, value or price column");
+            return dataCSV;
+        }
+
+        // Total value and closing price of each symbol (a symbol may be held in several accounts)
+        Map<String, Double> values = new LinkedHashMap<>();
+        Map<String, Double> prices = new HashMap<>();
+        for (String[] row : positions.getRows()) {
+            String symbol = SectionTable.getCell(row, symbolColumn).trim();
+            double value = SectionTable.parseNumber(SectionTable.getCell(row, valueColumn));
+            double price = SectionTable.parseNumber(SectionTable.getCell(row, priceColumn));
+            if (symbol.isEmpty() || Double.isNaN(value)) continue;
+            values.merge(symbol, value, Double::sum);
+            prices.put(symbol, price);
+        }
+        if (values.isEmpty()) {
+            return dataCSV;
+        }
+
+        Report report = context.getReport();
+        LocalDate date = LocalDate.parse(report.getEntireDate(), DateTimeFormatter.ofPattern(Report.DATE_FORMAT));
+        PriceHistory history = updateHistory(report.getAccount(), date, prices);
+
+        // Align values with their return histories, adjusted for splits
+        AdjustmentIndex adjustments = CorporateActions.getIndex(context);
+        String[] symbols = values.keySet().toArray(new String[0]);
+        double[] positionValues = new double[symbols.length];
+        double[][] returns = new double[symbols.length][];
+        int withoutHistory = 0;
+        for (int i = 0; i < symbols.length; i++) {
+            positionValues[i] = values.get(symbols[i]);
+            returns[i] = history.getReturns(symbols[i], adjustments);
+            if (returns[i] == null) {
+                returns[i] = new double[0];
+                withoutHistory++;
+            }
+        }
+        if (withoutHistory > 0) {
+            logger.debug("{} of {} symbols have no return history yet", withoutHistory, symbols.length);
+        }
+
+        double[] confidences = Arrays.stream(System.getProperty(CONFIDENCE_PROPERTY, DEFAULT_CONFIDENCE).split(","))
+                .mapToDouble(Double::parseDouble)
+                .toArray();
+        long start = System.nanoTime();
+        MonteCarloVaR.Result result = MonteCarloVaR.simulate(positionValues, returns, confidences,
+                Long.getLong(SCENARIOS_PROPERTY, DEFAULT_SCENARIOS),
+                Long.getLong(TIME_BUDGET_PROPERTY, DEFAULT_TIME_BUDGET_MILLIS),
+                Integer.getInteger(DEGREES_OF_FREEDOM_PROPERTY, DEFAULT_DEGREES_OF_FREEDOM),
+                date.toEpochDay());
+        logger.info("Simulated {} VaR scenarios over {} symbols in {} ms", result.getScenarios(), symbols.length,
+                (System.nanoTime() - start) / 1_000_000);
+
+        StringBuilder block = new StringBuilder(dataCSV);
+        block.append("Header,Calculated Risk Measure,Confidence,Value at Risk (1 day),Expected Shortfall (1 day),")
+                .append("Scenarios\n");
+        for (int i = 0; i < confidences.length; i++) {
+            block.append("Data,Monte Carlo VaR,");
+            NumberCodec.appendFixed(block, confidences[i], 4).append(',');
+            NumberCodec.appendFixed(block, result.getValueAtRisk()[i], 2).append(',');
+            NumberCodec.appendFixed(block, result.getExpectedShortfall()[i], 2).append(',');
+            block.append(result.getScenarios()).append('\n');
+        }
+        return block.toString();
+    }
+
+    private static int findPriceColumn(SectionTable positions) {
+        int column = positions.getColumn("ClosePrice");
+        if (column < 0) column = positions.getColumn("Close Price");
+        if (column < 0) column = positions.findColumn("Price");
+        return column;
+    }
+
+    /**
+     * Records the report's closing prices into the account's saved price history. A report older than the saved
+     * history (e.g. when replaying) uses the history as it is.
+     *
+     * @param account The account holding the positions.
+     * @param date The date of the report.
+     * @param prices Closing price of each symbol.
+     * @return The price history.
+     */
+    private static synchronized PriceHistory updateHistory(String account, LocalDate date, Map<String, Double> prices) {
+        Path file = ReportProcessor.getStateDirectory().resolve(
+                "prices-" + account.replaceAll("[^A-Za-z0-9._-]", "_") + ".dat");
+        PriceHistory history;
+        try {
+            history = PriceHistory.load(file, PriceHistory.DEFAULT_WINDOW);
+        } catch (IOException e) {
+            logger.warn("Unable to load saved price history, starting from this report");
+            logger.warn(e.toString());
+            history = new PriceHistory(PriceHistory.DEFAULT_WINDOW);
+        }
+
+        if (history.record(date, prices)) {
+            try {
+                history.save(file);
+            } catch (IOException e) {
+                logger.warn("Unable to save price history for account '{}'", account);
+                logger.warn(e.toString());
+            }
+        }
+        return history;
+    }
+
 }
@@ -1,21 +1,243 @@
 package dataprocessing.reportpage;
 
+import dataprocessing.NumberCodec;
+import dataprocessing.ReportContext;
 import dataprocessing.ReportPageProcessor;
+import dataprocessing.ReportProcessor;
+import dataprocessing.SectionTable;
+import dataprocessing.analytics.AttributionEngine;
+import misc.Report;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
 
 /**
  * Used to process the 'Performance Attribution Vs Benchmark' page of a report CSV.
+ * Appends allocation, selection and interaction effects by sector and by asset class, linked over the month to
+ * date. Benchmark weights and returns are read from this page. Portfolio weights and returns are read from this page
+ * too, or else from the allocation and performance pages of the same dimension. The linking state is saved between
+ * runs, so each report only adds the period since the previous one.
  */
 public class PerformanceAttributionVsBenchmark implements ReportPageProcessor {
 
     // Logger for this class
-    private static final Logger logger = LoggerFactory.getLogger(AllocationByFinancialInstrument.class);
+    private static final Logger logger = LoggerFactory.getLogger(PerformanceAttributionVsBenchmark.class);
+
+    /* Attribution dimensions: key column, page of portfolio weights, page of portfolio returns */
+    private static final String[][] DIMENSIONS = {
+            {"Sector", "Allocation And Performance By Sector", "Allocation And Performance By Sector"},
+            {"Asset Class", "Allocation By Asset Class", "Performance By Asset Class"},
+    };
 
     @Override
     public String processDataSection(String dataCSV) {
         return dataCSV;
     }
 
+    @Override
+    public String processDataSection(String dataCSV, ReportContext context) {
+        SectionTable attribution = SectionTable.parse(dataCSV);
+        Report report = context.getReport();
+        LocalDate date = LocalDate.parse(report.getEntireDate(), DateTimeFormatter.ofPattern(Report.DATE_FORMAT));
+
+        StringBuilder block = new StringBuilder();
+        for (String[] dimension : DIMENSIONS) {
+            String keyName = dimension[0];
+            int keyColumn = attribution.getColumn(keyName);
+            if (keyColumn < 0) continue;
+
+            // Benchmark segments come from this page
+            Map<String, double[]> benchmark = aggregate(attribution, keyColumn,
+                    findColumn(attribution, "weight", true), findColumn(attribution, "return", true));
+
+            // Portfolio segments come from this page, or else from the dimension's allocation and performance pages
+            Map<String, double[]> portfolio = aggregate(attribution, keyColumn,
+                    findColumn(attribution, "weight", false), findColumn(attribution, "return", false));
+            if (portfolio.isEmpty()) {
+                portfolio = readPortfolio(context, keyName, dimension[1], dimension[2]);
+            }
+            if (benchmark.isEmpty() || portfolio.isEmpty()) {
+                logger.warn("Missing weights or returns for attribution by {}", keyName.toLowerCase(Locale.ENGLISH));
+                continue;
+            }
+
+            AttributionEngine engine = updateEngine(report.getAccount(), keyName, date, portfolio, benchmark);
+            if (engine.getPeriods() > 0) {
+                formatEffects(block, keyName, engine);
+            }
+        }
+
+        if (block.length() == 0) {
+            return dataCSV;
+        }
+        return dataCSV + "Header,Attribution By,Segment,Allocation Effect (%),Selection Effect (%),"
+                + "Interaction Effect (%),Total Effect (%),Periods,As Of\n" + block;
+    }
+
+    /**
+     * Reads portfolio weights and returns of a dimension from its allocation and performance pages.
+     *
+     * @return Weight and return of each segment, or an empty map if the pages are missing.
+     */
+    private static Map<String, double[]> readPortfolio(ReportContext context, String keyName, String weightPage,
+                                                      String returnPage) {
+        SectionTable weights = context.getTable(weightPage);
+        SectionTable returns = context.getTable(returnPage);
+        Map<String, double[]> portfolio = new LinkedHashMap<>();
+        if (weights == null || returns == null) {
+            return portfolio;
+        }
+
+        Map<String, double[]> weighted = aggregate(weights, weights.getColumn(keyName),
+                findColumn(weights, "weight", false), -1);
+        Map<String, double[]> returned = aggregate(returns, returns.getColumn(keyName),
+                -1, findColumn(returns, "return", false));
+        for (Map.Entry<String, double[]> segment : weighted.entrySet()) {
+            double[] performance = returned.get(segment.getKey());
+            portfolio.put(segment.getKey(),
+                    new double[]{segment.getValue()[0], performance == null ? Double.NaN : performance[1]});
+        }
+        return portfolio;
+    }
+
+    /**
+     * Sums the weights of each segment and averages its returns by weight. Values are shown as percentages.
+     *
+     * @param table The page table.
+     * @param keyColumn The segment column.
+     * @param weightColumn The weight column, or -1 to give every row a weight of 1.
+     * @param returnColumn The return column, or -1 if there are no returns.
+     * @return Weight and return (as fractions) of each segment, or an empty map if the columns are missing.
+     */
+    private static Map<String, double[]> aggregate(SectionTable table, int keyColumn, int weightColumn,
+                                                   int returnColumn) {
+        Map<String, double[]> segments = new LinkedHashMap<>();
+        if (keyColumn < 0 || (weightColumn < 0 && returnColumn < 0)) {
+            return segments;
+        }
+        for (String[] row : table.getRows()) {
+            String key = SectionTable.getCell(row, keyColumn).trim();
+            if (key.isEmpty()) continue;
+            double weight = weightColumn < 0 ? 1 : SectionTable.parseNumber(SectionTable.getCell(row, weightColumn));
+            double rowReturn = returnColumn < 0 ? Double.NaN
+                    : SectionTable.parseNumber(SectionTable.getCell(row, returnColumn));
+            if (Double.isNaN(weight)) continue;
+
+            // [total weight, weighted sum of returns, weight of rows with returns]
+            double[] sums = segments.computeIfAbsent(key, k -> new double[3]);
+            sums[0] += weight / 100;
+            if (!Double.isNaN(rowReturn)) {
+                sums[1] += weight * rowReturn / 100;
+                sums[2] += weight;
+            }
+        }
+        Map<String, double[]> result = new LinkedHashMap<>();
+        for (Map.Entry<String, double[]> segment : segments.entrySet()) {
+            double[] sums = segment.getValue();
+            result.put(segment.getKey(), new double[]{sums[0], sums[2] != 0 ? sums[1] / sums[2] : Double.NaN});
+        }
+        return result;
+    }
+
+    /**
+     * Finds the first column whose name contains the given text, and does (or does not) mention the benchmark.
+     */
+    private static int findColumn(SectionTable table, String text, boolean benchmark) {
+        String[] header = table.getHeader();
+        for (int i = 0; i < header.length; i++) {
+            String name = header[i].toLowerCase(Locale.ENGLISH);
+            if (name.contains(text) && name.contains("benchmark") == benchmark) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Links a report's segments onto the saved attribution of its account. A report not after the saved state
+     * (e.g. when replaying history) is calculated on its own, and the saved state is left unchanged.
+     */
+    private static synchronized AttributionEngine updateEngine(String account, String keyName, LocalDate date,
+                                                               Map<String, double[]> portfolio,
+                                                               Map<String, double[]> benchmark) {
+        Path stateFile = ReportProcessor.getStateDirectory().resolve("attribution-"
+                + keyName.toLowerCase(Locale.ENGLISH).replace(' ', '-') + '-'
+                + account.replaceAll("[^A-Za-z0-9._-]", "_") + ".dat");
+
+        AttributionEngine engine;
+        try {
+            engine = AttributionEngine.load(stateFile);
+        } catch (IOException e) {
+            logger.warn("Unable to load saved attribution state, starting from this report");
+            logger.warn(e.toString());
+            engine = new AttributionEngine();
+        }
+
+        LocalDate lastSaved = engine.getLastDate();
+        boolean isLatest = lastSaved == null || date.isAfter(lastSaved);
+        if (!isLatest) {
+            logger.debug("Report is not newer than saved attribution state, calculating from its own data");
+            engine = new AttributionEngine();
+        }
+
+        engine.update(date, keys(portfolio), column(portfolio, 0), column(portfolio, 1),
+                keys(benchmark), column(benchmark, 0), column(benchmark, 1));
+
+        if (isLatest) {
+            try {
+                engine.save(stateFile);
+            } catch (IOException e) {
+                logger.warn("Unable to save attribution state for account '{}'", account);
+                logger.warn(e.toString());
+            }
+        }
+        return engine;
+    }
+
+    private static String[] keys(Map<String, double[]> segments) {
+        return segments.keySet().toArray(new String[0]);
+    }
+
+    private static double[] column(Map<String, double[]> segments, int index) {
+        return segments.values().stream().mapToDouble(values -> values[index]).toArray();
+    }
+
+    /**
+     * Formats the linked effects of a dimension as data rows, followed by a row of their totals.
+     */
+    private static void formatEffects(StringBuilder block, String keyName, AttributionEngine engine) {
+        String[] keys = engine.getKeys();
+        double[] allocation = engine.getAllocation();
+        double[] selection = engine.getSelection();
+        double[] interaction = engine.getInteraction();
+        String suffix = "," + engine.getPeriods() + ',' + engine.getLastDate() + '\n';
+
+        double[] totals = new double[3];
+        for (int i = 0; i < keys.length; i++) {
+            totals[0] += allocation[i];
+            totals[1] += selection[i];
+            totals[2] += interaction[i];
+            block.append("Data,").append(keyName).append(',').append(keys[i]);
+            appendEffect(block, allocation[i], selection[i], interaction[i]).append(suffix);
+        }
+        block.append("Data,").append(keyName).append(",Total");
+        appendEffect(block, totals[0], totals[1], totals[2]).append(suffix);
+    }
+
+    private static StringBuilder appendEffect(StringBuilder block, double allocation, double selection,
+                                              double interaction) {
+        NumberCodec.appendFixed(block.append(','), allocation * 100, 4);
+        NumberCodec.appendFixed(block.append(','), selection * 100, 4);
+        NumberCodec.appendFixed(block.append(','), interaction * 100, 4);
+        return NumberCodec.appendFixed(block.append(','), (allocation + selection + interaction) * 100, 4);
+    }
+
 }
@@ -1,21 +1,147 @@
 package dataprocessing.reportpage;
 
+import dataprocessing.NumberCodec;
+import dataprocessing.ReportContext;
 import dataprocessing.ReportPageProcessor;
+import dataprocessing.ReportProcessor;
+import dataprocessing.SectionTable;
+import dataprocessing.analytics.RiskEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
 
 /**
  * Used to process the 'Risk Measures' page of a report CSV.
+ * Appends risk metrics calculated from the daily returns in the 'Historical Performance' page. Metrics cover every
+ * day seen so far for the account: the running state is saved between runs, so each report only adds its new days.
  */
 public class RiskMeasures implements ReportPageProcessor {
 
     // Logger for this class
-    private static final Logger logger = LoggerFactory.getLogger(AllocationByFinancialInstrument.class);
+    private static final Logger logger = LoggerFactory.getLogger(RiskMeasures.class);
+
+    /* Page holding the daily returns */
+    private static final String HISTORY_PAGE = "Historical Performance";
+    /* Annual risk-free rate as a fraction, set with -Dreports.riskFreeRate=0.02 */
+    private static final String RISK_FREE_RATE_PROPERTY = "reports.riskFreeRate";
 
     @Override
     public String processDataSection(String dataCSV) {
         return dataCSV;
     }
 
+    @Override
+    public String processDataSection(String dataCSV, ReportContext context) {
+        SectionTable history = context.getTable(HISTORY_PAGE);
+        if (history == null) {
+            logger.warn("No '{}' page to calculate risk measures from", HISTORY_PAGE);
+            return dataCSV;
+        }
+        int dateColumn = history.getColumn("Date");
+        int returnColumn = history.findColumn("Return");
+        if (dateColumn < 0 || returnColumn < 0) {
+            logger.warn("'{}' page is missing a date or return column", HISTORY_PAGE);
+            return dataCSV;
+        }
+
+        // Collect the report's daily returns in date order (returns are shown as percentages)
+        List<LocalDate> dates = new ArrayList<>();
+        List<Double> returns = new ArrayList<>();
+        for (String[] row : history.getRows()) {
+            LocalDate date = SectionTable.parseDate(SectionTable.getCell(row, dateColumn));
+            double dailyReturn = SectionTable.parseNumber(SectionTable.getCell(row, returnColumn)) / 100;
+            if (date != null && !Double.isNaN(dailyReturn)) {
+                dates.add(date);
+                returns.add(dailyReturn);
+            }
+        }
+
+        RiskEngine engine = updateEngine(context.getReport().getAccount(), dates, returns);
+        if (engine.getDays() == 0) {
+            return dataCSV;
+        }
+        return dataCSV + formatMetrics(engine);
+    }
+
+    /**
+     * Applies a report's returns to the saved state of its account. A report older than the saved state (e.g. when
+     * replaying history) is calculated on its own days instead, and the saved state is left unchanged.
+     *
+     * @param account The account the returns belong to.
+     * @param dates The dates of the returns, in order.
+     * @param returns The daily returns as fractions.
+     * @return The engine holding the updated metrics.
+     */
+    private static synchronized RiskEngine updateEngine(String account, List<LocalDate> dates, List<Double> returns) {
+        double riskFreeRate = Double.parseDouble(System.getProperty(RISK_FREE_RATE_PROPERTY, "0"));
+        Path stateFile = ReportProcessor.getStateDirectory().resolve(
+                "risk-" + account.replaceAll("[^A-Za-z0-9._-]", "_") + ".dat");
+
+        RiskEngine engine = new RiskEngine(riskFreeRate);
+        try {
+            engine.load(stateFile);
+        } catch (IOException e) {
+            logger.warn("Unable to load saved risk state, starting from this report");
+            logger.warn(e.toString());
+            engine = new RiskEngine(riskFreeRate);
+        }
+
+        LocalDate lastSaved = engine.getLastDate();
+        boolean isLatest = dates.isEmpty() || lastSaved == null || !dates.get(dates.size() - 1).isBefore(lastSaved);
+        if (!isLatest) {
+            logger.debug("Report is older than saved risk state, calculating from its own days");
+            engine = new RiskEngine(riskFreeRate);
+        }
+
+        int added = 0;
+        for (int i = 0; i < dates.size(); i++) {
+            if (engine.update(dates.get(i), returns.get(i))) added++;
+        }
+        logger.debug("Added {} new days to risk measures of account '{}'", added, account);
+
+        if (isLatest && added > 0) {
+            try {
+                engine.save(stateFile);
+            } catch (IOException e) {
+                logger.warn("Unable to save risk state for account '{}'", account);
+                logger.warn(e.toString());
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * Formats the metrics as an extension block of header and data rows.
+     *
+     * @param engine The engine holding the metrics.
+     * @return The rows of the block.
+     */
+    private static String formatMetrics(RiskEngine engine) {
+        String asOf = engine.getLastDate().toString();
+        long days = engine.getDays();
+        StringBuilder block = new StringBuilder("Header,Calculated Risk Measure,Value,Days,As Of\n");
+        appendRow(block, "Annualised Volatility (%)", engine.getAnnualisedVolatility() * 100, days, asOf);
+        appendRow(block, "Sharpe Ratio", engine.getSharpeRatio(), days, asOf);
+        appendRow(block, "Sortino Ratio", engine.getSortinoRatio(), days, asOf);
+        appendRow(block, "Max Drawdown (%)", engine.getMaxDrawdown() * 100, days, asOf);
+        appendRow(block, "Downside Deviation (%)", engine.getDownsideDeviation() * 100, days, asOf);
+        return block.toString();
+    }
+
+    private static void appendRow(StringBuilder block, String name, double value, long days, String asOf) {
+        block.append("Data,").append(name).append(',');
+        if (Double.isNaN(value)) {
+            block.append("--");
+        } else {
+            NumberCodec.appendFixed(block, value, 4);
+        }
+        block.append(',').append(days).append(',').append(asOf).append('\n');
+    }
+
 }
@@ -1,21 +1,158 @@
 package dataprocessing.reportpage;
 
+import dataprocessing.NumberCodec;
+import dataprocessing.ReportContext;
 import dataprocessing.ReportPageProcessor;
+import dataprocessing.ReportProcessor;
+import dataprocessing.SectionTable;
+import dataprocessing.analytics.AdjustmentIndex;
+import dataprocessing.analytics.TaxLotEngine;
+import misc.Report;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
 
 /**
  * Used to process the 'Trade Summary' page of a report CSV.
+ * Appends realised profit and loss for the month by symbol, split into short and long term by matching each fill
+ * against open tax lots. Open lots are saved between runs, so each report only matches its new fills, and are adjusted
+ * for splits from the 'Corporate Actions' page.
  */
 public class TradeSummary implements ReportPageProcessor {
 
     // Logger for this class
-    private static final Logger logger = LoggerFactory.getLogger(AllocationByFinancialInstrument.class);
+    private static final Logger logger = LoggerFactory.getLogger(TradeSummary.class);
+
+    /* Lot matching method, set with -Dreports.lotMethod=FIFO|LIFO|HIFO|SPECIFIC_ID */
+    private static final String METHOD_PROPERTY = "reports.lotMethod";
+    private static final String DEFAULT_METHOD = "FIFO";
+    /* Columns used from the page */
+    private static final String[] COLUMNS = {"Symbol", "Quantity", "Price", "Date", "Buy/Sell", "Lot"};
 
     @Override
     public String processDataSection(String dataCSV) {
         return dataCSV;
     }
 
+    @Override
+    public String processDataSection(String dataCSV, ReportContext context) {
+        SectionTable trades = SectionTable.parse(dataCSV, COLUMNS);
+        int symbolColumn = trades.getColumn("Symbol");
+        int quantityColumn = trades.findColumn("Quantity");
+        int priceColumn = trades.findColumn("Price");
+        if (symbolColumn < 0 || quantityColumn < 0 || priceColumn < 0) {
+            logger.warn("Page is missing a symbol, quantity or price column");
+            return dataCSV;
+        }
+        int dateColumn = trades.findColumn("Date");
+        int sideColumn = trades.findColumn("Buy/Sell");
+        int lotColumn = trades.findColumn("Lot");
+
+        Report report = context.getReport();
+        LocalDate reportDate = LocalDate.parse(report.getEntireDate(),
+                DateTimeFormatter.ofPattern(Report.DATE_FORMAT));
+
+        // Fills in date order; rows without a trade date are taken as trading on the report date
+        List<String[]> rows = trades.getRows();
+        LocalDate[] dates = new LocalDate[rows.size()];
+        Integer[] order = new Integer[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            LocalDate date = SectionTable.parseDate(SectionTable.getCell(rows.get(i), dateColumn));
+            dates[i] = date == null ? reportDate : date;
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> dates[i]));
+
+        TaxLotEngine.Method method = TaxLotEngine.Method.valueOf(
+                System.getProperty(METHOD_PROPERTY, DEFAULT_METHOD).toUpperCase(Locale.ENGLISH));
+        AdjustmentIndex adjustments = CorporateActions.getIndex(context);
+        TaxLotEngine engine = updateEngine(report.getAccount(), method, adjustments, reportDate, rows, order, dates,
+                symbolColumn, quantityColumn, priceColumn, sideColumn, lotColumn);
+        if (engine.getSymbols().isEmpty()) {
+            return dataCSV;
+        }
+
+        StringBuilder block = new StringBuilder(dataCSV);
+        block.append("Header,Realised By Tax Lot,Symbol,Quantity Closed,Short-Term Realised P/L,")
+                .append("Long-Term Realised P/L,Open Quantity,Open Cost Basis\n");
+        for (String symbol : engine.getSymbols()) {
+            double[] realised = engine.getRealised(symbol);
+            block.append("Data,").append(engine.getMethod()).append(',').append(symbol).append(',');
+            NumberCodec.appendFixed(block, realised[TaxLotEngine.CLOSED_QUANTITY], 4).append(',');
+            NumberCodec.appendFixed(block, realised[TaxLotEngine.SHORT_TERM], 2).append(',');
+            NumberCodec.appendFixed(block, realised[TaxLotEngine.LONG_TERM], 2).append(',');
+            NumberCodec.appendFixed(block, engine.getOpenQuantity(symbol, reportDate), 4).append(',');
+            NumberCodec.appendFixed(block, engine.getCostBasis(symbol), 2).append('\n');
+        }
+        return block.toString();
+    }
+
+    /**
+     * Matches a report's fills against the saved open lots of its account. A report re-run for the date of the last
+     * report matched uses the saved lots, whose fills it has already applied. A report older than that (e.g. when
+     * replaying history) is matched on its own fills, and the saved lots are left unchanged.
+     */
+    private static synchronized TaxLotEngine updateEngine(String account, TaxLotEngine.Method method,
+                                                          AdjustmentIndex adjustments, LocalDate reportDate,
+                                                          List<String[]> rows,
+                                                          Integer[] order, LocalDate[] dates, int symbolColumn,
+                                                          int quantityColumn, int priceColumn, int sideColumn,
+                                                          int lotColumn) {
+        Path stateFile = ReportProcessor.getStateDirectory().resolve(
+                "lots-" + account.replaceAll("[^A-Za-z0-9._-]", "_") + ".dat");
+
+        TaxLotEngine engine;
+        try {
+            engine = TaxLotEngine.load(stateFile, method);
+        } catch (IOException e) {
+            logger.warn("Unable to load saved tax lots, starting from this report");
+            logger.warn(e.toString());
+            engine = new TaxLotEngine(method);
+        }
+
+        LocalDate lastReport = engine.getReportDate();
+        boolean isLatest = lastReport == null || !reportDate.isBefore(lastReport);
+        if (!isLatest) {
+            logger.debug("Report is older than saved tax lots, matching its own fills");
+            engine = new TaxLotEngine(method);
+        }
+        engine.setAdjustments(adjustments);
+        engine.startMonth(reportDate);
+
+        int added = 0;
+        for (int i : order) {
+            String[] row = rows.get(i);
+            String symbol = SectionTable.getCell(row, symbolColumn).trim();
+            if (symbol.isEmpty()) continue;
+            double quantity = SectionTable.parseNumber(SectionTable.getCell(row, quantityColumn));
+            String side = SectionTable.getCell(row, sideColumn).trim().toUpperCase(Locale.ENGLISH);
+            if (side.startsWith("SELL")) quantity = -Math.abs(quantity);
+            else if (side.startsWith("BUY")) quantity = Math.abs(quantity);
+            double price = SectionTable.parseNumber(SectionTable.getCell(row, priceColumn));
+            double lot = SectionTable.parseNumber(SectionTable.getCell(row, lotColumn));
+
+            if (engine.addFill(dates[i], symbol, quantity, price, Double.isNaN(lot) ? 0 : (long) lot)) added++;
+        }
+        logger.debug("Matched {} new fills of account '{}'", added, account);
+
+        if (isLatest) {
+            try {
+                engine.save(stateFile);
+            } catch (IOException e) {
+                logger.warn("Unable to save tax lots for account '{}'", account);
+                logger.warn(e.toString());
+            }
+        }
+        return engine;
+    }
+
 }
@@ -18,4 +18,9 @@ public class Unchanged implements ReportPageProcessor {
         return dataCSV;
     }
 
+    @Override
+    public boolean isPassThrough() {
+        return true;
+    }
+
 }
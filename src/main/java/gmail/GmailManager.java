@@ -2,28 +2,29 @@ package gmail;
 
 import com.google.api.services.gmail.model.*;
 import gmail.labels.LabelManager;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.gmail.Gmail;
+import dataprocessing.ProcessingPlan;
+import dataprocessing.ReportProcessor;
+import misc.CredentialManager;
 import misc.Report;
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.binary.StringUtils;
+import misc.ReportPage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Base64;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
-import static misc.CredentialManager.getCredentials;
-
 
 /**
  * A class of static methods that handle the retrieval of the latest PortfolioAnalyst Report via Gmail's API.
@@ -32,7 +33,6 @@ public class GmailManager {
 
     // Global objects
     private static final Logger logger = LoggerFactory.getLogger(GmailManager.class);
-    private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
 
     /* Identifiers for PortfolioAnalyst report emails */
     private static final String EMAIL_SUBJECT = "PortfolioAnalyst Report";
@@ -45,6 +45,27 @@ public class GmailManager {
     /* Email address upon which to make requests (`me` represents the authenticated user) */
     private static final String USER = "me";
 
+    /* Gmail client, built on first use and reused for every later request */
+    private static Gmail service;
+
+    /**
+     * Gets the shared Gmail client, building it on the first call.
+     *
+     * @param applicationName The identifier with which to make Gmail requests.
+     * @return The authorised Gmail client.
+     * @throws IOException If the credentials cannot be loaded.
+     */
+    private static synchronized Gmail getService(String applicationName) throws IOException {
+        if (service == null) {
+            service = new Gmail.Builder(CredentialManager.getHttpTransport(), CredentialManager.getJsonFactory(),
+                    CredentialManager.getCredentials())
+                    .setApplicationName(applicationName)
+                    .build();
+            logger.info("Created new Gmail instance");
+        }
+        return service;
+    }
+
     /**
      * Gets the latest report CSV from the Gmail inbox. Once a CSV is retrieved from an email, the email is labelled
      * as processed to prevent grabbing reports that have already been obtained.
@@ -56,12 +77,8 @@ public class GmailManager {
     public static Report getLatestReport(String applicationName) throws GeneralSecurityException {
         try {
 
-            // Build a new authorized API client service.
-            final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
-            Gmail service = new Gmail.Builder(HTTP_TRANSPORT, JSON_FACTORY, getCredentials(HTTP_TRANSPORT))
-                    .setApplicationName(applicationName)
-                    .build();
-            logger.info("Created new Gmail instance");
+            // Get the authorized API client service
+            Gmail service = getService(applicationName);
 
             // Set up label in case it does not exist
             String labelId = LabelManager.getLabelId(service, USER, PROCESSED_LABEL);
@@ -77,19 +94,21 @@ public class GmailManager {
             String subject = getEmailSubject(message);
             String date = parseReportDate(subject);
 
-            // Get report CSV
+            // Get report CSV, decoded straight into its report pages
             String name = getAttachmentName(service, message);
-            String data = getAttachmentString(service, message);
+            Reader data = getAttachmentReader(service, message);
             if (data == null) {
                 logger.error("Latest report email [{}] is missing report attachment!", date);
                 throw new RuntimeException("Email does not have attachment");
             }
+            List<ReportPage> pages = ReportProcessor.getPages(data);
 
             // Label email as processed because report has been retrieved
             markEmailAsProcessed(service, emailId);
 
-            Report report = new Report(name, Report.ReportType.UNKNOWN, date, data);
-            logger.info("Retrieved latest unprocessed report, dated: {}", report.getEntireDate());
+            Report report = new Report(name, Report.ReportType.UNKNOWN, date, pages);
+            report.setType(ProcessingPlan.forReport(report).getType());
+            logger.info("Retrieved latest unprocessed {} report, dated: {}", report.getType(), report.getEntireDate());
             return report;
 
         } catch (IOException e) {
@@ -174,13 +193,14 @@ public class GmailManager {
     }
 
     /**
-     * Gets the attachment data from a given email.
+     * Gets the attachment data from a given email, as a stream of decoded CSV text. The base64url payload is decoded
+     * as it is read, so the decoded bytes and text are never held in full.
      *
      * @param service The instance of Gmail to make requests from.
      * @param message The email to get the attachment from.
-     * @return String of attachment data. If not attachment is found, null is returned.
+     * @return Reader of attachment data. If not attachment is found, null is returned.
      */
-    private static String getAttachmentString(Gmail service, Message message) {
+    private static Reader getAttachmentReader(Gmail service, Message message) {
         MessagePart payload = message.getPayload();
         for (MessagePart part : payload.getParts()) {
             // Filename attribute only exists if this MessagePart represents an attachment
@@ -189,7 +209,7 @@ public class GmailManager {
                 if (part.getBody().getData() != null) {
 
                     logger.debug("Attachment data found");
-                    return StringUtils.newStringUtf8(Base64.decodeBase64(part.getBody().getData()));
+                    return decodeAttachment(part.getBody().getData());
 
                 } else {
                     try {
@@ -198,7 +218,7 @@ public class GmailManager {
                         MessagePartBody attachment = service.users().messages()
                                 .attachments().get(USER, message.getId(), attachmentId).execute();
                         logger.debug("Attachment data found in separate MessagePart");
-                        return StringUtils.newStringUtf8(Base64.decodeBase64(attachment.getData()));
+                        return decodeAttachment(attachment.getData());
 
                     } catch (IOException e) {
                         logger.error("Error occurred while getting email attachment!");
@@ -211,6 +231,54 @@ public class GmailManager {
         return null;
     }
 
+    /**
+     * Wraps base64url attachment data in a base64url decoder and a UTF-8 decoder. Line breaks and other whitespace in
+     * the data are skipped, and the '+' and '/' of standard base64 are read as their base64url equivalents, which the
+     * strict decoder would otherwise reject.
+     *
+     * @param data The base64url (or base64) encoded attachment data.
+     * @return Reader of the decoded attachment text.
+     */
+    private static Reader decodeAttachment(String data) {
+        return new InputStreamReader(Base64.getUrlDecoder().wrap(new EncodedInputStream(data)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the characters of base64 data as base64url bytes, without copying the encoded string.
+     */
+    private static class EncodedInputStream extends InputStream {
+
+        private final String data;
+        private int position;
+
+        private EncodedInputStream(String data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            while (this.position < this.data.length()) {
+                char c = this.data.charAt(this.position++);
+                if (c == '+') return '-';
+                if (c == '/') return '_';
+                if (!Character.isWhitespace(c)) return c;
+            }
+            return -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (length == 0) return 0;
+            int count = 0;
+            int c;
+            while (count < length && (c = read()) >= 0) {
+                buffer[offset + count++] = (byte) c;
+            }
+            return count == 0 ? -1 : count;
+        }
+
+    }
+
     /**
      * Gets the subject of an email.
      *
@@ -5,6 +5,7 @@ import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInsta
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.gson.GsonFactory;
@@ -12,21 +13,30 @@ import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.gmail.GmailScopes;
 import com.google.api.services.sheets.v4.SheetsScopes;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.security.GeneralSecurityException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 /**
  * A class of static methods to handle the retrieval of Credentials from the Client ID and Client Secret.
+ * The HTTP transport, JSON factory and Credential are all created lazily on first use and then shared, so that
+ * nothing is loaded or authorised until the first Google API client is actually built.
  */
 public class CredentialManager {
 
     // Logger for this class
-    private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
+    private static final Logger logger = LoggerFactory.getLogger(CredentialManager.class);
 
     /* Stored credentials and token */
     private static final String TOKENS_DIRECTORY_PATH = "tokens";
@@ -42,31 +52,165 @@ public class CredentialManager {
             SheetsScopes.DRIVE_FILE
     );
 
+    /* Identifier of the stored credential in the tokens data store */
+    private static final String USER_ID = "user";
+    /* Port used to receive the authorisation code during interactive consent */
+    private static final int RECEIVER_PORT = 8888;
+    /* Set to `true` (-Dreports.headless=true) to fail fast instead of waiting on a browser for consent */
+    private static final String HEADLESS_PROPERTY = "reports.headless";
+    /* How long before expiry the access token is refreshed in the background */
+    private static final long REFRESH_MARGIN_SECONDS = 300;
+    /* Delay before retrying a failed background refresh */
+    private static final long REFRESH_RETRY_SECONDS = 30;
+
+    /* Authorisation flow (including the loaded client secrets) and the authorised credential, created once */
+    private static GoogleAuthorizationCodeFlow flow;
+    private static Credential credential;
+    /* Daemon thread that refreshes the access token ahead of expiry */
+    private static ScheduledExecutorService refresher;
+
+    /**
+     * Holder for the HTTP transport. The trusted transport loads Google's certificate store, so it is only built
+     * the first time a client asks for it (initialisation-on-demand holder idiom).
+     */
+    private static class TransportHolder {
+        private static final NetHttpTransport HTTP_TRANSPORT = newTransport();
+
+        private static NetHttpTransport newTransport() {
+            try {
+                return GoogleNetHttpTransport.newTrustedTransport();
+            } catch (GeneralSecurityException | IOException e) {
+                throw new IllegalStateException("Unable to create trusted HTTP transport", e);
+            }
+        }
+    }
+
+    /**
+     * @return The HTTP transport shared by all Google API clients.
+     */
+    public static NetHttpTransport getHttpTransport() {
+        return TransportHolder.HTTP_TRANSPORT;
+    }
+
     /**
-     * Creates an authorized Credential object.
+     * @return The JSON factory shared by all Google API clients.
+     */
+    public static JsonFactory getJsonFactory() {
+        return GsonFactory.getDefaultInstance();
+    }
+
+    /**
+     * Gets the authorized Credential object. The first call loads the client secrets and the stored token, asking
+     * for consent in a browser only if no usable token is stored. The Credential is then kept in memory, and its
+     * access token is refreshed in the background before it expires, so API calls never block on a refresh.
      *
-     * @param HTTP_TRANSPORT The network HTTP Transport.
      * @return An authorized Credential object.
+     * @throws IOException If the credentials.json file cannot be found, or consent is needed while headless.
+     */
+    public static synchronized Credential getCredentials() throws IOException {
+        if (credential == null) {
+            credential = authorize(getFlow());
+            scheduleRefresh(credential);
+        }
+        return credential;
+    }
+
+    /**
+     * Gets the authorization flow, loading the client secrets from the classpath on the first call.
+     *
+     * @return The authorization flow backed by the `tokens/` data store.
      * @throws IOException If the credentials.json file cannot be found.
      */
-    public static Credential getCredentials(final NetHttpTransport HTTP_TRANSPORT) throws IOException {
-        // Load client secrets
-        InputStream in = CredentialManager.class.getResourceAsStream(CREDENTIALS_FILE_PATH);
-        if (in == null) {
-            throw new FileNotFoundException("Resource not found: " + CREDENTIALS_FILE_PATH);
+    private static GoogleAuthorizationCodeFlow getFlow() throws IOException {
+        if (flow == null) {
+            // Load client secrets
+            InputStream in = CredentialManager.class.getResourceAsStream(CREDENTIALS_FILE_PATH);
+            if (in == null) {
+                throw new FileNotFoundException("Resource not found: " + CREDENTIALS_FILE_PATH);
+            }
+            GoogleClientSecrets clientSecrets;
+            try (InputStreamReader reader = new InputStreamReader(in)) {
+                clientSecrets = GoogleClientSecrets.load(getJsonFactory(), reader);
+            }
+
+            flow = new GoogleAuthorizationCodeFlow.Builder(
+                    getHttpTransport(), getJsonFactory(), clientSecrets, SCOPES)
+                    .setDataStoreFactory(new FileDataStoreFactory(new java.io.File(TOKENS_DIRECTORY_PATH)))
+                    .setAccessType("offline")
+                    .build();
+        }
+        return flow;
+    }
+
+    /**
+     * Creates an authorized Credential object, preferring the token stored in `tokens/`.
+     *
+     * @param flow The authorization flow.
+     * @return An authorized Credential object.
+     * @throws IOException If consent is required but `reports.headless` is set.
+     */
+    private static Credential authorize(GoogleAuthorizationCodeFlow flow) throws IOException {
+        // A stored refresh token lets us authorise without any user interaction
+        Credential stored = flow.loadCredential(USER_ID);
+        if (stored != null && stored.getRefreshToken() != null) {
+            logger.debug("Loaded stored credential from '{}'", TOKENS_DIRECTORY_PATH);
+            return stored;
+        }
+
+        if (Boolean.getBoolean(HEADLESS_PROPERTY)) {
+            logger.error("No stored refresh token in '{}' and consent is disabled by '{}'!",
+                    TOKENS_DIRECTORY_PATH, HEADLESS_PROPERTY);
+            throw new IOException("User consent required: authorise once on a machine with a browser and copy '"
+                    + TOKENS_DIRECTORY_PATH + "/' to this host");
+        }
+
+        // Trigger user authorization request in the browser
+        logger.info("No stored credential found, requesting user consent");
+        LocalServerReceiver receiver = new LocalServerReceiver.Builder().setPort(RECEIVER_PORT).build();
+        return new AuthorizationCodeInstalledApp(flow, receiver).authorize(USER_ID);
+    }
+
+    /**
+     * Schedules a background refresh of the access token shortly before it expires. Each refresh schedules the next
+     * one, and a failed refresh is retried; if the token does expire, the client library refreshes it on demand.
+     *
+     * @param credential The credential to keep refreshed.
+     */
+    private static void scheduleRefresh(Credential credential) {
+        if (refresher == null) {
+            refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "credential-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        Long expiresIn = credential.getExpiresInSeconds();
+        long delay = expiresIn == null ? 0 : Math.max(0, expiresIn - REFRESH_MARGIN_SECONDS);
+        refresher.schedule(() -> refresh(credential), delay, TimeUnit.SECONDS);
+        logger.debug("Access token refresh scheduled in {}s", delay);
+    }
+
+    /**
+     * Refreshes the access token and schedules the next refresh.
+     *
+     * @param credential The credential to refresh.
+     */
+    private static void refresh(Credential credential) {
+        try {
+
+            if (credential.refreshToken()) {
+                logger.debug("Access token refreshed in the background");
+                scheduleRefresh(credential);
+                return;
+            }
+            logger.warn("Access token refresh was rejected, retrying in {}s", REFRESH_RETRY_SECONDS);
+
+        } catch (IOException e) {
+            logger.warn("Error occurred while refreshing the access token, retrying in {}s", REFRESH_RETRY_SECONDS);
+            logger.warn(e.toString());
         }
-        GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(JSON_FACTORY, new InputStreamReader(in));
-
-        // Build flow and trigger user authorization request
-        GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(
-                HTTP_TRANSPORT, JSON_FACTORY, clientSecrets, SCOPES)
-                .setDataStoreFactory(new FileDataStoreFactory(new java.io.File(TOKENS_DIRECTORY_PATH)))
-                .setAccessType("offline")
-                .build();
-        LocalServerReceiver receiver = new LocalServerReceiver.Builder().setPort(8888).build();
-
-        // Return an authorized Credential object
-        return new AuthorizationCodeInstalledApp(flow, receiver).authorize("user");
+        refresher.schedule(() -> refresh(credential), REFRESH_RETRY_SECONDS, TimeUnit.SECONDS);
     }
 
 }
@@ -1,13 +1,23 @@
 package misc;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
- * Class for reports, storing the report date and the report CSV
+ * Class for reports, storing the report date and the report CSV.
+ * The CSV is held as a sequence of immutable report pages, each storing its rows once as UTF-8 bytes. Processing
+ * replaces only the pages it changes, and the full CSV is only built when it is needed as one string.
  */
 public class Report {
 
     /**
      * Enum for types of reports. Currently, only represents general DEFAULT and CUSTOM reports.
      * Can be extended with specific types of default/custom reports for better flexibility in the data processing stage.
+     * Set from the report's layout by `dataprocessing.ProcessingPlan`.
      */
     public enum ReportType {
         UNKNOWN,
@@ -22,19 +32,21 @@ public class Report {
     private final String name;
     private final String date;
     private ReportType type;
-    private String csv;
+    private List<ReportPage> pages;
 
     /**
      * Constructor for new Report object.
      *
+     * @param name The name of the report attachment.
+     * @param type The type of report.
      * @param date The date of the report.
-     * @param csv The report CSV data in bytes.
+     * @param pages The report pages, in report order, as read by `ReportProcessor.getPages`.
      */
-    public Report(String name, ReportType type, String date, String csv) {
+    public Report(String name, ReportType type, String date, List<ReportPage> pages) {
         this.name = name;
         this.type = type;
         this.date = date;
-        this.csv = csv;
+        this.pages = Collections.unmodifiableList(new ArrayList<>(pages));
     }
 
     /* Setter methods */
@@ -43,8 +55,20 @@ public class Report {
         this.type = type;
     }
 
-    public void setCSV(String csv) {
-        this.csv = csv;
+    public void setPages(List<ReportPage> pages) {
+        this.pages = Collections.unmodifiableList(new ArrayList<>(pages));
+    }
+
+    /**
+     * Adds a page before all other pages of the report. Existing pages are linked in, not copied.
+     *
+     * @param page The page to add.
+     */
+    public void prependPage(ReportPage page) {
+        List<ReportPage> newPages = new ArrayList<>(this.pages.size() + 1);
+        newPages.add(page);
+        newPages.addAll(this.pages);
+        this.pages = Collections.unmodifiableList(newPages);
     }
 
     /* Getter methods */
@@ -57,8 +81,87 @@ public class Report {
         return this.type;
     }
 
+    public List<ReportPage> getPages() {
+        return this.pages;
+    }
+
+    /**
+     * Gets the first page with a given name.
+     *
+     * @param name The name of the page.
+     * @return The page, or null if the report has no page with that name.
+     */
+    public ReportPage getPage(String name) {
+        for (ReportPage page : this.pages) {
+            if (page.getName().equals(name)) {
+                return page;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the account the report belongs to, taken from its 'Introduction' page. Falls back to the attachment
+     * name if the page does not list an account.
+     *
+     * @return The account identifier.
+     */
+    public String getAccount() {
+        ReportPage introduction = getPage("Introduction");
+        if (introduction != null) {
+            String[] headerCells = null;
+            for (String row : introduction.getData().split("\n")) {
+                String[] cells = row.split(",");
+                if (cells[0].equals("Header")) {
+                    headerCells = cells;
+                } else if (cells[0].equals("Data") && headerCells != null) {
+                    for (int i = 0; i < headerCells.length && i < cells.length; i++) {
+                        if (headerCells[i].trim().equals("Account")) {
+                            return cells[i].trim();
+                        }
+                    }
+                }
+            }
+        }
+        return this.name;
+    }
+
+    /**
+     * @return The size of the report CSV in bytes.
+     */
+    public long getLength() {
+        long length = 0;
+        for (ReportPage page : this.pages) {
+            length += page.getLength();
+        }
+        return length;
+    }
+
+    /**
+     * Builds the full report CSV as one string. Prefer `writeCSV` where the CSV can be streamed.
+     *
+     * @return A new string of the report CSV.
+     */
     public String getCSV() {
-        return this.csv;
+        byte[] csv = new byte[Math.toIntExact(getLength())];
+        int position = 0;
+        for (ReportPage page : this.pages) {
+            page.getCSV().get(csv, position, page.getLength());
+            position += page.getLength();
+        }
+        return new String(csv, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the full report CSV as UTF-8, straight from the bytes of each page.
+     *
+     * @param out The destination of the CSV.
+     * @throws IOException If the destination cannot be written to.
+     */
+    public void writeCSV(OutputStream out) throws IOException {
+        for (ReportPage page : this.pages) {
+            page.writeTo(out);
+        }
     }
 
     /* Methods to return report date in various formats */
@@ -0,0 +1,147 @@
+package misc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Immutable page (section) of a report CSV. The page is stored once, as the UTF-8 bytes of its rows exactly as they
+ * appear in the report CSV, i.e. each row prefixed with the page name. A report is a sequence of these pages, so
+ * pages left unchanged by processing, or added in front of a report, are linked in without copying any data.
+ * The bytes are usually on the heap, but may be a read-only mapping of a file, e.g. for a page spilled to disk to
+ * keep a large report within its memory budget.
+ */
+public final class ReportPage {
+
+    /* Bytes copied at a time when writing a page held outside the heap */
+    private static final int WRITE_CHUNK = 64 * 1024;
+
+    private final String name;
+    /* The page CSV, from position 0 to the limit, never modified */
+    private final ByteBuffer csv;
+
+    private ReportPage(String name, ByteBuffer csv) {
+        this.name = name;
+        this.csv = csv;
+    }
+
+    /**
+     * Creates a page from its data.
+     *
+     * @param name The name of the page.
+     * @param data The page data without the page name, of the form: cells delimited by ',' and rows by '\n'.
+     * @return The new page.
+     */
+    public static ReportPage fromData(String name, String data) {
+        StringBuilder csv = new StringBuilder(data.length() + 16);
+        int start = 0;
+        while (start < data.length()) {
+            int end = data.indexOf('\n', start);
+            if (end < 0) end = data.length();
+            csv.append(name).append(',').append(data, start, end).append('\n');
+            start = end + 1;
+        }
+        byte[] bytes = csv.toString().getBytes(StandardCharsets.UTF_8);
+        return new ReportPage(name, ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Creates a page which takes ownership of an array of CSV rows, without copying it.
+     * The array must not be modified afterwards.
+     *
+     * @param name The name of the page.
+     * @param csv UTF-8 rows of the page, each prefixed with the page name and a comma, and ending with '\n'.
+     * @param length The number of bytes of the array in use.
+     * @return The new page.
+     */
+    public static ReportPage wrap(String name, byte[] csv, int length) {
+        return new ReportPage(name, ByteBuffer.wrap(csv, 0, length).slice());
+    }
+
+    /**
+     * Creates a page over a buffer of CSV rows held outside the heap, such as a mapping of a file, without copying
+     * it. The buffer must not be modified afterwards.
+     *
+     * @param name The name of the page.
+     * @param csv UTF-8 rows of the page from its position to its limit, each prefixed with the page name and a comma,
+     *            and ending with '\n'.
+     * @return The new page.
+     */
+    public static ReportPage map(String name, ByteBuffer csv) {
+        return new ReportPage(name, csv.slice().asReadOnlyBuffer());
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return The size of the page CSV in bytes.
+     */
+    public int getLength() {
+        return this.csv.limit();
+    }
+
+    /**
+     * @return Whether the page's bytes are on the heap, rather than e.g. mapped from a file it was spilled to.
+     */
+    public boolean isOnHeap() {
+        return !this.csv.isDirect();
+    }
+
+    /**
+     * Decodes the page data, with the page name removed from each row. This is the form handlers process.
+     *
+     * @return A new string of the page data: cells delimited by ',' and rows delimited by '\n'.
+     */
+    public String getData() {
+        int length = getLength();
+        int prefix = this.name.getBytes(StandardCharsets.UTF_8).length + 1;
+        ByteBuffer csv = this.csv.duplicate();
+        byte[] data = new byte[length];
+        int dataLength = 0;
+        int start = 0;
+        while (start < length) {
+            int end = start + prefix;
+            while (end < length && csv.get(end - 1) != '\n') {
+                end++;
+            }
+            int rowStart = Math.min(start + prefix, end);
+            csv.position(rowStart);
+            csv.get(data, dataLength, end - rowStart);
+            dataLength += end - rowStart;
+            start = end;
+        }
+        return new String(data, 0, dataLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return A read-only view of the page CSV bytes.
+     */
+    public ByteBuffer getCSV() {
+        return this.csv.asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the page CSV bytes.
+     *
+     * @param out The destination of the CSV.
+     * @throws IOException If the destination cannot be written to.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (this.csv.hasArray()) {
+            out.write(this.csv.array(), this.csv.arrayOffset(), getLength());
+            return;
+        }
+        // Streamed in chunks, so a page held outside the heap is never copied onto it whole
+        ByteBuffer csv = this.csv.duplicate();
+        byte[] chunk = new byte[Math.min(WRITE_CHUNK, csv.remaining())];
+        while (csv.hasRemaining()) {
+            int length = Math.min(chunk.length, csv.remaining());
+            csv.get(chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+    }
+
+}
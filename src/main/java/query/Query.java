@@ -0,0 +1,354 @@
+package query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * A parsed query over one report section, in a small subset of SQL:
+ * <pre>
+ * SELECT *, column, COUNT(*), SUM(column), AVG(column), MIN(column), MAX(column) [AS label]
+ * FROM "Section Name"
+ * [WHERE column op value [AND column op value ...]]
+ * [GROUP BY column, ...]
+ * [ORDER BY column|label [ASC|DESC], ...]
+ * [LIMIT n]
+ * </pre>
+ * Names with spaces are quoted with double quotes or backticks, and text values with single quotes. The operators
+ * are =, !=, &lt;&gt;, &lt;, &lt;=, &gt;, &gt;= and LIKE (with % and _ wildcards). Keywords are not case sensitive.
+ */
+public class Query {
+
+    /* Aggregate functions */
+    public static final List<String> FUNCTIONS = List.of("COUNT", "SUM", "AVG", "MIN", "MAX");
+    /* Comparison operators, longest first so that '<=' is not read as '<' */
+    private static final String[] OPERATORS = {"<=", ">=", "!=", "<>", "=", "<", ">"};
+
+    /**
+     * An item of the SELECT list: a column, or an aggregate function of a column ('*' for COUNT(*)).
+     */
+    public static class Item {
+
+        private final String function;
+        private final String column;
+        private final String label;
+
+        private Item(String function, String column, String label) {
+            this.function = function;
+            this.column = column;
+            this.label = label;
+        }
+
+        /**
+         * @return The aggregate function, or null for a plain column.
+         */
+        public String getFunction() {
+            return this.function;
+        }
+
+        public String getColumn() {
+            return this.column;
+        }
+
+        public String getLabel() {
+            return this.label;
+        }
+
+    }
+
+    /**
+     * A WHERE condition comparing a column with a value.
+     */
+    public static class Condition {
+
+        private final String column;
+        private final String operator;
+        private final String value;
+        /* The value as a number, or NaN if it is text */
+        private final double number;
+
+        private Condition(String column, String operator, String value, double number) {
+            this.column = column;
+            this.operator = operator;
+            this.value = value;
+            this.number = number;
+        }
+
+        public String getColumn() {
+            return this.column;
+        }
+
+        public String getOperator() {
+            return this.operator;
+        }
+
+        public String getValue() {
+            return this.value;
+        }
+
+        public double getNumber() {
+            return this.number;
+        }
+
+    }
+
+    /**
+     * An ORDER BY key: a column or SELECT label, and its direction.
+     */
+    public static class Order {
+
+        private final String name;
+        private final boolean descending;
+
+        private Order(String name, boolean descending) {
+            this.name = name;
+            this.descending = descending;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public boolean isDescending() {
+            return this.descending;
+        }
+
+    }
+
+    private final List<Item> items = new ArrayList<>();
+    private String section;
+    private final List<Condition> conditions = new ArrayList<>();
+    private final List<String> groupBy = new ArrayList<>();
+    private final List<Order> orderBy = new ArrayList<>();
+    private int limit = -1;
+
+    private Query() {
+    }
+
+    public List<Item> getItems() {
+        return Collections.unmodifiableList(this.items);
+    }
+
+    public String getSection() {
+        return this.section;
+    }
+
+    public List<Condition> getConditions() {
+        return Collections.unmodifiableList(this.conditions);
+    }
+
+    public List<String> getGroupBy() {
+        return Collections.unmodifiableList(this.groupBy);
+    }
+
+    public List<Order> getOrderBy() {
+        return Collections.unmodifiableList(this.orderBy);
+    }
+
+    /**
+     * @return The maximum number of rows, or -1 for no limit.
+     */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * @return Whether the query aggregates rows, with aggregate functions or GROUP BY.
+     */
+    public boolean isAggregate() {
+        return !this.groupBy.isEmpty() || this.items.stream().anyMatch(item -> item.function != null);
+    }
+
+    /**
+     * Parses a query.
+     *
+     * @param text The query text.
+     * @return The parsed query.
+     * @throws IllegalArgumentException If the query is not valid.
+     */
+    public static Query parse(String text) {
+        Parser parser = new Parser(tokenize(text));
+        Query query = new Query();
+
+        parser.expectKeyword("SELECT");
+        do {
+            query.items.add(parser.item());
+        } while (parser.accept(","));
+
+        parser.expectKeyword("FROM");
+        query.section = parser.name();
+
+        if (parser.acceptKeyword("WHERE")) {
+            do {
+                query.conditions.add(parser.condition());
+            } while (parser.acceptKeyword("AND"));
+        }
+        if (parser.acceptKeyword("GROUP")) {
+            parser.expectKeyword("BY");
+            do {
+                query.groupBy.add(parser.name());
+            } while (parser.accept(","));
+        }
+        if (parser.acceptKeyword("ORDER")) {
+            parser.expectKeyword("BY");
+            do {
+                String name = parser.name();
+                boolean descending = parser.acceptKeyword("DESC");
+                if (!descending) parser.acceptKeyword("ASC");
+                query.orderBy.add(new Order(name, descending));
+            } while (parser.accept(","));
+        }
+        if (parser.acceptKeyword("LIMIT")) {
+            query.limit = Integer.parseInt(parser.next());
+        }
+        if (parser.hasNext()) {
+            throw new IllegalArgumentException("Unexpected '" + parser.next() + "' in query");
+        }
+
+        for (Item item : query.items) {
+            if (item.function == null && !item.column.equals("*") && query.isAggregate()
+                    && query.groupBy.stream().noneMatch(group -> group.equalsIgnoreCase(item.column))) {
+                throw new IllegalArgumentException("Column '" + item.column + "' must be in GROUP BY");
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Splits query text into tokens. Quoted names keep a leading '"' and text values a leading '\'' to tell them
+     * apart from keywords.
+     */
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"' || c == '`' || c == '\'') {
+                int end = text.indexOf(c, i + 1);
+                if (end < 0) throw new IllegalArgumentException("Unclosed quote in query");
+                tokens.add((c == '\'' ? "'" : "\"") + text.substring(i + 1, end));
+                i = end + 1;
+            } else if (c == ',' || c == '(' || c == ')' || c == '*') {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else if ("<>=!".indexOf(c) >= 0) {
+                int end = i + 1;
+                if (end < text.length() && "<>=".indexOf(text.charAt(end)) >= 0) end++;
+                tokens.add(text.substring(i, end));
+                i = end;
+            } else {
+                int end = i;
+                while (end < text.length() && !Character.isWhitespace(text.charAt(end))
+                        && ",()*<>=!'\"`".indexOf(text.charAt(end)) < 0) {
+                    end++;
+                }
+                tokens.add(text.substring(i, end));
+                i = end;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Recursive-descent reader over the tokens of a query.
+     */
+    private static class Parser {
+
+        private final List<String> tokens;
+        private int position;
+
+        private Parser(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        private boolean hasNext() {
+            return this.position < this.tokens.size();
+        }
+
+        private String peek() {
+            return hasNext() ? this.tokens.get(this.position) : "";
+        }
+
+        private String next() {
+            if (!hasNext()) throw new IllegalArgumentException("Unexpected end of query");
+            return this.tokens.get(this.position++);
+        }
+
+        private boolean accept(String token) {
+            if (peek().equals(token)) {
+                this.position++;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean acceptKeyword(String keyword) {
+            return peek().equalsIgnoreCase(keyword) && accept(peek());
+        }
+
+        private void expectKeyword(String keyword) {
+            if (!acceptKeyword(keyword)) {
+                throw new IllegalArgumentException("Expected " + keyword + " but found '" + peek() + "'");
+            }
+        }
+
+        /* A column or section name, quoted or not */
+        private String name() {
+            String token = next();
+            return token.startsWith("\"") ? token.substring(1) : token;
+        }
+
+        private Item item() {
+            String function = peek().toUpperCase(Locale.ENGLISH);
+            Item item;
+            if (FUNCTIONS.contains(function) && this.position + 1 < this.tokens.size()
+                    && this.tokens.get(this.position + 1).equals("(")) {
+                this.position += 2;
+                String column = accept("*") ? "*" : name();
+                if (!accept(")")) throw new IllegalArgumentException("Expected ')' after " + function);
+                if (column.equals("*") && !function.equals("COUNT")) {
+                    throw new IllegalArgumentException(function + "(*) is not supported");
+                }
+                item = new Item(function, column, function + "(" + column + ")");
+            } else if (accept("*")) {
+                item = new Item(null, "*", "*");
+            } else {
+                String column = name();
+                item = new Item(null, column, column);
+            }
+            if (acceptKeyword("AS")) {
+                item = new Item(item.function, item.column, name());
+            }
+            return item;
+        }
+
+        private Condition condition() {
+            String column = name();
+            String operator = next();
+            boolean known = operator.equalsIgnoreCase("LIKE");
+            for (String candidate : OPERATORS) {
+                known |= candidate.equals(operator);
+            }
+            if (!known) throw new IllegalArgumentException("Unknown operator '" + operator + "'");
+
+            String token = next();
+            boolean isText = token.startsWith("'");
+            String value = isText ? token.substring(1) : token;
+            double number = Double.NaN;
+            if (!isText) {
+                try {
+                    number = Double.parseDouble(value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Expected a number or quoted text but found '" + value + "'");
+                }
+            }
+            return new Condition(column, operator.toUpperCase(Locale.ENGLISH).replace("<>", "!="), value, number);
+        }
+
+    }
+
+}
@@ -0,0 +1,485 @@
+package query;
+
+import dataprocessing.CellDictionary;
+import dataprocessing.NumberCodec;
+import dataprocessing.SectionTable;
+import misc.Report;
+import misc.ReportPage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+
+/**
+ * Runs queries over the sections of a report. A section is converted to columns only for the columns a query uses,
+ * each held as its cells and their numeric values. The WHERE conditions are pushed down into the scan: each one
+ * narrows a vector of selected row numbers, one column at a time, before any output row is built. Large sections
+ * are scanned in parallel chunks, whose selections are joined in row order.
+ */
+public class QueryEngine {
+
+    // Logger for this class
+    private static final Logger logger = LoggerFactory.getLogger(QueryEngine.class);
+
+    /* Sections with at least this many rows are converted and scanned in parallel */
+    private static final int PARALLEL_ROWS = 65536;
+    /* Rows per chunk of a parallel scan */
+    private static final int CHUNK_ROWS = 16384;
+
+    /**
+     * The rows returned by a query.
+     */
+    public static class Result {
+
+        private final String[] header;
+        private final List<String[]> rows;
+
+        private Result(String[] header, List<String[]> rows) {
+            this.header = header;
+            this.rows = rows;
+        }
+
+        public String[] getHeader() {
+            return this.header.clone();
+        }
+
+        public List<String[]> getRows() {
+            return Collections.unmodifiableList(this.rows);
+        }
+
+        /**
+         * @return The result as CSV: the header row, then one row per result row.
+         */
+        public String toCSV() {
+            StringBuilder csv = new StringBuilder();
+            appendRow(csv, this.header);
+            for (String[] row : this.rows) {
+                appendRow(csv, row);
+            }
+            return csv.toString();
+        }
+
+        private static void appendRow(StringBuilder csv, String[] cells) {
+            for (int i = 0; i < cells.length; i++) {
+                if (i > 0) csv.append(',');
+                csv.append(SectionTable.quote(cells[i]));
+            }
+            csv.append('\n');
+        }
+
+    }
+
+    /**
+     * A column of a section: its cells, their dictionary codes if it is an identifier column, and their numeric
+     * values (NaN where not a number), built when first used. Columns are not thread-safe: a parallel scan builds
+     * the numbers it needs before its chunks start.
+     */
+    private static class Column {
+
+        private final String[] cells;
+        private final int[] codes;
+        private double[] numbers;
+
+        private Column(String[] cells, int[] codes) {
+            this.cells = cells;
+            this.codes = codes;
+        }
+
+        private double[] getNumbers() {
+            if (this.numbers == null) {
+                double[] values = new double[this.cells.length];
+                if (values.length >= PARALLEL_ROWS) {
+                    Arrays.parallelSetAll(values, i -> SectionTable.parseNumber(this.cells[i]));
+                } else {
+                    Arrays.setAll(values, i -> SectionTable.parseNumber(this.cells[i]));
+                }
+                this.numbers = values;
+            }
+            return this.numbers;
+        }
+
+    }
+
+    /**
+     * Runs a query over a section of a report.
+     *
+     * @param report The report, processed or not.
+     * @param queryText The query.
+     * @return The result.
+     * @throws IllegalArgumentException If the query is not valid for the report.
+     */
+    public static Result execute(Report report, String queryText) {
+        Query query = Query.parse(queryText);
+        for (ReportPage page : report.getPages()) {
+            if (page.getName().equalsIgnoreCase(query.getSection())) {
+                String[] columns = getColumns(query);
+                String data = page.getData();
+                return execute(columns == null ? SectionTable.parse(data) : SectionTable.parse(data, columns), query);
+            }
+        }
+        throw new IllegalArgumentException("Report has no section named '" + query.getSection() + "'");
+    }
+
+    /**
+     * Gets the columns a query reads, so that only those are parsed.
+     *
+     * @return The column names, or null if the query selects every column.
+     */
+    private static String[] getColumns(Query query) {
+        List<String> columns = new ArrayList<>();
+        for (Query.Item item : query.getItems()) {
+            if (item.getColumn().equals("*")) {
+                if (item.getFunction() == null) return null;
+            } else {
+                columns.add(item.getColumn());
+            }
+        }
+        for (Query.Condition condition : query.getConditions()) {
+            columns.add(condition.getColumn());
+        }
+        columns.addAll(query.getGroupBy());
+        for (Query.Order order : query.getOrderBy()) {
+            columns.add(order.getName());
+        }
+        return columns.toArray(new String[0]);
+    }
+
+    /**
+     * Runs a parsed query over a section.
+     *
+     * @param table The section.
+     * @param query The query.
+     * @return The result.
+     * @throws IllegalArgumentException If the query uses a column the section does not have.
+     */
+    public static Result execute(SectionTable table, Query query) {
+        long start = System.nanoTime();
+        String[] names = table.getHeader();
+        int rowCount = table.getRows().size();
+        Map<Integer, Column> columns = new HashMap<>();
+
+        // Scan: narrow the selection with each condition in turn
+        int[] selection;
+        if (rowCount >= PARALLEL_ROWS) {
+            int chunks = (rowCount + CHUNK_ROWS - 1) / CHUNK_ROWS;
+            // Columns, and the numbers of numeric conditions, are built here so the chunks only read them
+            for (Query.Condition condition : query.getConditions()) {
+                Column column = column(table, columns, resolve(table, condition.getColumn()));
+                if (!Double.isNaN(condition.getNumber())) column.getNumbers();
+            }
+            int[][] selected = IntStream.range(0, chunks).parallel()
+                    .mapToObj(chunk -> scan(table, columns, query, chunk * CHUNK_ROWS,
+                            Math.min(rowCount, (chunk + 1) * CHUNK_ROWS)))
+                    .toArray(int[][]::new);
+            selection = Arrays.stream(selected).flatMapToInt(Arrays::stream).toArray();
+        } else {
+            selection = scan(table, columns, query, 0, rowCount);
+        }
+
+        Result result = query.isAggregate()
+                ? aggregate(table, columns, query, selection)
+                : project(table, columns, query, selection, names);
+        logger.debug("Query over {} rows selected {} and returned {} in {} ms", rowCount, selection.length,
+                result.rows.size(), (System.nanoTime() - start) / 1_000_000);
+        return result;
+    }
+
+    /**
+     * Selects the rows of a range which meet every condition. Each condition is applied to the rows left by the
+     * conditions before it.
+     */
+    private static int[] scan(SectionTable table, Map<Integer, Column> columns, Query query, int from, int to) {
+        int[] selection = new int[to - from];
+        for (int i = 0; i < selection.length; i++) {
+            selection[i] = from + i;
+        }
+        int count = selection.length;
+
+        for (Query.Condition condition : query.getConditions()) {
+            Column column = column(table, columns, resolve(table, condition.getColumn()));
+            String operator = condition.getOperator();
+            int kept = 0;
+            if (!Double.isNaN(condition.getNumber())) {
+                double[] numbers = column.getNumbers();
+                double value = condition.getNumber();
+                for (int i = 0; i < count; i++) {
+                    int row = selection[i];
+                    if (compare(numbers[row], value, operator)) selection[kept++] = row;
+                }
+            } else if (operator.equals("LIKE")) {
+                Pattern pattern = likePattern(condition.getValue());
+                for (int i = 0; i < count; i++) {
+                    int row = selection[i];
+                    if (pattern.matcher(column.cells[row]).matches()) selection[kept++] = row;
+                }
+            } else {
+                String value = condition.getValue();
+                for (int i = 0; i < count; i++) {
+                    int row = selection[i];
+                    int order = column.cells[row].compareToIgnoreCase(value);
+                    if (compare(order, 0, operator)) selection[kept++] = row;
+                }
+            }
+            count = kept;
+        }
+        return Arrays.copyOf(selection, count);
+    }
+
+    private static boolean compare(double left, double right, String operator) {
+        if (Double.isNaN(left)) return false;
+        switch (operator) {
+            case "=":
+                return left == right;
+            case "!=":
+                return left != right;
+            case "<":
+                return left < right;
+            case "<=":
+                return left <= right;
+            case ">":
+                return left > right;
+            case ">=":
+                return left >= right;
+            default:
+                throw new IllegalArgumentException("Operator '" + operator + "' needs a quoted text value");
+        }
+    }
+
+    private static Pattern likePattern(String like) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : like.toCharArray()) {
+            if (c == '%') regex.append(".*");
+            else if (c == '_') regex.append('.');
+            else regex.append(Pattern.quote(String.valueOf(c)));
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    }
+
+    /**
+     * Builds the output rows of a query without aggregates. The selection is ordered on source columns before the
+     * selected columns are read.
+     */
+    private static Result project(SectionTable table, Map<Integer, Column> columns, Query query, int[] selection,
+                                  String[] names) {
+        List<Integer> outputColumns = new ArrayList<>();
+        List<String> header = new ArrayList<>();
+        for (Query.Item item : query.getItems()) {
+            if (item.getColumn().equals("*")) {
+                for (int i = 0; i < names.length; i++) {
+                    outputColumns.add(i);
+                    header.add(names[i].trim());
+                }
+            } else {
+                outputColumns.add(resolve(table, item.getColumn()));
+                header.add(item.getLabel());
+            }
+        }
+
+        if (!query.getOrderBy().isEmpty()) {
+            Comparator<Integer> order = null;
+            for (Query.Order key : query.getOrderBy()) {
+                int index = indexOfLabel(header, key.getName());
+                Column column = column(table, columns, index >= 0 ? outputColumns.get(index)
+                        : resolve(table, key.getName()));
+                Comparator<Integer> comparator = (a, b) -> compareCells(column.cells[a], column.getNumbers()[a],
+                        column.cells[b], column.getNumbers()[b]);
+                if (key.isDescending()) comparator = comparator.reversed();
+                order = order == null ? comparator : order.thenComparing(comparator);
+            }
+            Integer[] boxed = Arrays.stream(selection).boxed().toArray(Integer[]::new);
+            Arrays.sort(boxed, order);
+            selection = Arrays.stream(boxed).mapToInt(Integer::intValue).toArray();
+        }
+
+        int count = query.getLimit() < 0 ? selection.length : Math.min(query.getLimit(), selection.length);
+        Column[] output = new Column[outputColumns.size()];
+        for (int c = 0; c < output.length; c++) {
+            output[c] = column(table, columns, outputColumns.get(c));
+        }
+        List<String[]> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String[] row = new String[output.length];
+            for (int c = 0; c < output.length; c++) {
+                row[c] = output[c].cells[selection[i]];
+            }
+            rows.add(row);
+        }
+        return new Result(header.toArray(new String[0]), rows);
+    }
+
+    /**
+     * Builds the output rows of a query with aggregates, one per group, then orders and limits them.
+     */
+    private static Result aggregate(SectionTable table, Map<Integer, Column> columns, Query query, int[] selection) {
+        List<Query.Item> items = query.getItems();
+        Column[] groupColumns = new Column[query.getGroupBy().size()];
+        for (int g = 0; g < groupColumns.length; g++) {
+            groupColumns[g] = column(table, columns, resolve(table, query.getGroupBy().get(g)));
+        }
+        double[][] itemNumbers = new double[items.size()][];
+        Column[] itemColumns = new Column[items.size()];
+        for (int i = 0; i < items.size(); i++) {
+            Query.Item item = items.get(i);
+            if (item.getColumn().equals("*")) {
+                if (item.getFunction() == null) throw new IllegalArgumentException("SELECT * cannot be aggregated");
+                continue;
+            }
+            itemColumns[i] = column(table, columns, resolve(table, item.getColumn()));
+            if (item.getFunction() != null) itemNumbers[i] = itemColumns[i].getNumbers();
+        }
+
+        // Groups are numbered in order of their first row, by the codes of up to two identifier columns, or else by
+        // the cells of the group columns
+        boolean encoded = groupColumns.length <= 2 && Arrays.stream(groupColumns).allMatch(c -> c.codes != null);
+        CellDictionary.CodeIndex codeIndex = new CellDictionary.CodeIndex();
+        Map<List<String>, Integer> keyIndex = new HashMap<>();
+        // Per group: [count, sum, min, max] for each item, over rows where the item's value is a number
+        List<double[][]> groups = new ArrayList<>();
+        List<Integer> firstRows = new ArrayList<>();
+        for (int row : selection) {
+            int group;
+            if (encoded) {
+                group = codeIndex.add(CellDictionary.CodeIndex.key(
+                        groupColumns.length > 0 ? groupColumns[0].codes[row] : 0,
+                        groupColumns.length > 1 ? groupColumns[1].codes[row] : 0));
+            } else {
+                String[] key = new String[groupColumns.length];
+                for (int g = 0; g < key.length; g++) {
+                    key[g] = groupColumns[g].cells[row];
+                }
+                group = keyIndex.computeIfAbsent(Arrays.asList(key), k -> keyIndex.size());
+            }
+            if (group == groups.size()) {
+                groups.add(newState(items.size()));
+                firstRows.add(row);
+            }
+            double[][] state = groups.get(group);
+            for (int i = 0; i < items.size(); i++) {
+                if (items.get(i).getColumn().equals("*")) {
+                    state[i][0]++;
+                    continue;
+                }
+                if (itemNumbers[i] == null) continue;
+                double value = itemNumbers[i][row];
+                if (Double.isNaN(value)) continue;
+                state[i][0]++;
+                state[i][1] += value;
+                state[i][2] = Math.min(state[i][2], value);
+                state[i][3] = Math.max(state[i][3], value);
+            }
+        }
+        if (groups.isEmpty() && groupColumns.length == 0) {
+            groups.add(newState(items.size()));
+        }
+
+        String[] header = items.stream().map(Query.Item::getLabel).toArray(String[]::new);
+        List<String[]> rows = new ArrayList<>();
+        for (int group = 0; group < groups.size(); group++) {
+            double[][] state = groups.get(group);
+            Integer firstRow = group < firstRows.size() ? firstRows.get(group) : null;
+            String[] row = new String[items.size()];
+            for (int i = 0; i < items.size(); i++) {
+                Query.Item item = items.get(i);
+                if (item.getFunction() == null) {
+                    row[i] = firstRow == null ? "" : itemColumns[i].cells[firstRow];
+                } else {
+                    row[i] = formatAggregate(item.getFunction(), state[i]);
+                }
+            }
+            rows.add(row);
+        }
+
+        if (!query.getOrderBy().isEmpty()) {
+            Comparator<String[]> order = null;
+            for (Query.Order key : query.getOrderBy()) {
+                int index = indexOfLabel(Arrays.asList(header), key.getName());
+                if (index < 0) {
+                    throw new IllegalArgumentException("ORDER BY '" + key.getName() + "' is not in the SELECT list");
+                }
+                Comparator<String[]> comparator = (a, b) -> compareCells(a[index],
+                        SectionTable.parseNumber(a[index]), b[index], SectionTable.parseNumber(b[index]));
+                if (key.isDescending()) comparator = comparator.reversed();
+                order = order == null ? comparator : order.thenComparing(comparator);
+            }
+            rows.sort(order);
+        }
+        if (query.getLimit() >= 0 && rows.size() > query.getLimit()) {
+            rows = new ArrayList<>(rows.subList(0, query.getLimit()));
+        }
+        return new Result(header, rows);
+    }
+
+    private static double[][] newState(int items) {
+        double[][] state = new double[items][];
+        for (int i = 0; i < items; i++) {
+            state[i] = new double[]{0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        }
+        return state;
+    }
+
+    private static String formatAggregate(String function, double[] state) {
+        double count = state[0];
+        switch (function) {
+            case "COUNT":
+                return Long.toString((long) count);
+            case "SUM":
+                return formatNumber(state[1]);
+            case "AVG":
+                return count == 0 ? "" : formatNumber(state[1] / count);
+            case "MIN":
+                return count == 0 ? "" : formatNumber(state[2]);
+            default:
+                return count == 0 ? "" : formatNumber(state[3]);
+        }
+    }
+
+    private static String formatNumber(double value) {
+        return NumberCodec.appendShortest(new StringBuilder(), value, 6).toString();
+    }
+
+    /**
+     * Orders numbers numerically before text, and text ignoring case.
+     */
+    private static int compareCells(String leftText, double left, String rightText, double right) {
+        boolean leftNumber = !Double.isNaN(left);
+        boolean rightNumber = !Double.isNaN(right);
+        if (leftNumber && rightNumber) return Double.compare(left, right);
+        if (leftNumber != rightNumber) return leftNumber ? -1 : 1;
+        return leftText.compareToIgnoreCase(rightText);
+    }
+
+    private static int indexOfLabel(List<String> labels, String name) {
+        for (int i = 0; i < labels.size(); i++) {
+            if (labels.get(i).equalsIgnoreCase(name)) return i;
+        }
+        return -1;
+    }
+
+    private static int resolve(SectionTable table, String name) {
+        int column = table.getColumn(name);
+        if (column < 0) {
+            throw new IllegalArgumentException("Section has no column named '" + name + "'");
+        }
+        return column;
+    }
+
+    /**
+     * Gets a column, converting it from the section's rows when first used.
+     */
+    private static Column column(SectionTable table, Map<Integer, Column> columns, int index) {
+        synchronized (columns) {
+            return columns.computeIfAbsent(index, key -> {
+                List<String[]> rows = table.getRows();
+                String[] cells = new String[rows.size()];
+                for (int i = 0; i < cells.length; i++) {
+                    cells[i] = SectionTable.getCell(rows.get(i), index).trim();
+                }
+                return new Column(cells, table.getCodes(index));
+            });
+        }
+    }
+
+}
@@ -0,0 +1,224 @@
+package server;
+
+import archive.ReportArchive;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import misc.Report;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * Local read-only HTTP service for the latest processed report of each account, so dashboards can read sections
+ * without going through Google Sheets. Built on the JDK's HttpServer and bound to the loopback address.
+ * <pre>
+ * GET /reports                              index of published reports and their sections
+ * GET /reports/{account}/{section}.json     a section as JSON ("latest" for the latest report of any account)
+ * GET /reports/{account}/{section}.csv      a section as CSV
+ * </pre>
+ * Every response body is precomputed by a {@link SectionCache}. Responses carry strong ETags, a matching
+ * If-None-Match is answered with 304 Not Modified, and clients which accept gzip are sent the precompressed body.
+ */
+public class ReportServer implements Closeable {
+
+    // Logger for this class
+    private static final Logger logger = LoggerFactory.getLogger(ReportServer.class);
+
+    /* Default port, overridden by the `reports.serverPort` system property */
+    public static final int DEFAULT_PORT = 8642;
+    /* Seconds between checks of the report archive for new reports, from `reports.serverPollSeconds` */
+    private static final long POLL_SECONDS = Long.getLong("reports.serverPollSeconds", 60);
+    /* Threads answering requests, from `reports.serverThreads` */
+    private static final int THREADS = Integer.getInteger("reports.serverThreads", 4);
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final SectionCache cache = new SectionCache();
+
+    private ReportServer(HttpServer server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts a server on the loopback address. It serves nothing until a report is published.
+     *
+     * @param port The port to listen on.
+     * @return The running server.
+     * @throws IOException If the port cannot be bound.
+     */
+    public static ReportServer start(int port) throws IOException {
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "report-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ReportServer server = new ReportServer(httpServer, executor);
+        httpServer.createContext(SectionCache.INDEX_PATH, server::handle);
+        httpServer.setExecutor(executor);
+        httpServer.start();
+        logger.info("Serving processed reports on http://{}:{}{}", InetAddress.getLoopbackAddress().getHostAddress(),
+                httpServer.getAddress().getPort(), SectionCache.INDEX_PATH);
+        return server;
+    }
+
+    /**
+     * Serves the latest reports in an archive of processed reports until the process is stopped. The latest report
+     * of each account is published on start, and the archive is checked for newer reports periodically. Reports are
+     * processed by the pipeline before they are archived, so the server never runs the handlers, whose saved state
+     * belongs to the pipeline.
+     *
+     * @param archiveDirectory The directory of the archive of processed reports.
+     * @param port The port to listen on.
+     */
+    public static void serve(Path archiveDirectory, int port) {
+        try (ReportServer server = start(port)) {
+            Map<String, LocalDate> published = new HashMap<>();
+            while (!Thread.currentThread().isInterrupted()) {
+                server.publishNewReports(archiveDirectory, published);
+                Thread.sleep(POLL_SECONDS * 1000);
+            }
+        } catch (IOException e) {
+            logger.error("Error occurred while starting the report server!");
+            logger.error(e.toString());
+            throw new RuntimeException("Unable to serve reports");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Replaces the served sections of the report's account with those of the report.
+     *
+     * @param report The processed report.
+     */
+    public void publish(Report report) {
+        this.cache.publish(report);
+    }
+
+    /**
+     * @return The port the server is listening on.
+     */
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Publishes the latest archived report of each account, if it is newer than the one published.
+     *
+     * @param archiveDirectory The directory of the archive of processed reports.
+     * @param published The date of the report published for each account, updated in place.
+     */
+    private void publishNewReports(Path archiveDirectory, Map<String, LocalDate> published) {
+        try (ReportArchive archive = ReportArchive.open(archiveDirectory)) {
+            // Entries are in date order, so later entries replace earlier ones
+            Map<String, ReportArchive.Entry> latest = new HashMap<>();
+            for (ReportArchive.Entry entry : archive.find(LocalDate.MIN, LocalDate.now())) {
+                latest.put(entry.getAccount(), entry);
+            }
+            for (ReportArchive.Entry entry : latest.values()) {
+                LocalDate date = published.get(entry.getAccount());
+                if (date != null && !entry.getDate().isAfter(date)) continue;
+                publish(archive.load(entry));
+                published.put(entry.getAccount(), entry.getDate());
+            }
+        } catch (IOException e) {
+            // The server keeps serving the reports it has, and tries again at the next check
+            logger.warn("Unable to read the report archive for new reports");
+            logger.warn(e.toString());
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            Headers responseHeaders = exchange.getResponseHeaders();
+            String method = exchange.getRequestMethod();
+            boolean head = method.equals("HEAD");
+            if (!head && !method.equals("GET")) {
+                responseHeaders.set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            SectionCache.Resource resource = this.cache.get(exchange.getRequestURI().getPath());
+            if (resource == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            boolean gzip = acceptsGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            String etag = resource.getEtag(gzip);
+            responseHeaders.set("ETag", etag);
+            responseHeaders.set("Cache-Control", "no-cache");
+            responseHeaders.set("Vary", "Accept-Encoding");
+            if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            responseHeaders.set("Content-Type", resource.getContentType());
+            if (resource.isCompressed(gzip)) {
+                responseHeaders.set("Content-Encoding", "gzip");
+            }
+            if (head) {
+                // HttpServer does not keep a Content-Length set by hand on every JDK, so HEAD responses have none
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            byte[] body = resource.getBody(gzip);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().toLowerCase(Locale.ENGLISH).split(";");
+            if (!parts[0].trim().equals("gzip")) continue;
+            // "gzip;q=0" refuses gzip
+            return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+        }
+        return false;
+    }
+
+    /**
+     * Compares an If-None-Match header with an ETag, with the weak comparison it requires.
+     */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*")) return true;
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals(etag)) return true;
+        }
+        return false;
+    }
+
+}
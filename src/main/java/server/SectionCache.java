@@ -0,0 +1,293 @@
+package server;
+
+import dataprocessing.SectionTable;
+import misc.Report;
+import misc.ReportPage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * In-memory cache of the response bodies served for the latest processed report of each account. All the bodies of
+ * a report (each section as JSON and as CSV, and the index of reports) are built when the report is published,
+ * along with their gzip-compressed forms and strong ETags, so a request is answered from memory without any work.
+ * Publishing a report replaces every body of its account at once, which invalidates the previous ones.
+ */
+public class SectionCache {
+
+    // Logger for this class
+    private static final Logger logger = LoggerFactory.getLogger(SectionCache.class);
+
+    /* Path of the index of published reports */
+    public static final String INDEX_PATH = "/reports";
+    /* Account name which refers to the most recently published report */
+    public static final String LATEST_ACCOUNT = "latest";
+    /* Bodies smaller than this are not compressed */
+    private static final int COMPRESS_THRESHOLD = 256;
+    /* Bytes of the body's SHA-256 used in its ETag */
+    private static final int ETAG_BYTES = 16;
+
+    /**
+     * A precomputed response: its body, optionally its gzip-compressed body, and their ETags.
+     */
+    public static class Resource {
+
+        private final String contentType;
+        private final byte[] body;
+        private final String etag;
+        private final byte[] gzipBody;
+        private final String gzipEtag;
+
+        private Resource(String contentType, byte[] body) {
+            this.contentType = contentType;
+            this.body = body;
+            String hash = hash(body);
+            this.etag = '"' + hash + '"';
+            byte[] compressed = body.length < COMPRESS_THRESHOLD ? null : gzip(body);
+            // Only keep the compressed body if it is actually smaller
+            this.gzipBody = compressed != null && compressed.length < body.length ? compressed : null;
+            // Each encoding is a different representation, so needs its own strong ETag
+            this.gzipEtag = this.gzipBody == null ? null : '"' + hash + "-gzip\"";
+        }
+
+        public String getContentType() {
+            return this.contentType;
+        }
+
+        /**
+         * @param gzip Whether the client accepts gzip-compressed bodies.
+         * @return The body to send.
+         */
+        public byte[] getBody(boolean gzip) {
+            return gzip && this.gzipBody != null ? this.gzipBody : this.body;
+        }
+
+        /**
+         * @param gzip Whether the client accepts gzip-compressed bodies.
+         * @return The ETag of the body to send.
+         */
+        public String getEtag(boolean gzip) {
+            return gzip && this.gzipBody != null ? this.gzipEtag : this.etag;
+        }
+
+        /**
+         * @param gzip Whether the client accepts gzip-compressed bodies.
+         * @return Whether the body to send is gzip-compressed.
+         */
+        public boolean isCompressed(boolean gzip) {
+            return gzip && this.gzipBody != null;
+        }
+
+    }
+
+    /**
+     * The resources of one published report.
+     */
+    private static class Snapshot {
+
+        private final String account;
+        private final String date;
+        private final String name;
+        private final List<String> sections;
+        /* Lower-case path under the account, e.g. "open position summary.json", to its resource */
+        private final Map<String, Resource> resources;
+
+        private Snapshot(String account, String date, String name, List<String> sections,
+                         Map<String, Resource> resources) {
+            this.account = account;
+            this.date = date;
+            this.name = name;
+            this.sections = sections;
+            this.resources = resources;
+        }
+
+    }
+
+    /* Lower-case account to the snapshot of its latest report */
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private volatile Snapshot latest;
+    private volatile Resource index = new Resource("application/json", "[]".getBytes(StandardCharsets.UTF_8));
+
+    /**
+     * Builds the resources of a processed report and replaces those of its account.
+     *
+     * @param report The processed report.
+     */
+    public synchronized void publish(Report report) {
+        long start = System.nanoTime();
+        String account = report.getAccount() == null ? "" : report.getAccount();
+        List<String> sections = new ArrayList<>();
+        Map<String, Resource> resources = new HashMap<>();
+        long bytes = 0;
+        for (ReportPage page : report.getPages()) {
+            String data = page.getData();
+            String key = page.getName().toLowerCase(Locale.ENGLISH);
+            if (resources.containsKey(key + ".csv")) continue;
+            sections.add(page.getName());
+
+            Resource csv = new Resource("text/csv; charset=utf-8", data.getBytes(StandardCharsets.UTF_8));
+            Resource json = new Resource("application/json", toJSON(report, account, page.getName(), data)
+                    .getBytes(StandardCharsets.UTF_8));
+            resources.put(key + ".csv", csv);
+            resources.put(key + ".json", json);
+            bytes += csv.body.length + json.body.length;
+        }
+
+        Snapshot snapshot = new Snapshot(account, report.getEntireDate(), report.getName(),
+                Collections.unmodifiableList(sections), resources);
+        this.snapshots.put(account.toLowerCase(Locale.ENGLISH), snapshot);
+        this.latest = snapshot;
+        this.index = new Resource("application/json", indexJSON().getBytes(StandardCharsets.UTF_8));
+        logger.info("Published {} sections of report dated {} for account '{}' ({} KB) in {} ms", sections.size(),
+                snapshot.date, account, bytes / 1024, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Finds the resource for a request path: the index, or "/reports/{account}/{section}.json|.csv", where the
+     * account may be "latest".
+     *
+     * @param path The decoded request path.
+     * @return The resource, or null if there is none for the path.
+     */
+    public Resource get(String path) {
+        if (path.equals(INDEX_PATH) || path.equals(INDEX_PATH + "/")) {
+            return this.index;
+        }
+        if (!path.startsWith(INDEX_PATH + "/")) {
+            return null;
+        }
+        String rest = path.substring(INDEX_PATH.length() + 1);
+        int slash = rest.indexOf('/');
+        if (slash < 0) {
+            return null;
+        }
+        String account = rest.substring(0, slash).toLowerCase(Locale.ENGLISH);
+        Snapshot snapshot = account.equals(LATEST_ACCOUNT) ? this.latest : this.snapshots.get(account);
+        if (snapshot == null) {
+            return null;
+        }
+        return snapshot.resources.get(rest.substring(slash + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Writes a section as JSON: one block per header row, each with its column names and the data rows below it.
+     */
+    private static String toJSON(Report report, String account, String section, String data) {
+        StringBuilder json = new StringBuilder(data.length() * 2);
+        json.append("{\"account\":");
+        appendString(json, account);
+        json.append(",\"date\":");
+        appendString(json, report.getEntireDate());
+        json.append(",\"section\":");
+        appendString(json, section);
+        json.append(",\"blocks\":[");
+
+        boolean inBlock = false;
+        boolean firstRow = true;
+        int start = 0;
+        while (start < data.length()) {
+            int end = data.indexOf('\n', start);
+            if (end < 0) end = data.length();
+            String[] cells = SectionTable.splitRow(data.substring(start, end));
+            start = end + 1;
+            if (cells.length == 0) continue;
+
+            if (cells[0].equals(SectionTable.HEADER_ROW) || !inBlock) {
+                if (inBlock) json.append("]},");
+                json.append("{\"header\":");
+                appendArray(json, cells[0].equals(SectionTable.HEADER_ROW) ? cells : new String[]{""});
+                json.append(",\"rows\":[");
+                inBlock = true;
+                firstRow = true;
+                if (cells[0].equals(SectionTable.HEADER_ROW)) continue;
+            }
+            if (!cells[0].equals(SectionTable.DATA_ROW)) continue;
+            if (!firstRow) json.append(',');
+            appendArray(json, cells);
+            firstRow = false;
+        }
+        if (inBlock) json.append("]}");
+        return json.append("]}").toString();
+    }
+
+    private String indexJSON() {
+        List<Snapshot> ordered = new ArrayList<>(this.snapshots.values());
+        ordered.sort(Comparator.comparing(snapshot -> snapshot.account));
+        StringBuilder json = new StringBuilder("[");
+        for (Snapshot snapshot : ordered) {
+            if (json.length() > 1) json.append(',');
+            json.append("{\"account\":");
+            appendString(json, snapshot.account);
+            json.append(",\"date\":");
+            appendString(json, snapshot.date);
+            json.append(",\"name\":");
+            appendString(json, snapshot.name);
+            json.append(",\"sections\":");
+            appendArray(json, snapshot.sections.toArray(new String[0]));
+            json.append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    /* Appends the cells of a row after its row type */
+    private static void appendArray(StringBuilder json, String[] cells) {
+        json.append('[');
+        for (int i = 1; i < cells.length; i++) {
+            if (i > 1) json.append(',');
+            appendString(json, cells[i]);
+        }
+        json.append(']');
+    }
+
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private static byte[] gzip(byte[] body) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(body);
+        } catch (IOException e) {
+            logger.error("Error occurred while compressing a response body!");
+            logger.error(e.toString());
+            throw new RuntimeException("Unable to compress response body");
+        }
+        return compressed.toByteArray();
+    }
+
+    private static String hash(byte[] body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+            StringBuilder hex = new StringBuilder(ETAG_BYTES * 2);
+            for (int i = 0; i < ETAG_BYTES; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            logger.error("SHA-256 is not available!");
+            logger.error(e.toString());
+            throw new RuntimeException("Unable to compute ETag");
+        }
+    }
+
+}
@@ -1,13 +1,11 @@
 package sheets;
 
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.sheets.v4.Sheets;
 import com.google.api.services.sheets.v4.model.*;
+import misc.CredentialManager;
 import misc.Report;
+import misc.ReportPage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sheets.drive.FileManager;
@@ -16,11 +14,7 @@ import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-
-import static misc.CredentialManager.getCredentials;
+import java.util.*;
 
 
 /**
@@ -32,7 +26,6 @@ public class SheetsManager {
 
     // Global objects
     private static final Logger logger = LoggerFactory.getLogger(SheetsManager.class);
-    private static final JsonFactory JSON_FACTORY = GsonFactory.getDefaultInstance();
 
     /* MimeTypes for folder and spreadsheet file types */
     private static final String MIMETYPE_FOLDER = "application/vnd.google-apps.folder";
@@ -40,6 +33,46 @@ public class SheetsManager {
     /* Folder where report data is to be kept */
     private static final String FOLDER_NAME = "Financial Reports";
 
+    /* Drive and Sheets clients, built on first use and reused for every later request */
+    private static Drive driveService;
+    private static Sheets sheetsService;
+
+    /**
+     * Gets the shared Drive client, building it on the first call.
+     *
+     * @param applicationName The identifier with which to make Drive requests.
+     * @return The authorised Drive client.
+     * @throws IOException If the credentials cannot be loaded.
+     */
+    private static synchronized Drive getDriveService(String applicationName) throws IOException {
+        if (driveService == null) {
+            driveService = new Drive.Builder(CredentialManager.getHttpTransport(), CredentialManager.getJsonFactory(),
+                    CredentialManager.getCredentials())
+                    .setApplicationName(applicationName)
+                    .build();
+            logger.info("Created new Drive instance");
+        }
+        return driveService;
+    }
+
+    /**
+     * Gets the shared Sheets client, building it on the first call.
+     *
+     * @param applicationName The identifier with which to make Sheets requests.
+     * @return The authorised Sheets client.
+     * @throws IOException If the credentials cannot be loaded.
+     */
+    private static synchronized Sheets getSheetsService(String applicationName) throws IOException {
+        if (sheetsService == null) {
+            sheetsService = new Sheets.Builder(CredentialManager.getHttpTransport(), CredentialManager.getJsonFactory(),
+                    CredentialManager.getCredentials())
+                    .setApplicationName(applicationName)
+                    .build();
+            logger.info("Created new Sheets instance");
+        }
+        return sheetsService;
+    }
+
     /**
      * Uploads a given Report object to a dedicated folder of spreadsheets on Google Drive. Report CSVs are saved
      * under a root 'Financial Reports' folder, in a spreadsheet of data from the current year. Months within the
@@ -54,18 +87,9 @@ public class SheetsManager {
     public static boolean uploadReport(String applicationName, Report report) throws GeneralSecurityException {
         try {
 
-            // Build new authorized API client services.
-            final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
-
-            Drive driveService = new Drive.Builder(HTTP_TRANSPORT, JSON_FACTORY, getCredentials(HTTP_TRANSPORT))
-                    .setApplicationName(applicationName)
-                    .build();
-            logger.info("Created new Drive instance");
-
-            Sheets sheetsService = new Sheets.Builder(HTTP_TRANSPORT, JSON_FACTORY, getCredentials(HTTP_TRANSPORT))
-                    .setApplicationName(applicationName)
-                    .build();
-            logger.info("Created new Sheets instance");
+            // Get the authorized API client services
+            Drive driveService = getDriveService(applicationName);
+            Sheets sheetsService = getSheetsService(applicationName);
 
             // Get report folder ID
             String reportFolderId = getReportsFolder(driveService);
@@ -76,7 +100,7 @@ public class SheetsManager {
 
             if (sheetDataIsOld(sheetsService, report, spreadsheetId)) {
                 // Attach date metadata to start of CSV
-                report.setCSV("Report date," + report.getEntireDate() + '\n' + report.getCSV());
+                report.prependPage(ReportPage.fromData("Report date", report.getEntireDate()));
                 logger.debug("Attached current report date to top of CSV");
 
                 // Upload CSV to the spreadsheet and sheet
@@ -95,6 +119,57 @@ public class SheetsManager {
         }
     }
 
+    /**
+     * Uploads many reports at once, overwriting their sheets regardless of the dates already on them. Reports are
+     * grouped by their year spreadsheet, and each spreadsheet receives a single batch update which creates any
+     * missing month sheets, clears the existing ones and pastes every report. When several reports fall in the
+     * same month, the latest one is uploaded.
+     *
+     * @param applicationName The identifier with which to make Drive/Sheets requests.
+     * @param reports The processed reports to upload.
+     * @return The number of month sheets written.
+     */
+    public static int uploadReports(String applicationName, List<Report> reports) {
+        try {
+
+            // Get the authorized API client services
+            Drive driveService = getDriveService(applicationName);
+            Sheets sheetsService = getSheetsService(applicationName);
+
+            // Group by year spreadsheet, then month sheet, keeping the latest report of each month
+            Map<String, Map<Integer, Report>> years = new TreeMap<>();
+            SimpleDateFormat parser = new SimpleDateFormat(Report.DATE_FORMAT);
+            for (Report report : reports) {
+                Map<Integer, Report> months = years.computeIfAbsent(report.getYear(), year -> new TreeMap<>());
+                Integer sheetId = Integer.parseInt(report.getMonth()) - 1;
+                Report existing = months.get(sheetId);
+                if (existing == null || !parser.parse(report.getEntireDate()).before(
+                        parser.parse(existing.getEntireDate()))) {
+                    months.put(sheetId, report);
+                }
+            }
+
+            String reportFolderId = getReportsFolder(driveService);
+            int sheetsWritten = 0;
+            for (Map.Entry<String, Map<Integer, Report>> year : years.entrySet()) {
+                String spreadsheetId = getSpreadsheet(driveService, reportFolderId, year.getKey());
+                uploadSpreadsheet(sheetsService, spreadsheetId, year.getValue());
+                sheetsWritten += year.getValue().size();
+                logger.info("Uploaded {} month sheets to {} spreadsheet", year.getValue().size(), year.getKey());
+            }
+            return sheetsWritten;
+
+        } catch (IOException e) {
+            logger.error("Error occurred while uploading report CSVs!");
+            logger.error(e.toString());
+            throw new RuntimeException("Request to upload reports failed");
+        } catch (ParseException e) {
+            logger.error("Error occurred while comparing report dates!");
+            logger.error(e.toString());
+            throw new RuntimeException("Unable to parse report date");
+        }
+    }
+
     /**
      * Method used to get a sheet title from a report object.
      * Used for generating/finding a sheet title for a specific report.
@@ -118,17 +193,8 @@ public class SheetsManager {
         try {
 
             // New paste data request
-            GridCoordinate cell = new GridCoordinate()
-                    .setSheetId(sheetId)
-                    .setRowIndex(0)
-                    .setColumnIndex(0);
-            PasteDataRequest pasteDataRequest = new PasteDataRequest()
-                    .setCoordinate(cell)
-                    .setData(report.getCSV())
-                    .setType("PASTE_VALUES")
-                    .setDelimiter(",");
             List<Request> requests = new ArrayList<>();
-            requests.add(new Request().setPasteData(pasteDataRequest));
+            requests.add(getPasteRequest(report, sheetId));
             logger.debug("Set up request to paste CSV");
 
             // Add all requests as part of batch update request
@@ -147,6 +213,85 @@ public class SheetsManager {
         }
     }
 
+    /**
+     * Writes a year's reports to their month sheets in a single batch update. Missing sheets are created first,
+     * and the default sheet is deleted if it still exists.
+     *
+     * @param service The instance of Sheets to make requests from.
+     * @param spreadsheetId The year spreadsheet to upload to.
+     * @param months Reports to upload, keyed by their sheet ID.
+     */
+    private static void uploadSpreadsheet(Sheets service, String spreadsheetId, Map<Integer, Report> months) {
+        final String DEFAULT_SHEET_NAME = "Sheet1";
+
+        try {
+
+            // Find the sheets which already exist
+            Set<Integer> existingSheets = new HashSet<>();
+            Integer defaultSheetId = null;
+            for (Sheet sheet : service.spreadsheets().get(spreadsheetId).execute().getSheets()) {
+                existingSheets.add(sheet.getProperties().getSheetId());
+                if (sheet.getProperties().getTitle().equals(DEFAULT_SHEET_NAME)) {
+                    defaultSheetId = sheet.getProperties().getSheetId();
+                }
+            }
+
+            List<Request> requests = new ArrayList<>();
+            for (Map.Entry<Integer, Report> month : months.entrySet()) {
+                Integer sheetId = month.getKey();
+                Report report = month.getValue();
+
+                if (existingSheets.contains(sheetId)) {
+                    // Clear old values so rows from a longer previous report do not linger
+                    requests.add(new Request().setUpdateCells(new UpdateCellsRequest()
+                            .setRange(new GridRange().setSheetId(sheetId))
+                            .setFields("userEnteredValue")));
+                } else {
+                    requests.add(new Request().setAddSheet(new AddSheetRequest().setProperties(
+                            new SheetProperties().setSheetId(sheetId).setTitle(getSheetNameFromReport(report)))));
+                }
+
+                // Attach date metadata to start of CSV
+                report.prependPage(ReportPage.fromData("Report date", report.getEntireDate()));
+                requests.add(getPasteRequest(report, sheetId));
+            }
+            if (defaultSheetId != null && !months.containsKey(defaultSheetId)) {
+                requests.add(new Request().setDeleteSheet(new DeleteSheetRequest().setSheetId(defaultSheetId)));
+            }
+
+            // Add all requests as part of batch update request
+            BatchUpdateSpreadsheetRequest requestBody = new BatchUpdateSpreadsheetRequest()
+                    .setRequests(requests);
+            service.spreadsheets().batchUpdate(spreadsheetId, requestBody).execute();
+            logger.debug("Executed {} batched requests on spreadsheet [{}]", requests.size(), spreadsheetId);
+
+        } catch (IOException e) {
+            logger.error("Error occurred while batch uploading to spreadsheet [{}]!", spreadsheetId);
+            logger.error(e.toString());
+            throw new RuntimeException("Request to batch update spreadsheet failed");
+        }
+    }
+
+    /**
+     * Builds a request to paste the report CSV at the top-left cell of a sheet.
+     *
+     * @param report The report with the CSV to paste.
+     * @param sheetId The sheet to paste onto.
+     * @return The paste data request.
+     */
+    private static Request getPasteRequest(Report report, Integer sheetId) {
+        GridCoordinate cell = new GridCoordinate()
+                .setSheetId(sheetId)
+                .setRowIndex(0)
+                .setColumnIndex(0);
+        PasteDataRequest pasteDataRequest = new PasteDataRequest()
+                .setCoordinate(cell)
+                .setData(report.getCSV())
+                .setType("PASTE_VALUES")
+                .setDelimiter(",");
+        return new Request().setPasteData(pasteDataRequest);
+    }
+
     /**
      * Checks if the data on the sheet corresponding to the given report is older than the report's data.
      * This check is done using a cell at the top of sheet which holds the date of its current data.